@@ -0,0 +1,203 @@
+/**
+ * Copyright 2012 Lingering Socket Labs
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.lingeringsocket.mobflare;
+
+import android.app.*;
+import android.os.*;
+import android.util.*;
+import android.view.*;
+import android.widget.*;
+
+/**
+ * Measures the latency of each of this device's flare outputs and saves
+ * it, so that {@link FlareTimer} can issue each flash edge early enough
+ * to compensate.
+ */
+public class Calibrate extends Activity
+{
+    private static String LOGTAG = "Calibrate";
+
+    private CompositeOutput output;
+    private CalibrateTask task;
+    private boolean paused;
+    private Handler handler = new Handler();
+
+    private TextView resultView;
+    private Button startButton;
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState)
+    {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.calibrate);
+
+        resultView = (TextView) findViewById(R.id.calibration_result);
+        startButton = (Button) findViewById(R.id.calibrate_start);
+
+        output = FlareService.createOutput(this);
+        if (Prefs.getOutputScreen(this)) {
+            output.add(
+                new ScreenFlashOutput(), getString(R.string.output_screen));
+        }
+        output.initialize(this);
+        OutputCalibration [] calibrations =
+            new OutputCalibration[output.getBackendCount()];
+        for (int i = 0; i < calibrations.length; ++i) {
+            FlareOutput backend = output.getBackend(i);
+            if (OutputCalibration.isSaved(this, backend)) {
+                calibrations[i] = OutputCalibration.load(this, backend);
+            }
+        }
+        showResults(calibrations);
+    }
+
+    @Override
+    protected void onResume()
+    {
+        super.onResume();
+        paused = false;
+    }
+
+    @Override
+    protected void onPause()
+    {
+        super.onPause();
+        paused = true;
+        if (task != null) {
+            // don't wait for the task here, since it may itself be
+            // waiting for this thread (e.g. for a screen flash); the
+            // output can't be released out from under it, so that
+            // happens once it is done
+            task.cancel(true);
+            return;
+        }
+        output.release();
+    }
+
+    /**
+     * Called on the UI thread once a task has stopped using the output,
+     * whether it finished or was cancelled.
+     */
+    private void onTaskDone()
+    {
+        task = null;
+        startButton.setEnabled(true);
+        if (paused) {
+            output.release();
+        }
+    }
+
+    public void onCalibrateClicked(View v)
+    {
+        startButton.setEnabled(false);
+        resultView.setText(R.string.calibrating);
+        task = new CalibrateTask();
+        task.execute();
+    }
+
+    public void onOkClicked(View v)
+    {
+        finish();
+    }
+
+    private void showResults(OutputCalibration [] calibrations)
+    {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < calibrations.length; ++i) {
+            if (i > 0) {
+                sb.append('\n');
+            }
+            OutputCalibration calibration = calibrations[i];
+            if (calibration == null) {
+                sb.append(
+                    getString(
+                        R.string.calibration_none, output.getLabel(i)));
+            } else {
+                sb.append(
+                    getString(
+                        R.string.calibration_result,
+                        output.getLabel(i),
+                        calibration.getOnLeadMicros() / 1000.0,
+                        calibration.getOffLeadMicros() / 1000.0));
+            }
+        }
+        resultView.setText(sb.toString());
+    }
+
+    private class CalibrateTask
+        extends AsyncTask<Void, Void, OutputCalibration []>
+    {
+        @Override
+        protected OutputCalibration [] doInBackground(Void ... params)
+        {
+            // measure under the same conditions as the flash scheduler
+            int priority = android.os.Process.getThreadPriority(
+                android.os.Process.myTid());
+            android.os.Process.setThreadPriority(
+                android.os.Process.THREAD_PRIORITY_URGENT_DISPLAY);
+            try {
+                // one backend at a time, so that they don't contend
+                OutputCalibration [] calibrations =
+                    new OutputCalibration[output.getBackendCount()];
+                for (int i = 0; i < calibrations.length; ++i) {
+                    calibrations[i] = OutputCalibration.measure(
+                        output.getBackend(i),
+                        OutputCalibration.DEFAULT_TRIALS);
+                }
+                return calibrations;
+            } catch (InterruptedException ex) {
+                return null;
+            } catch (RuntimeException ex) {
+                Log.e(LOGTAG, "Calibration failed", ex);
+                return null;
+            } finally {
+                android.os.Process.setThreadPriority(priority);
+                // not onCancelled, which older platforms call as soon as
+                // the task is cancelled, while this is still running
+                handler.post(new Runnable()
+                    {
+                        public void run()
+                        {
+                            onTaskDone();
+                        }
+                    });
+            }
+        }
+
+        @Override
+        protected void onCancelled()
+        {
+            showResults(new OutputCalibration[output.getBackendCount()]);
+        }
+
+        @Override
+        protected void onPostExecute(OutputCalibration [] calibrations)
+        {
+            if (calibrations == null) {
+                resultView.setText(R.string.calibration_failed);
+                return;
+            }
+            for (int i = 0; i < calibrations.length; ++i) {
+                OutputCalibration calibration = calibrations[i];
+                Log.i(LOGTAG, output.getLabel(i) + ":  on lead "
+                    + calibration.getOnLeadMicros() + "us, off lead "
+                    + calibration.getOffLeadMicros() + "us");
+                calibration.save(Calibrate.this, output.getBackend(i));
+            }
+            showResults(calibrations);
+        }
+    }
+}
@@ -0,0 +1,119 @@
+/**
+ * Copyright 2012 Lingering Socket Labs
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.lingeringsocket.mobflare;
+
+import org.apache.http.client.methods.*;
+
+/**
+ * Cancellation handle for work done against the coordinator:  it tracks
+ * the HTTP request currently in progress so that cancelling can abort
+ * it, and lets retries pause without outliving a cancel.  Every
+ * {@link RpcCall} is one; requests shared between several calls (see
+ * {@link SingleFlight}) get one of their own.
+ */
+class CallHandle
+{
+    private HttpUriRequest request;
+    private Runnable cancelHook;
+    private boolean cancelled;
+
+    /**
+     * Cancels the work, aborting any request in progress.  Safe to call
+     * from any thread, before or during execution.
+     */
+    void cancel()
+    {
+        HttpUriRequest requestToAbort;
+        Runnable hook;
+        synchronized (this) {
+            cancelled = true;
+            requestToAbort = request;
+            hook = cancelHook;
+            // wake up any pause
+            notifyAll();
+        }
+        // run these outside our lock, since they may need other locks
+        if (requestToAbort != null) {
+            requestToAbort.abort();
+        }
+        if (hook != null) {
+            hook.run();
+        }
+    }
+
+    /**
+     * Waits (e.g. before a retry), returning early if the work is
+     * cancelled or the thread is interrupted.
+     *
+     * @param millis how long to wait
+     * @param clock clock to wait by
+     *
+     * @return false if the work has been cancelled or the thread
+     * interrupted
+     */
+    synchronized boolean pause(long millis, Clock clock)
+    {
+        long deadline = clock.elapsedRealtime() + millis;
+        while (!cancelled) {
+            long remaining = deadline - clock.elapsedRealtime();
+            if (remaining <= 0) {
+                return true;
+            }
+            try {
+                clock.await(this, remaining);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return false;
+    }
+
+    synchronized boolean isCancelled()
+    {
+        return cancelled;
+    }
+
+    /**
+     * Registers the HTTP request currently being made, so that it can be
+     * aborted.
+     */
+    synchronized void setRequest(HttpUriRequest request)
+    {
+        this.request = request;
+        if (cancelled && (request != null)) {
+            request.abort();
+        }
+    }
+
+    /**
+     * Registers an action to run if the work is cancelled while the
+     * hook is set (or runs it right away if it already has been).
+     *
+     * @param cancelHook action to run, or null to clear
+     */
+    void setCancelHook(Runnable cancelHook)
+    {
+        boolean runNow;
+        synchronized (this) {
+            this.cancelHook = cancelHook;
+            runNow = cancelled && (cancelHook != null);
+        }
+        if (runNow) {
+            cancelHook.run();
+        }
+    }
+}
@@ -0,0 +1,144 @@
+/**
+ * Copyright 2012 Lingering Socket Labs
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.lingeringsocket.mobflare;
+
+import android.util.*;
+
+/**
+ * Fails coordinator requests fast while the coordinator appears to be
+ * down, rather than letting every client keep hammering it.  After a run
+ * of consecutive failures the breaker opens for a while; once that
+ * expires, a single probe request is let through, and its outcome either
+ * closes the breaker or reopens it for twice as long.
+ */
+class CircuitBreaker
+{
+    private static String LOGTAG = "CircuitBreaker";
+
+    private static final int CLOSED = 0;
+    private static final int OPEN = 1;
+    private static final int HALF_OPEN = 2;
+
+    private final int failureThreshold;
+    private final long minOpenMillis;
+    private final long maxOpenMillis;
+    private final Clock clock;
+
+    private int state = CLOSED;
+    private int consecutiveFailures;
+    private long openMillis;
+    private long openUntil;
+    private long probeDeadline;
+
+    /**
+     * @param failureThreshold consecutive failures which open the breaker
+     * @param minOpenMillis how long the breaker first stays open
+     * @param maxOpenMillis longest the breaker stays open
+     * @param clock source of time
+     */
+    CircuitBreaker(
+        int failureThreshold, long minOpenMillis, long maxOpenMillis,
+        Clock clock)
+    {
+        this.failureThreshold = failureThreshold;
+        this.minOpenMillis = minOpenMillis;
+        this.maxOpenMillis = maxOpenMillis;
+        this.clock = clock;
+        openMillis = minOpenMillis;
+    }
+
+    /**
+     * @return whether a request may be attempted now
+     */
+    synchronized boolean allowRequest()
+    {
+        long now = clock.elapsedRealtime();
+        switch (state) {
+        case CLOSED:
+            return true;
+        case OPEN:
+            if (now < openUntil) {
+                return false;
+            }
+            state = HALF_OPEN;
+            probeDeadline = now + openMillis;
+            return true;
+        default:
+            // one probe at a time, unless the last one has been
+            // abandoned without an outcome
+            if (now < probeDeadline) {
+                return false;
+            }
+            probeDeadline = now + openMillis;
+            return true;
+        }
+    }
+
+    synchronized void recordSuccess()
+    {
+        state = CLOSED;
+        consecutiveFailures = 0;
+        openMillis = minOpenMillis;
+    }
+
+    synchronized void recordFailure()
+    {
+        if (state == HALF_OPEN) {
+            openMillis = Math.min(openMillis * 2, maxOpenMillis);
+            open(openMillis);
+            return;
+        }
+        ++consecutiveFailures;
+        if ((state == CLOSED) && (consecutiveFailures >= failureThreshold)) {
+            open(openMillis);
+        }
+    }
+
+    /**
+     * Opens the breaker for at least the given time, e.g. because the
+     * coordinator asked for that with Retry-After.
+     */
+    synchronized void tripFor(long millis)
+    {
+        long until = clock.elapsedRealtime() + millis;
+        if ((state != OPEN) || (until > openUntil)) {
+            state = OPEN;
+            openUntil = until;
+        }
+    }
+
+    /**
+     * @return whether requests are flowing normally (unlike
+     * {@link #allowRequest}, this never claims the probe)
+     */
+    synchronized boolean isClosed()
+    {
+        return state == CLOSED;
+    }
+
+    synchronized boolean isOpen()
+    {
+        return (state == OPEN) && (clock.elapsedRealtime() < openUntil);
+    }
+
+    private void open(long millis)
+    {
+        Log.w(LOGTAG, "Coordinator failing; backing off for "
+            + millis + " ms");
+        state = OPEN;
+        openUntil = clock.elapsedRealtime() + millis;
+    }
+}
@@ -0,0 +1,63 @@
+/**
+ * Copyright 2012 Lingering Socket Labs
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.lingeringsocket.mobflare;
+
+/**
+ * Source of time, abstracted so that timing policies can be exercised
+ * with a fake clock.
+ */
+abstract class Clock
+{
+    /**
+     * The real clock.
+     */
+    static final Clock SYSTEM = new Clock()
+        {
+            @Override
+            long elapsedRealtime()
+            {
+                return android.os.SystemClock.elapsedRealtime();
+            }
+
+            @Override
+            long currentTimeMillis()
+            {
+                return System.currentTimeMillis();
+            }
+        };
+
+    /**
+     * @return monotonic milliseconds since boot, including time spent
+     * in deep sleep
+     */
+    abstract long elapsedRealtime();
+
+    /**
+     * @return wall clock time in milliseconds since the epoch (subject
+     * to jumps when the user or the network changes the clock)
+     */
+    abstract long currentTimeMillis();
+
+    /**
+     * Waits on a monitor (which the caller must hold) for up to the
+     * given time, as measured by this clock.  The real clock just
+     * waits; a fake one can advance itself instead.
+     */
+    void await(Object monitor, long millis) throws InterruptedException
+    {
+        monitor.wait(millis);
+    }
+}
@@ -0,0 +1,276 @@
+/**
+ * Copyright 2012 Lingering Socket Labs
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.lingeringsocket.mobflare;
+
+/**
+ * Estimates the coordinator's clock from the timestamps on its
+ * responses, so that flares can be scheduled against the coordinator's
+ * notion of time rather than each device's own (which may be off by
+ * seconds).  Works like an NTP client's clock filter: each exchange
+ * bounds the offset to an interval (its round trip plus the resolution
+ * of the coordinator's timestamp), the estimate is the intersection of
+ * those intervals, and the drift of the local clock relative to the
+ * coordinator's is estimated from all of them, weighted by how tight
+ * they are.  Offsets are kept relative to elapsedRealtime, so changes
+ * to the device's wall clock don't disturb the estimate.  A wall clock
+ * which is already within the uncertainty of the estimate (e.g. one set
+ * by NTP) is more accurate than the estimate can tell, so it is used
+ * as is.
+ */
+class ClockSync
+{
+    // samples kept for filtering and drift estimation
+    private static final int MAX_SAMPLES = 16;
+
+    // drift is only estimated from at least this many samples, over at
+    // least this span
+    private static final int MIN_DRIFT_SAMPLES = 4;
+    private static final long MIN_DRIFT_SPAN_MILLIS = 60000;
+
+    // bound on believable drift (crystals are typically within 100 ppm)
+    private static final double MAX_DRIFT = 500e-6;
+
+    // residual drift assumed when aging the error of a sample
+    private static final double AGING_DRIFT = 100e-6;
+
+    private final Clock clock;
+    private final long [] sampleTimes = new long[MAX_SAMPLES];
+    private final long [] sampleOffsets = new long[MAX_SAMPLES];
+    private final long [] sampleErrors = new long[MAX_SAMPLES];
+    private int sampleCount;
+    private int nextSample;
+
+    // current estimate:  server time is approximately
+    // elapsedRealtime + baseOffset + drift * (elapsedRealtime - baseTime)
+    private long baseTime;
+    private long baseOffset;
+    private long baseError;
+    private double drift;
+
+    /**
+     * @param clock local source of time
+     */
+    ClockSync(Clock clock)
+    {
+        this.clock = clock;
+    }
+
+    /**
+     * Records one request/response exchange with the coordinator.
+     *
+     * @param requestTime local elapsedRealtime when the request was sent
+     * @param responseTime local elapsedRealtime when the response arrived
+     * @param serverTime coordinator time (milliseconds since the epoch)
+     * stamped on the response, truncated to its resolution
+     * @param resolutionMillis resolution of serverTime (e.g. 1000 for
+     * an HTTP Date header)
+     */
+    synchronized void addSample(
+        long requestTime, long responseTime, long serverTime,
+        long resolutionMillis)
+    {
+        long roundTrip = responseTime - requestTime;
+        if (roundTrip < 0) {
+            return;
+        }
+        // the coordinator stamped the response somewhere between our
+        // request and its arrival
+        long midpoint = requestTime + (roundTrip / 2);
+        int i = nextSample;
+        sampleTimes[i] = midpoint;
+        sampleOffsets[i] = serverTime + (resolutionMillis / 2) - midpoint;
+        sampleErrors[i] = ((roundTrip + resolutionMillis) + 1) / 2;
+        nextSample = (nextSample + 1) % MAX_SAMPLES;
+        if (sampleCount < MAX_SAMPLES) {
+            ++sampleCount;
+        }
+        recompute();
+    }
+
+    private void recompute()
+    {
+        long now = clock.elapsedRealtime();
+        // the sample with the tightest bound is the reference for the
+        // drift fit, and the fallback if the samples disagree
+        int best = -1;
+        long bestError = Long.MAX_VALUE;
+        for (int i = 0; i < sampleCount; ++i) {
+            long error = agedError(i, now);
+            if (error < bestError) {
+                best = i;
+                bestError = error;
+            }
+        }
+
+        // least squares fit of offset against time, weighting each
+        // sample by the inverse square of its error
+        double sumW = 0;
+        double sumT = 0;
+        double sumO = 0;
+        long minTime = Long.MAX_VALUE;
+        long maxTime = Long.MIN_VALUE;
+        for (int i = 0; i < sampleCount; ++i) {
+            double w = weight(i);
+            sumW += w;
+            sumT += w * (sampleTimes[i] - sampleTimes[best]);
+            sumO += w * (sampleOffsets[i] - sampleOffsets[best]);
+            minTime = Math.min(minTime, sampleTimes[i]);
+            maxTime = Math.max(maxTime, sampleTimes[i]);
+        }
+        double slope = 0;
+        if ((sampleCount >= MIN_DRIFT_SAMPLES)
+            && (maxTime - minTime >= MIN_DRIFT_SPAN_MILLIS))
+        {
+            double meanT = sumT / sumW;
+            double meanO = sumO / sumW;
+            double sxx = 0;
+            double sxy = 0;
+            for (int i = 0; i < sampleCount; ++i) {
+                double w = weight(i);
+                double dt = sampleTimes[i] - sampleTimes[best] - meanT;
+                double dO = sampleOffsets[i] - sampleOffsets[best] - meanO;
+                sxx += w * dt * dt;
+                sxy += w * dt * dO;
+            }
+            if (sxx > 0) {
+                slope = Math.max(-MAX_DRIFT, Math.min(MAX_DRIFT, sxy / sxx));
+            }
+        }
+
+        drift = slope;
+
+        // each sample's interval, carried forward to now; a timestamp
+        // truncated to whole seconds only bounds the offset to within a
+        // second, but samples truncated at different phases narrow it
+        // down between them
+        long low = Long.MIN_VALUE;
+        long high = Long.MAX_VALUE;
+        for (int i = 0; i < sampleCount; ++i) {
+            long offset = sampleOffsets[i]
+                + Math.round(slope * (now - sampleTimes[i]));
+            long error = agedError(i, now);
+            low = Math.max(low, offset - error);
+            high = Math.min(high, offset + error);
+        }
+        if (low <= high) {
+            baseTime = now;
+            baseOffset = low + ((high - low) / 2);
+            baseError = ((high - low) + 1) / 2;
+        } else {
+            // inconsistent, e.g. because the coordinator's clock was
+            // stepped; trust the tightest sample alone
+            baseTime = sampleTimes[best];
+            baseOffset = sampleOffsets[best];
+            baseError = sampleErrors[best];
+        }
+    }
+
+    private double weight(int i)
+    {
+        double error = Math.max(1, sampleErrors[i]);
+        return 1 / (error * error);
+    }
+
+    private long agedError(int i, long now)
+    {
+        return sampleErrors[i]
+            + (long) (Math.abs(now - sampleTimes[i]) * AGING_DRIFT);
+    }
+
+    /**
+     * @return whether any samples have been recorded yet
+     */
+    synchronized boolean isSynchronized()
+    {
+        return sampleCount > 0;
+    }
+
+    /**
+     * @return estimated coordinator time in milliseconds since the
+     * epoch, or the local wall clock if there is nothing to go on or it
+     * agrees with the estimate to within its uncertainty
+     */
+    synchronized long currentServerTimeMillis()
+    {
+        long wallTime = clock.currentTimeMillis();
+        if (sampleCount == 0) {
+            return wallTime;
+        }
+        long now = clock.elapsedRealtime();
+        long estimate =
+            now + baseOffset + Math.round(drift * (now - baseTime));
+        if (Math.abs(wallTime - estimate) <= getUncertaintyMillis()) {
+            return wallTime;
+        }
+        return estimate;
+    }
+
+    /**
+     * @return estimated coordinator time minus the local wall clock
+     */
+    synchronized long getOffsetMillis()
+    {
+        return currentServerTimeMillis() - clock.currentTimeMillis();
+    }
+
+    /**
+     * @return bound on the error of {@link #currentServerTimeMillis},
+     * or -1 if there is nothing to go on
+     */
+    synchronized long getUncertaintyMillis()
+    {
+        if (sampleCount == 0) {
+            return -1;
+        }
+        long age = Math.abs(clock.elapsedRealtime() - baseTime);
+        return baseError + (long) (age * AGING_DRIFT);
+    }
+
+    /**
+     * @return estimated drift of the local clock relative to the
+     * coordinator's, in parts per million
+     */
+    synchronized double getDriftPpm()
+    {
+        return drift * 1e6;
+    }
+
+    synchronized int getSampleCount()
+    {
+        return sampleCount;
+    }
+
+    /**
+     * @return estimated coordinator time minus elapsedRealtime, for
+     * converting coordinator times into monotonic local ones
+     */
+    synchronized long getElapsedRealtimeOffset()
+    {
+        return currentServerTimeMillis() - clock.elapsedRealtime();
+    }
+
+    @Override
+    public synchronized String toString()
+    {
+        if (sampleCount == 0) {
+            return "unsynchronized";
+        }
+        return "offset " + getOffsetMillis() + " ms +/- "
+            + getUncertaintyMillis() + " ms, drift "
+            + Math.round(getDriftPpm()) + " ppm, "
+            + sampleCount + " samples";
+    }
+}
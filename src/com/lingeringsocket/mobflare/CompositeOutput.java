@@ -0,0 +1,323 @@
+/**
+ * Copyright 2012 Lingering Socket Labs
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.lingeringsocket.mobflare;
+
+import java.util.*;
+
+import android.content.*;
+import android.util.*;
+
+/**
+ * Drives several outputs from the same edges.  Each backend gets a
+ * worker thread of its own, so that a slow backend (like the camera)
+ * never holds up a fast one (like the screen).  Backends are calibrated
+ * individually; the composite reports the largest lead of any of them
+ * to the flash scheduler, and each worker holds its edges back by the
+ * difference, so that all backends take effect together.  Backends can
+ * also come and go while edges are arriving (for outputs which only work
+ * while an activity is showing).
+ */
+class CompositeOutput implements FlareOutput
+{
+    private static String LOGTAG = "CompositeOutput";
+
+    private final List<Worker> workers = new ArrayList<Worker>();
+    private OutputCalibration calibration = new OutputCalibration(0, 0);
+    private boolean started;
+
+    /**
+     * Adds a backend, to be initialized along with the composite.
+     *
+     * @param backend output to drive
+     * @param label name to show for it
+     */
+    synchronized void add(FlareOutput backend, String label)
+    {
+        workers.add(new Worker(backend, label));
+    }
+
+    /**
+     * Adds a backend after the composite is already in use.  The lead
+     * reported to the scheduler stays as it was, so a backend slower
+     * than all the others will be late by the difference.
+     *
+     * @param backend output to drive, already initialized
+     * @param label name to show for it
+     * @param backendCalibration the backend's own calibration
+     */
+    synchronized void attach(
+        FlareOutput backend, String label,
+        OutputCalibration backendCalibration)
+    {
+        Worker worker = new Worker(backend, label);
+        worker.calibration = backendCalibration;
+        worker.updateDelays(calibration);
+        workers.add(worker);
+        if (started) {
+            worker.start();
+        }
+    }
+
+    /**
+     * Removes and releases a backend.
+     */
+    synchronized void detach(FlareOutput backend)
+    {
+        Iterator<Worker> iter = workers.iterator();
+        while (iter.hasNext()) {
+            Worker worker = iter.next();
+            if (worker.backend == backend) {
+                iter.remove();
+                if (started) {
+                    worker.stop();
+                }
+                worker.release();
+            }
+        }
+    }
+
+    synchronized int getBackendCount()
+    {
+        return workers.size();
+    }
+
+    synchronized FlareOutput getBackend(int i)
+    {
+        return workers.get(i).backend;
+    }
+
+    synchronized String getLabel(int i)
+    {
+        return workers.get(i).label;
+    }
+
+    /**
+     * Loads the saved calibration of each backend.
+     */
+    synchronized void loadCalibration(Context context)
+    {
+        long onLead = 0;
+        long offLead = 0;
+        for (Worker worker : workers) {
+            worker.calibration = OutputCalibration.load(context, worker.backend);
+            onLead = Math.max(onLead, worker.calibration.getOnLeadMicros());
+            offLead = Math.max(offLead, worker.calibration.getOffLeadMicros());
+        }
+        calibration = new OutputCalibration(onLead, offLead);
+        for (Worker worker : workers) {
+            worker.updateDelays(calibration);
+        }
+    }
+
+    /**
+     * @return the lead needed by the slowest backend
+     */
+    synchronized OutputCalibration getCalibration()
+    {
+        return calibration;
+    }
+
+    @Override
+    public synchronized void initialize(Context context)
+    {
+        for (Worker worker : workers) {
+            worker.backend.initialize(context);
+        }
+        // start the workers now rather than on the first edge, which
+        // would otherwise pay for it (and be out of line with the
+        // calibration); they are stopped on release
+        if (!started) {
+            for (Worker worker : workers) {
+                worker.start();
+            }
+            started = true;
+        }
+    }
+
+    @Override
+    public synchronized void beginOutput()
+    {
+        dispatch(true);
+    }
+
+    @Override
+    public synchronized void endOutput()
+    {
+        dispatch(false);
+    }
+
+    private void dispatch(boolean on)
+    {
+        long nanos = System.nanoTime();
+        for (Worker worker : workers) {
+            worker.post(on, nanos);
+        }
+    }
+
+    @Override
+    public synchronized void release()
+    {
+        if (started) {
+            for (Worker worker : workers) {
+                worker.stop();
+            }
+            started = false;
+        }
+        for (Worker worker : workers) {
+            worker.release();
+        }
+    }
+
+    /**
+     * Applies edges to one backend.  Only the most recent edge is kept
+     * pending, so a backend which falls a whole flash behind skips that
+     * flash rather than delaying every later one.
+     */
+    private static class Worker implements Runnable
+    {
+        final FlareOutput backend;
+        final String label;
+        final TimingHistogram fanOut;
+        final TimingHistogram latency;
+        OutputCalibration calibration = new OutputCalibration(0, 0);
+        volatile long onDelayNanos;
+        volatile long offDelayNanos;
+
+        private Thread thread;
+        private volatile boolean stopped;
+        private boolean hasPending;
+        private boolean pendingOn;
+        private long pendingNanos;
+
+        Worker(FlareOutput backend, String label)
+        {
+            this.backend = backend;
+            this.label = label;
+            fanOut = new TimingHistogram(label + " fan-out lateness");
+            latency = new TimingHistogram(label + " edge latency");
+        }
+
+        void start()
+        {
+            stopped = false;
+            synchronized (this) {
+                hasPending = false;
+            }
+            thread = new Thread(this, LOGTAG + "-" + label);
+            thread.start();
+        }
+
+        void stop()
+        {
+            stopped = true;
+            thread.interrupt();
+            try {
+                thread.join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            thread = null;
+        }
+
+        void updateDelays(OutputCalibration overall)
+        {
+            onDelayNanos = Math.max(
+                0,
+                overall.getOnLeadMicros() - calibration.getOnLeadMicros())
+                * 1000;
+            offDelayNanos = Math.max(
+                0,
+                overall.getOffLeadMicros() - calibration.getOffLeadMicros())
+                * 1000;
+        }
+
+        void release()
+        {
+            backend.release();
+            if (fanOut.getCount() > 0) {
+                Log.i(LOGTAG, fanOut.toString());
+                Log.i(LOGTAG, latency.toString());
+            }
+        }
+
+        synchronized void post(boolean on, long nanos)
+        {
+            pendingOn = on;
+            pendingNanos = nanos;
+            hasPending = true;
+            notify();
+        }
+
+        @Override
+        public void run()
+        {
+            android.os.Process.setThreadPriority(
+                android.os.Process.THREAD_PRIORITY_URGENT_DISPLAY);
+            boolean lit = false;
+            try {
+                while (!stopped) {
+                    boolean on;
+                    long targetNanos;
+                    synchronized (this) {
+                        while (!hasPending) {
+                            wait();
+                        }
+                        hasPending = false;
+                        on = pendingOn;
+                        targetNanos = pendingNanos
+                            + (on ? onDelayNanos : offDelayNanos);
+                    }
+                    if (on == lit) {
+                        continue;
+                    }
+                    if (!awaitNanos(targetNanos)) {
+                        break;
+                    }
+                    long startNanos = System.nanoTime();
+                    fanOut.record(startNanos - targetNanos);
+                    if (on) {
+                        backend.beginOutput();
+                    } else {
+                        backend.endOutput();
+                    }
+                    lit = on;
+                    latency.record(System.nanoTime() - startNanos);
+                }
+            } catch (InterruptedException ex) {
+                // stopped
+            } finally {
+                if (lit) {
+                    backend.endOutput();
+                }
+            }
+        }
+
+        private boolean awaitNanos(long targetNanos)
+            throws InterruptedException
+        {
+            long remainingNanos = targetNanos - System.nanoTime();
+            if (remainingNanos > 1000000) {
+                Thread.sleep((remainingNanos - 1000000) / 1000000);
+            }
+            while (System.nanoTime() < targetNanos) {
+                if (stopped) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,346 @@
+/**
+ * Copyright 2012 Lingering Socket Labs
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.lingeringsocket.mobflare;
+
+import java.util.*;
+
+/**
+ * Remembers the flares fetched by recent searches, bucketed in a grid of
+ * latitude/longitude cells, together with the circles those searches
+ * covered.  A later search which falls entirely inside a covered circle
+ * (a smaller radius, or a short move) can then be answered without
+ * asking the coordinator.  Searches expire after a while, since flares
+ * come and go, and memory is bounded by capping both the number of
+ * searches and the number of flares kept.
+ */
+class FlareIndex
+{
+    // searches older than this are asked again
+    static final long TTL_MILLIS = 2 * 60 * 1000;
+
+    // searches wider than this (like the whole-Earth one used when we
+    // don't know where we are) return too much to be worth keeping
+    static final float MAX_RADIUS_KM = 500;
+
+    static final int MAX_FLARES = 2000;
+
+    static final int MAX_COVERAGES = 8;
+
+    // about 11 km north to south
+    private static final double CELL_DEGREES = 0.1;
+
+    private static final double EARTH_RADIUS_KM = 6371.0088;
+
+    /**
+     * An area searched, and when.
+     */
+    private static class Coverage
+    {
+        final double latitude;
+        final double longitude;
+        final double radius;
+        final long fetchTime;
+
+        Coverage(double latitude, double longitude, double radius,
+            long fetchTime)
+        {
+            this.latitude = latitude;
+            this.longitude = longitude;
+            this.radius = radius;
+            this.fetchTime = fetchTime;
+        }
+
+        boolean contains(double latitude, double longitude, double radius)
+        {
+            return getDistance(
+                this.latitude, this.longitude, latitude, longitude)
+                + radius <= this.radius;
+        }
+    }
+
+    private final Clock clock;
+    private final LinkedList<Coverage> coverages = new LinkedList<Coverage>();
+    private final Map<Long, List<FlareSummary>> cells =
+        new HashMap<Long, List<FlareSummary>>();
+    private int flareCount;
+    private long hitCount;
+    private long missCount;
+
+    FlareIndex(Clock clock)
+    {
+        this.clock = clock;
+    }
+
+    /**
+     * Records the result of a search.  Results without coordinates for
+     * every flare can't be reused for other searches, so they are
+     * ignored.
+     *
+     * @param latitude center of the search
+     * @param longitude center of the search
+     * @param radius radius of the search in km
+     * @param flares every flare found (not just the nearest few)
+     */
+    synchronized void put(
+        double latitude, double longitude, double radius,
+        List<FlareSummary> flares)
+    {
+        if ((radius > MAX_RADIUS_KM) || (flares.size() > MAX_FLARES)) {
+            return;
+        }
+        for (FlareSummary flare : flares) {
+            if (Double.isNaN(flare.latitude)
+                || Double.isNaN(flare.longitude))
+            {
+                return;
+            }
+        }
+        expire();
+        Coverage coverage =
+            new Coverage(latitude, longitude, radius, clock.elapsedRealtime());
+
+        // whatever we had inside the new search has been superseded by it
+        // (including flares which are now gone)
+        removeFlares(coverage);
+
+        if (flareCount + flares.size() > MAX_FLARES) {
+            clear();
+        }
+        while (coverages.size() >= MAX_COVERAGES) {
+            coverages.removeFirst();
+        }
+        coverages.addLast(coverage);
+        for (FlareSummary flare : flares) {
+            Long key = getCellKey(flare.latitude, flare.longitude);
+            List<FlareSummary> cell = cells.get(key);
+            if (cell == null) {
+                cell = new ArrayList<FlareSummary>();
+                cells.put(key, cell);
+            }
+            cell.add(flare);
+            ++flareCount;
+        }
+        pruneUncovered();
+    }
+
+    /**
+     * Answers a search from the index, if some unexpired search covered
+     * the whole area.
+     *
+     * @param latitude center of the search
+     * @param longitude center of the search
+     * @param radius radius of the search in km
+     * @param orderedCount number of nearest flares to put in order (see
+     * {@link FlareRanking#rank}), or 0 for all of them
+     *
+     * @return flares found, with distances from the new center, or null
+     * if the coordinator needs to be asked
+     */
+    synchronized List<FlareSummary> find(
+        double latitude, double longitude, double radius, int orderedCount)
+    {
+        expire();
+        boolean covered = false;
+        for (Coverage coverage : coverages) {
+            if (coverage.contains(latitude, longitude, radius)) {
+                covered = true;
+                break;
+            }
+        }
+        if (!covered) {
+            ++missCount;
+            return null;
+        }
+        ++hitCount;
+        FlareRanking ranking = new FlareRanking();
+        for (List<FlareSummary> cell : getCandidateCells(
+                 latitude, longitude, radius))
+        {
+            for (FlareSummary flare : cell) {
+                double distance = getDistance(
+                    latitude, longitude, flare.latitude, flare.longitude);
+                if (distance <= radius) {
+                    ranking.add(flare.copyAt(distance));
+                }
+            }
+        }
+        return Collections.unmodifiableList(ranking.rank(orderedCount));
+    }
+
+    /**
+     * Forgets everything, e.g. after creating a flare which the index
+     * wouldn't know about.
+     */
+    synchronized void clear()
+    {
+        coverages.clear();
+        cells.clear();
+        flareCount = 0;
+    }
+
+    synchronized int size()
+    {
+        return flareCount;
+    }
+
+    /**
+     * @return number of searches answered from the index
+     */
+    synchronized long getHitCount()
+    {
+        return hitCount;
+    }
+
+    /**
+     * @return number of searches which had to go to the coordinator
+     */
+    synchronized long getMissCount()
+    {
+        return missCount;
+    }
+
+    private void expire()
+    {
+        long cutoff = clock.elapsedRealtime() - TTL_MILLIS;
+        boolean expired = false;
+        while (!coverages.isEmpty()
+            && (coverages.getFirst().fetchTime < cutoff))
+        {
+            coverages.removeFirst();
+            expired = true;
+        }
+        if (expired) {
+            pruneUncovered();
+        }
+    }
+
+    private void removeFlares(Coverage coverage)
+    {
+        Iterator<List<FlareSummary>> cellIter = cells.values().iterator();
+        while (cellIter.hasNext()) {
+            List<FlareSummary> cell = cellIter.next();
+            Iterator<FlareSummary> iter = cell.iterator();
+            while (iter.hasNext()) {
+                FlareSummary flare = iter.next();
+                if (coverage.contains(flare.latitude, flare.longitude, 0)) {
+                    iter.remove();
+                    --flareCount;
+                }
+            }
+            if (cell.isEmpty()) {
+                cellIter.remove();
+            }
+        }
+    }
+
+    private void pruneUncovered()
+    {
+        Iterator<List<FlareSummary>> cellIter = cells.values().iterator();
+        while (cellIter.hasNext()) {
+            List<FlareSummary> cell = cellIter.next();
+            Iterator<FlareSummary> iter = cell.iterator();
+            while (iter.hasNext()) {
+                if (!isCovered(iter.next())) {
+                    iter.remove();
+                    --flareCount;
+                }
+            }
+            if (cell.isEmpty()) {
+                cellIter.remove();
+            }
+        }
+    }
+
+    private boolean isCovered(FlareSummary flare)
+    {
+        for (Coverage coverage : coverages) {
+            if (coverage.contains(flare.latitude, flare.longitude, 0)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Finds the cells overlapping a search's bounding box, or all of
+     * them if there are fewer of those (e.g. near the poles, where the
+     * box spans every longitude).
+     */
+    private Collection<List<FlareSummary>> getCandidateCells(
+        double latitude, double longitude, double radius)
+    {
+        double latSpan = Math.toDegrees(radius / EARTH_RADIUS_KM);
+        double cosLat = Math.cos(
+            Math.toRadians(Math.min(Math.abs(latitude) + latSpan, 90)));
+        double lonSpan = (cosLat > 0) ? (latSpan / cosLat) : 360;
+        int minLat = getCell(latitude - latSpan);
+        int maxLat = getCell(latitude + latSpan);
+        int minLon = getCell(longitude - lonSpan);
+        int maxLon = getCell(longitude + lonSpan);
+        long boxCells = (long) (maxLat - minLat + 1) * (maxLon - minLon + 1);
+        if ((lonSpan >= 180) || (boxCells >= cells.size())) {
+            return cells.values();
+        }
+        List<List<FlareSummary>> result = new ArrayList<List<FlareSummary>>();
+        for (int i = minLat; i <= maxLat; ++i) {
+            for (int j = minLon; j <= maxLon; ++j) {
+                List<FlareSummary> cell = cells.get(getCellKey(i, wrap(j)));
+                if (cell != null) {
+                    result.add(cell);
+                }
+            }
+        }
+        return result;
+    }
+
+    private static int getCell(double degrees)
+    {
+        return (int) Math.floor(degrees / CELL_DEGREES);
+    }
+
+    private static int wrap(int lonCell)
+    {
+        // keep longitude cells within [-180, 180)
+        int count = (int) Math.round(360 / CELL_DEGREES);
+        int half = count / 2;
+        return ((((lonCell + half) % count) + count) % count) - half;
+    }
+
+    private static Long getCellKey(double latitude, double longitude)
+    {
+        return getCellKey(getCell(latitude), wrap(getCell(longitude)));
+    }
+
+    private static Long getCellKey(int latCell, int lonCell)
+    {
+        return (((long) latCell) << 32) | (lonCell & 0xffffffffL);
+    }
+
+    /**
+     * @return great-circle distance in km
+     */
+    static double getDistance(
+        double lat1, double lon1, double lat2, double lon2)
+    {
+        double dLat = Math.toRadians(lat2 - lat1);
+        double dLon = Math.toRadians(lon2 - lon1);
+        double a = Math.sin(dLat / 2) * Math.sin(dLat / 2)
+            + Math.cos(Math.toRadians(lat1)) * Math.cos(Math.toRadians(lat2))
+            * Math.sin(dLon / 2) * Math.sin(dLon / 2);
+        return 2 * EARTH_RADIUS_KM
+            * Math.atan2(Math.sqrt(a), Math.sqrt(1 - a));
+    }
+}
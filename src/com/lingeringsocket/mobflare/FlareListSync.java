@@ -0,0 +1,166 @@
+/**
+ * Copyright 2012 Lingering Socket Labs
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.lingeringsocket.mobflare;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Keeps the client's copy of one search's flare list in step with the
+ * coordinator.  After a complete list, each refresh asks only for the
+ * changes since the token that came with the last response; coordinators
+ * which don't keep a change log just keep sending complete lists.
+ */
+class FlareListSync
+{
+    /**
+     * A flare list response:  either a complete list (a bare array from
+     * older coordinators, or an object with "flares"), or the flares
+     * added, updated and removed since the token sent with the request.
+     */
+    static class Changes
+    {
+        String token;
+        boolean complete;
+        final List<FlareSummary> flares = new ArrayList<FlareSummary>();
+        final List<String> removed = new ArrayList<String>();
+
+        /**
+         * @return number of flares (or removals) the response carried
+         */
+        int size()
+        {
+            return flares.size() + removed.size();
+        }
+
+        /**
+         * Decodes a flare list response.  Unknown fields are skipped.
+         *
+         * @param reader reader positioned at the start of the response
+         *
+         * @return decoded changes
+         */
+        static Changes read(WireReader reader) throws IOException
+        {
+            Changes changes = new Changes();
+            if (reader.peek() == WireReader.Token.BEGIN_ARRAY) {
+                changes.complete = true;
+                readFlares(reader, changes.flares);
+                return changes;
+            }
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (reader.peek() == WireReader.Token.NULL) {
+                    reader.nextNull();
+                } else if (name.equals("token")) {
+                    changes.token = reader.nextString();
+                } else if (name.equals("flares")) {
+                    changes.complete = true;
+                    readFlares(reader, changes.flares);
+                } else if (name.equals("added") || name.equals("updated")) {
+                    readFlares(reader, changes.flares);
+                } else if (name.equals("removed")) {
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        changes.removed.add(reader.nextString());
+                    }
+                    reader.endArray();
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+            return changes;
+        }
+
+        private static void readFlares(
+            WireReader reader, List<FlareSummary> flares)
+            throws IOException
+        {
+            reader.beginArray();
+            while (reader.hasNext()) {
+                flares.add(FlareSummary.read(reader));
+            }
+            reader.endArray();
+        }
+    }
+
+    private String token;
+
+    // in the order the coordinator first sent them, which breaks ties
+    // in distance
+    private final Map<String, FlareSummary> flares =
+        new LinkedHashMap<String, FlareSummary>();
+
+    /**
+     * @return token to send with the next request, or null if a
+     * complete list is needed
+     */
+    synchronized String getToken()
+    {
+        return token;
+    }
+
+    /**
+     * Forgets the token, so that the next request fetches a complete
+     * list (e.g. because the coordinator no longer recognizes it).
+     */
+    synchronized void reset()
+    {
+        token = null;
+    }
+
+    /**
+     * Brings the list up to date with a response.
+     */
+    synchronized void apply(Changes changes)
+    {
+        if (changes.complete) {
+            flares.clear();
+        }
+        for (String name : changes.removed) {
+            flares.remove(name);
+        }
+        for (FlareSummary flare : changes.flares) {
+            flares.put(flare.name, flare);
+        }
+        token = changes.token;
+    }
+
+    /**
+     * @return every flare in the list, in arrival order
+     */
+    synchronized List<FlareSummary> getAll()
+    {
+        return new ArrayList<FlareSummary>(flares.values());
+    }
+
+    /**
+     * @param orderedCount number of nearest flares to put in order (see
+     * {@link FlareRanking#rank}), or 0 for all of them
+     *
+     * @return all flares, nearest first
+     */
+    synchronized List<FlareSummary> rank(int orderedCount)
+    {
+        FlareRanking ranking = new FlareRanking();
+        for (FlareSummary flare : flares.values()) {
+            ranking.add(flare);
+        }
+        return Collections.unmodifiableList(ranking.rank(orderedCount));
+    }
+}
@@ -22,6 +22,7 @@ import android.app.*;
 import android.content.*;
 import android.graphics.*;
 import android.graphics.drawable.*;
+import android.location.*;
 import android.os.*;
 import android.text.*;
 import android.text.method.*;
@@ -38,6 +39,7 @@ public class FlareName extends Activity
     private static String LOGTAG = "FlareName";
     private EditText editText;
     private RpcCoordinator rpcCoordinator;
+    private LocationRequest locationRequest;
 
     private String [] alphabet = {
         "Alpha",
@@ -92,39 +94,74 @@ public class FlareName extends Activity
         }
         editText.setText(sb.toString());
         rpcCoordinator = new RpcCoordinator(this);
+
+        // the fix we listed flares with may be too rough or too old to
+        // pin a new flare on; refine it while the user picks a name
+        if (LocationCache.getInstance(this).get(LocationCache.CREATION)
+            == null)
+        {
+            locationRequest = new LocationRequest(
+                this, LocationCache.CREATION);
+            locationRequest.start(LocationRequest.DEFAULT_TIMEOUT_MILLIS, null);
+        }
+    }
+
+    @Override
+    protected void onDestroy()
+    {
+        super.onDestroy();
+        if (locationRequest != null) {
+            locationRequest.cancel();
+            locationRequest = null;
+        }
     }
 
     public void onOkClicked(View v) 
     {
         CreateTask createTask = new CreateTask();
-        createTask.setCoordinator(rpcCoordinator);
-        createTask.execute();
+        createTask.executeInParallel();
     }
 
-    private class CreateTask extends RpcTask<Void, Void, String>
+    private class CreateTask extends RpcTask<Void, Void, FlareStatus>
     {
+        private String flareName;
+        private Bundle props;
+
         @Override
         protected void onPreExecute()
         {
+            props = new Bundle(getIntent().getExtras());
+            LocationCache cache = LocationCache.getInstance(FlareName.this);
+            Location location = cache.get(LocationCache.CREATION);
+            if (location == null) {
+                location = cache.getLatest();
+            }
+            if (location != null) {
+                // otherwise stick with the one Main passed along
+                props.putDouble(FlareTimer.LATITUDE, location.getLatitude());
+                props.putDouble(FlareTimer.LONGITUDE, location.getLongitude());
+            }
             progress = new ProgressDialog(FlareName.this);
             progress.setMessage(getString(R.string.creating_flare));
             super.onPreExecute();
         }
         
         @Override
-        protected String executeCall(Void... v) throws Exception
+        protected FlareStatus executeCall(Void... v) throws Exception
         {
-            String flareName = editText.getText().toString();
-            rpcCoordinator.createFlare(
-                flareName, getIntent().getExtras());
-            return flareName;
+            flareName = editText.getText().toString();
+            return runCall(rpcCoordinator.createFlare(flareName, props));
         }
 
         @Override
-        protected void onPostExecute(String flareName)
+        protected void onPostExecute(FlareStatus status)
         {
             Intent i = new Intent(FlareName.this, WaitFlare.class);
             i.putExtra(FlareTimer.FLARE_NAME, flareName);
+            if (status.isComplete() && status.hasParticipantNumber()) {
+                // already joined; WaitFlare can start from here
+                status.putExtras(i);
+            }
             startActivity(i);
             progress.dismiss();
             finish();
@@ -15,19 +15,25 @@
  */
 package com.lingeringsocket.mobflare;
 
-import android.app.*;
+import android.content.*;
 
 /**
  * Defines the abstraction for the output of a flare, such as a camera flash.
+ * Outputs normally live in {@link FlareService}, so that they keep
+ * running while no activity is showing; those which need a window (like
+ * {@link ScreenFlashOutput}) have to be given an activity instead.
+ * {@link #initialize} and {@link #release} are called on the UI thread;
+ * {@link #beginOutput} and {@link #endOutput} are called on the
+ * {@link FlashScheduler}'s thread, and should return quickly.
  */
 public interface FlareOutput
 {
     /**
      * Initializes the output method.
      *
-     * @param activity parent activity
+     * @param context owning service or activity
      */
-    public void initialize(Activity activity);
+    public void initialize(Context context);
 
     /**
      * Begins producing output (e.g. turns on the camera flash).
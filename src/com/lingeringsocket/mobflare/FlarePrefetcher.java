@@ -0,0 +1,299 @@
+/**
+ * Copyright 2012 Lingering Socket Labs
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.lingeringsocket.mobflare;
+
+import java.util.*;
+
+import android.content.*;
+import android.net.*;
+import android.telephony.*;
+import android.util.*;
+
+/**
+ * Fetches the status of the nearest listed flares in the background,
+ * so that {@link WaitFlare} can show quorum and join counts as soon as
+ * it opens instead of after a round trip.  At most a couple of fetches
+ * run at once, at background priority, each tried only once and without
+ * counting against the coordinator's circuit breaker (see
+ * {@link RpcCoordinator#prefetchFlare}); how many flares are prefetched
+ * depends on the kind of network we're on.  Statuses are only trusted
+ * for a short while, since join counts keep changing.
+ */
+class FlarePrefetcher
+{
+    private static String LOGTAG = "FlarePrefetcher";
+
+    static final long TTL_MILLIS = 30000;
+
+    private static final int MAX_CONCURRENCY = 2;
+
+    private static final int MAX_ENTRIES = 32;
+
+    // flares to prefetch, by kind of network
+    private static final int FAST_BUDGET = 8;
+    private static final int MOBILE_BUDGET = 4;
+    private static final int SLOW_BUDGET = 1;
+
+    private static class Entry
+    {
+        final FlareStatus status;
+        final long fetchTime;
+
+        Entry(FlareStatus status, long fetchTime)
+        {
+            this.status = status;
+            this.fetchTime = fetchTime;
+        }
+    }
+
+    private static FlarePrefetcher instance;
+
+    private final Context context;
+    private final RpcCoordinator rpcCoordinator;
+    private final Clock clock;
+    private final Map<String, Entry> entries;
+    private final LinkedList<String> queue = new LinkedList<String>();
+    private final Map<String, RpcCall<FlareStatus>> inFlight =
+        new HashMap<String, RpcCall<FlareStatus>>();
+    private int workerCount;
+
+    private long fetchCount;
+    private long hitCount;
+    private long missCount;
+
+    private FlarePrefetcher(Context context)
+    {
+        this(context, new RpcCoordinator(context), Clock.SYSTEM);
+    }
+
+    /**
+     * Creates a prefetcher of its own, for tests, which have no
+     * {@link Context} and so must override {@link #getBudget}.
+     */
+    FlarePrefetcher(RpcCoordinator rpcCoordinator, Clock clock)
+    {
+        this(null, rpcCoordinator, clock);
+    }
+
+    private FlarePrefetcher(
+        Context context, RpcCoordinator rpcCoordinator, Clock clock)
+    {
+        this.context = context;
+        this.rpcCoordinator = rpcCoordinator;
+        this.clock = clock;
+        entries = new LinkedHashMap<String, Entry>(MAX_ENTRIES, 0.75f, true)
+            {
+                @Override
+                protected boolean removeEldestEntry(
+                    Map.Entry<String, Entry> eldest)
+                {
+                    return size() > MAX_ENTRIES;
+                }
+            };
+    }
+
+    static synchronized FlarePrefetcher getInstance(Context context)
+    {
+        if (instance == null) {
+            instance = new FlarePrefetcher(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    /**
+     * Starts prefetching the first few of a freshly listed set of
+     * flares, replacing whatever was still queued from an earlier list.
+     *
+     * @param flares flares in display order
+     */
+    synchronized void prefetch(List<FlareSummary> flares)
+    {
+        queue.clear();
+        int budget = getBudget();
+        long cutoff = clock.elapsedRealtime() - TTL_MILLIS;
+        for (FlareSummary flare : flares) {
+            if (budget-- <= 0) {
+                break;
+            }
+            Entry entry = entries.get(flare.name);
+            if (((entry != null) && (entry.fetchTime >= cutoff))
+                || inFlight.containsKey(flare.name))
+            {
+                continue;
+            }
+            queue.add(flare.name);
+        }
+        while ((workerCount < MAX_CONCURRENCY)
+            && (workerCount < queue.size()))
+        {
+            ++workerCount;
+            new Worker().start();
+        }
+    }
+
+    /**
+     * Drops whatever hasn't been fetched yet and aborts fetches in
+     * progress, e.g. once the user has picked a flare and its own
+     * requests shouldn't have to compete.
+     */
+    void cancel()
+    {
+        List<RpcCall<FlareStatus>> calls;
+        synchronized (this) {
+            queue.clear();
+            calls = new ArrayList<RpcCall<FlareStatus>>(inFlight.values());
+        }
+        // outside our lock, since aborting a request can take a while
+        for (RpcCall<FlareStatus> call : calls) {
+            call.cancel();
+        }
+    }
+
+    /**
+     * Looks up a prefetched status.
+     *
+     * @return copy of the status, or null if none was fetched recently
+     */
+    synchronized FlareStatus get(String flareName)
+    {
+        Entry entry = entries.get(flareName);
+        if ((entry == null)
+            || (clock.elapsedRealtime() - entry.fetchTime > TTL_MILLIS))
+        {
+            ++missCount;
+            return null;
+        }
+        ++hitCount;
+        return entry.status.copy();
+    }
+
+    /**
+     * @return whether nothing is queued or being fetched
+     */
+    synchronized boolean isIdle()
+    {
+        return (workerCount == 0) && inFlight.isEmpty();
+    }
+
+    @Override
+    public synchronized String toString()
+    {
+        long lookups = hitCount + missCount;
+        StringBuilder sb = new StringBuilder();
+        sb.append(fetchCount).append(" fetched, ");
+        sb.append(hitCount).append(" of ").append(lookups);
+        sb.append(" lookups hit");
+        if (lookups > 0) {
+            sb.append(" (").append((100 * hitCount) / lookups).append("%)");
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return number of flares worth prefetching on the current network
+     */
+    int getBudget()
+    {
+        ConnectivityManager connectivityManager = (ConnectivityManager)
+            context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        NetworkInfo info = connectivityManager.getActiveNetworkInfo();
+        if ((info == null) || !info.isConnected() || info.isRoaming()
+            || !connectivityManager.getBackgroundDataSetting())
+        {
+            return 0;
+        }
+        if (info.getType() != ConnectivityManager.TYPE_MOBILE) {
+            return FAST_BUDGET;
+        }
+        switch (info.getSubtype()) {
+        case TelephonyManager.NETWORK_TYPE_GPRS:
+        case TelephonyManager.NETWORK_TYPE_EDGE:
+        case TelephonyManager.NETWORK_TYPE_CDMA:
+        case TelephonyManager.NETWORK_TYPE_1xRTT:
+            return SLOW_BUDGET;
+        default:
+            return MOBILE_BUDGET;
+        }
+    }
+
+    /**
+     * Dequeues the next flare to fetch, and creates the call for it
+     * (tracked so that {@link #cancel} can abort it).
+     *
+     * @return flare name, or null if there are none left, in which case
+     * the worker should exit
+     */
+    private synchronized String takeNext()
+    {
+        String flareName = queue.poll();
+        if (flareName == null) {
+            --workerCount;
+        } else {
+            inFlight.put(flareName, rpcCoordinator.prefetchFlare(flareName));
+        }
+        return flareName;
+    }
+
+    private synchronized void finish(
+        String flareName, RpcCall<FlareStatus> call, FlareStatus status)
+    {
+        inFlight.remove(flareName);
+        if (call.isCancelled()) {
+            return;
+        }
+        ++fetchCount;
+        if (status == null) {
+            entries.remove(flareName);
+        } else {
+            entries.put(
+                flareName, new Entry(status, clock.elapsedRealtime()));
+        }
+    }
+
+    private class Worker extends Thread
+    {
+        Worker()
+        {
+            super(LOGTAG);
+        }
+
+        @Override
+        public void run()
+        {
+            android.os.Process.setThreadPriority(
+                android.os.Process.THREAD_PRIORITY_BACKGROUND);
+            for (;;) {
+                String flareName;
+                RpcCall<FlareStatus> call;
+                synchronized (FlarePrefetcher.this) {
+                    flareName = takeNext();
+                    if (flareName == null) {
+                        return;
+                    }
+                    call = inFlight.get(flareName);
+                }
+                FlareStatus status;
+                try {
+                    status = call.execute();
+                } catch (RpcException ex) {
+                    Log.d(LOGTAG, "Prefetch of " + flareName + " failed", ex);
+                    status = null;
+                }
+                finish(flareName, call, status);
+            }
+        }
+    }
+}
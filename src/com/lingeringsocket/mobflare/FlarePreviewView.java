@@ -0,0 +1,214 @@
+/**
+ * Copyright 2012 Lingering Socket Labs
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.lingeringsocket.mobflare;
+
+import android.content.*;
+import android.graphics.*;
+import android.os.*;
+import android.util.*;
+import android.view.*;
+
+/**
+ * Animates a row of participants flashing in a given pattern, computed
+ * from the same {@link FlareSchedule} math the timer uses.  Everything
+ * drawn is allocated up front (or when the size or pattern changes), and
+ * each frame only invalidates the cells which changed, at the moment
+ * the next one is due to change.
+ */
+public class FlarePreviewView extends View
+{
+    private static final int CELL_COUNT = 5;
+
+    // one-shot patterns start over after this long
+    private static final long LOOP_MILLIS = 2500;
+
+    private final FlareSchedule [] schedules = new FlareSchedule[CELL_COUNT];
+    private final boolean [] lit = new boolean[CELL_COUNT];
+    private final Rect [] cellRects = new Rect[CELL_COUNT];
+    private final Rect clipRect = new Rect();
+    private final Paint darkPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint bitmapPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private Bitmap flareBitmap;
+    private long startTime;
+    private boolean running;
+
+    private final Runnable frame = new Runnable()
+        {
+            public void run()
+            {
+                onFrame();
+            }
+        };
+
+    public FlarePreviewView(Context context, AttributeSet attrs)
+    {
+        super(context, attrs);
+        darkPaint.setColor(Color.DKGRAY);
+        for (int i = 0; i < CELL_COUNT; ++i) {
+            cellRects[i] = new Rect();
+        }
+        setPattern(0, 0);
+    }
+
+    /**
+     * Selects the pattern to show.
+     *
+     * @param repeatDeciSeconds interval between flashes, or 0 for one
+     * @param staggerDeciSeconds delay between successive participants
+     */
+    void setPattern(int repeatDeciSeconds, int staggerDeciSeconds)
+    {
+        for (int i = 0; i < CELL_COUNT; ++i) {
+            // a one-second countdown starting at 0 puts the first
+            // participant's first flash at 0
+            schedules[i] = new FlareSchedule(
+                0, 1, repeatDeciSeconds, staggerDeciSeconds, i);
+        }
+        startTime = SystemClock.uptimeMillis();
+        if (running) {
+            removeCallbacks(frame);
+            onFrame();
+        }
+    }
+
+    /**
+     * Starts animating.
+     */
+    void start()
+    {
+        if (!running) {
+            running = true;
+            onFrame();
+        }
+    }
+
+    /**
+     * Stops animating (e.g. while the activity is paused).
+     */
+    void stop()
+    {
+        running = false;
+        removeCallbacks(frame);
+    }
+
+    @Override
+    protected void onDetachedFromWindow()
+    {
+        super.onDetachedFromWindow();
+        stop();
+    }
+
+    @Override
+    protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec)
+    {
+        int width = getDefaultSize(getSuggestedMinimumWidth(), widthMeasureSpec);
+        int cellSize = (width - getPaddingLeft() - getPaddingRight())
+            / CELL_COUNT;
+        setMeasuredDimension(
+            width,
+            resolveSize(
+                cellSize + getPaddingTop() + getPaddingBottom(),
+                heightMeasureSpec));
+    }
+
+    @Override
+    protected void onSizeChanged(int w, int h, int oldw, int oldh)
+    {
+        int left = getPaddingLeft();
+        int top = getPaddingTop();
+        int columnWidth = (w - left - getPaddingRight()) / CELL_COUNT;
+        int size = Math.min(columnWidth, h - top - getPaddingBottom());
+        int inset = size / 8;
+        size -= 2 * inset;
+        if (size <= 0) {
+            return;
+        }
+        for (int i = 0; i < CELL_COUNT; ++i) {
+            int x = left + (i * columnWidth) + ((columnWidth - size) / 2);
+            int y = top + inset;
+            cellRects[i].set(x, y, x + size, y + size);
+        }
+        // scale the artwork once, rather than on every draw
+        if ((flareBitmap == null) || (flareBitmap.getWidth() != size)) {
+            Bitmap original = BitmapFactory.decodeResource(
+                getResources(), R.drawable.flare);
+            if (flareBitmap != null) {
+                flareBitmap.recycle();
+            }
+            flareBitmap = Bitmap.createScaledBitmap(original, size, size, true);
+            if (flareBitmap != original) {
+                original.recycle();
+            }
+        }
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas)
+    {
+        canvas.getClipBounds(clipRect);
+        for (int i = 0; i < CELL_COUNT; ++i) {
+            Rect rect = cellRects[i];
+            if (!Rect.intersects(rect, clipRect)) {
+                continue;
+            }
+            if (lit[i] && (flareBitmap != null)) {
+                canvas.drawBitmap(flareBitmap, rect.left, rect.top, bitmapPaint);
+            } else {
+                canvas.drawCircle(
+                    rect.exactCenterX(), rect.exactCenterY(),
+                    rect.width() / 4f, darkPaint);
+            }
+        }
+    }
+
+    private long getPreviewTime()
+    {
+        long time = SystemClock.uptimeMillis() - startTime;
+        if (!schedules[0].isRepeating()) {
+            time %= LOOP_MILLIS;
+        }
+        return time;
+    }
+
+    private void onFrame()
+    {
+        if (!running) {
+            return;
+        }
+        long time = getPreviewTime();
+        long nextChange = Long.MAX_VALUE;
+        for (int i = 0; i < CELL_COUNT; ++i) {
+            FlareSchedule schedule = schedules[i];
+            long flashTime = schedule.getNextFlashTime(time);
+            boolean on = (flashTime >= 0) && (flashTime <= time);
+            if (on != lit[i]) {
+                lit[i] = on;
+                invalidate(cellRects[i]);
+            }
+            if (on) {
+                nextChange = Math.min(
+                    nextChange, flashTime + FlareSchedule.FLASH_MILLIS);
+            } else if (flashTime >= 0) {
+                nextChange = Math.min(nextChange, flashTime);
+            }
+        }
+        if (!schedules[0].isRepeating()) {
+            // start over at the end of the loop
+            nextChange = Math.min(nextChange, LOOP_MILLIS);
+        }
+        postDelayed(frame, Math.max(1, nextChange - time));
+    }
+}
@@ -0,0 +1,198 @@
+/**
+ * Copyright 2012 Lingering Socket Labs
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.lingeringsocket.mobflare;
+
+import java.util.*;
+
+/**
+ * Orders flares by distance.  Distances are kept in a primitive array
+ * parallel to the flares themselves, and ties are broken by arrival
+ * order, so equal distances (which actually come up during testing on
+ * an emulator) keep the order the coordinator sent them in.
+ */
+class FlareRanking
+{
+    private static final int INSERTION_SORT_THRESHOLD = 8;
+
+    private double [] distances = new double[16];
+    private FlareSummary [] flares = new FlareSummary[16];
+    private int size;
+
+    void add(FlareSummary flare)
+    {
+        if (size == flares.length) {
+            // no Arrays.copyOf before API level 9
+            double [] newDistances = new double[size * 2];
+            System.arraycopy(distances, 0, newDistances, 0, size);
+            distances = newDistances;
+            FlareSummary [] newFlares = new FlareSummary[size * 2];
+            System.arraycopy(flares, 0, newFlares, 0, size);
+            flares = newFlares;
+        }
+        distances[size] = flare.distance;
+        flares[size] = flare;
+        ++size;
+    }
+
+    int size()
+    {
+        return size;
+    }
+
+    /**
+     * Produces all of the flares, nearest first.
+     *
+     * @param orderedCount number of nearest flares to put in order, or 0
+     * for all of them; when smaller than the number of flares, the rest
+     * (none of them nearer than the last ordered one) follow in arrival
+     * order, for {@link #sortByDistance} to finish off if they're ever
+     * needed
+     *
+     * @return ranked flares
+     */
+    List<FlareSummary> rank(int orderedCount)
+    {
+        int [] order;
+        if ((orderedCount > 0) && (orderedCount < size)) {
+            int [] nearest = selectNearest(orderedCount);
+            boolean [] placed = new boolean[size];
+            for (int i : nearest) {
+                placed[i] = true;
+            }
+            order = new int[size];
+            System.arraycopy(nearest, 0, order, 0, orderedCount);
+            int n = orderedCount;
+            for (int i = 0; i < size; ++i) {
+                if (!placed[i]) {
+                    order[n++] = i;
+                }
+            }
+        } else {
+            order = new int[size];
+            for (int i = 0; i < size; ++i) {
+                order[i] = i;
+            }
+            mergeSort(order, new int[size], 0, size);
+        }
+        List<FlareSummary> result = new ArrayList<FlareSummary>(order.length);
+        for (int i : order) {
+            result.add(flares[i]);
+        }
+        return result;
+    }
+
+    /**
+     * Sorts flares by distance in place.  The sort is stable, so flares
+     * left in arrival order by {@link #rank} keep breaking ties that way.
+     */
+    static void sortByDistance(List<FlareSummary> flares)
+    {
+        Collections.sort(flares, new Comparator<FlareSummary>()
+            {
+                public int compare(FlareSummary a, FlareSummary b)
+                {
+                    return Double.compare(a.distance, b.distance);
+                }
+            });
+    }
+
+    private boolean precedes(int i, int j)
+    {
+        int c = Double.compare(distances[i], distances[j]);
+        return (c < 0) || ((c == 0) && (i < j));
+    }
+
+    /**
+     * Keeps the k nearest flares in a bounded max-heap (farthest at the
+     * root), then heapsorts them in place.
+     */
+    private int [] selectNearest(int k)
+    {
+        int [] heap = new int[k];
+        for (int i = 0; i < k; ++i) {
+            heap[i] = i;
+        }
+        for (int i = (k / 2) - 1; i >= 0; --i) {
+            siftDown(heap, i, k);
+        }
+        for (int i = k; i < size; ++i) {
+            if (precedes(i, heap[0])) {
+                heap[0] = i;
+                siftDown(heap, 0, k);
+            }
+        }
+        for (int end = k - 1; end > 0; --end) {
+            int tmp = heap[0];
+            heap[0] = heap[end];
+            heap[end] = tmp;
+            siftDown(heap, 0, end);
+        }
+        return heap;
+    }
+
+    private void siftDown(int [] heap, int i, int n)
+    {
+        int x = heap[i];
+        for (;;) {
+            int child = (2 * i) + 1;
+            if (child >= n) {
+                break;
+            }
+            if ((child + 1 < n) && precedes(heap[child], heap[child + 1])) {
+                ++child;
+            }
+            if (!precedes(x, heap[child])) {
+                break;
+            }
+            heap[i] = heap[child];
+            i = child;
+        }
+        heap[i] = x;
+    }
+
+    private void mergeSort(int [] a, int [] tmp, int lo, int hi)
+    {
+        if (hi - lo <= INSERTION_SORT_THRESHOLD) {
+            for (int i = lo + 1; i < hi; ++i) {
+                int x = a[i];
+                int j = i - 1;
+                while ((j >= lo) && precedes(x, a[j])) {
+                    a[j + 1] = a[j];
+                    --j;
+                }
+                a[j + 1] = x;
+            }
+            return;
+        }
+        int mid = (lo + hi) >>> 1;
+        mergeSort(a, tmp, lo, mid);
+        mergeSort(a, tmp, mid, hi);
+        if (!precedes(a[mid], a[mid - 1])) {
+            // already in order
+            return;
+        }
+        System.arraycopy(a, lo, tmp, lo, hi - lo);
+        int i = lo;
+        int j = mid;
+        for (int k = lo; k < hi; ++k) {
+            if ((j >= hi) || ((i < mid) && !precedes(tmp[j], tmp[i]))) {
+                a[k] = tmp[i++];
+            } else {
+                a[k] = tmp[j++];
+            }
+        }
+    }
+}
@@ -0,0 +1,236 @@
+/**
+ * Copyright 2012 Lingering Socket Labs
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.lingeringsocket.mobflare;
+
+/**
+ * Turns a flare's parameters into one participant's timeline of flashes.
+ * All four kinds of flare (once, repeat, wave and wave-repeat) come down
+ * to a first flash, offset by the participant's place in the wave, and
+ * an optional repeat interval.  Each flash begins as the participant's
+ * countdown display reaches zero.  The schedule itself is immutable;
+ * playback goes through a {@link Cursor}, which keeps a block of
+ * upcoming edge times in a primitive array, regenerating it in place as
+ * an endlessly repeating flare goes on.
+ */
+class FlareSchedule
+{
+    // each flash begins as the countdown display reaches zero
+    static final long FLASH_LEAD_MILLIS = 1000;
+
+    static final long FLASH_MILLIS = 100;
+
+    // flashes whose edges a cursor keeps precomputed at once
+    private static final int BLOCK_FLASHES = 16;
+
+    private final long countdownStartTime;
+    private final int countdownSeconds;
+    private final int repeatDeciSeconds;
+    private final int staggerDeciSeconds;
+    private final int participantNumber;
+
+    private final long firstCountdownEnd;
+    private final long repeatMillis;
+
+    /**
+     * @param countdownStartTime coordinator time when the countdown began
+     * @param countdownSeconds length of the countdown
+     * @param repeatDeciSeconds interval between flashes, or 0 for one
+     * @param staggerDeciSeconds delay between successive participants
+     * @param participantNumber our place in the wave, from 0
+     */
+    FlareSchedule(
+        long countdownStartTime, int countdownSeconds, int repeatDeciSeconds,
+        int staggerDeciSeconds, int participantNumber)
+    {
+        this.countdownStartTime = countdownStartTime;
+        this.countdownSeconds = countdownSeconds;
+        this.repeatDeciSeconds = repeatDeciSeconds;
+        this.staggerDeciSeconds = staggerDeciSeconds;
+        this.participantNumber = participantNumber;
+        firstCountdownEnd = countdownStartTime + (countdownSeconds * 1000L)
+            + (participantNumber * staggerDeciSeconds * 100L);
+        repeatMillis = repeatDeciSeconds * 100L;
+    }
+
+    /**
+     * @return the same schedule, with all times shifted back by the
+     * given amount (e.g. to convert coordinator times into
+     * elapsedRealtime ones)
+     */
+    FlareSchedule shift(long millis)
+    {
+        return new FlareSchedule(
+            countdownStartTime - millis, countdownSeconds, repeatDeciSeconds,
+            staggerDeciSeconds, participantNumber);
+    }
+
+    static FlareSchedule fromStatus(FlareStatus status, int participantNumber)
+    {
+        return new FlareSchedule(
+            status.countdownStartTime, status.countdownSeconds,
+            status.repeatDeciSeconds, status.staggerDeciSeconds,
+            participantNumber);
+    }
+
+    boolean isRepeating()
+    {
+        return repeatMillis > 0;
+    }
+
+    /**
+     * @return interval between flashes, or 0 if there is only one
+     */
+    long getRepeatMillis()
+    {
+        return repeatMillis;
+    }
+
+    /**
+     * @return when the given flash (counting from 0) begins
+     */
+    long getFlashTime(long flashIndex)
+    {
+        return firstCountdownEnd - FLASH_LEAD_MILLIS
+            + (flashIndex * repeatMillis);
+    }
+
+    /**
+     * @return index of the first flash which hasn't ended by the given
+     * time, or -1 if all of them have
+     */
+    long findFlash(long time)
+    {
+        long endOfFirst = getFlashTime(0) + FLASH_MILLIS;
+        if (time < endOfFirst) {
+            return 0;
+        }
+        if (!isRepeating()) {
+            return -1;
+        }
+        return ((time - endOfFirst) / repeatMillis) + 1;
+    }
+
+    /**
+     * @return when the next flash which hasn't ended by the given time
+     * begins, or -1 if there are no more
+     */
+    long getNextFlashTime(long time)
+    {
+        long flashIndex = findFlash(time);
+        if (flashIndex < 0) {
+            return -1;
+        }
+        return getFlashTime(flashIndex);
+    }
+
+    /**
+     * @return when the countdown display next reaches zero (at or after
+     * the given time); for a flare which doesn't repeat, once that has
+     * happened, the time it did
+     */
+    long getCountdownEnd(long time)
+    {
+        if ((time <= firstCountdownEnd) || !isRepeating()) {
+            return firstCountdownEnd;
+        }
+        long n = (time - firstCountdownEnd + repeatMillis - 1) / repeatMillis;
+        return firstCountdownEnd + (n * repeatMillis);
+    }
+
+    /**
+     * @return a new cursor positioned at the first flash
+     */
+    Cursor newCursor()
+    {
+        return new Cursor();
+    }
+
+    /**
+     * Steps through the edges (alternately on and off) of a schedule.
+     * Not thread-safe, but each thread can have its own.
+     */
+    class Cursor
+    {
+        private final long [] edges;
+        private long blockStart;
+        private long edgeIndex;
+
+        private Cursor()
+        {
+            edges = new long[2 * (isRepeating() ? BLOCK_FLASHES : 1)];
+            fill(0);
+        }
+
+        /**
+         * Positions the cursor at the beginning of the first flash which
+         * hasn't ended by the given time.
+         *
+         * @return false if there is no such flash
+         */
+        boolean seek(long time)
+        {
+            long flashIndex = findFlash(time);
+            if (flashIndex < 0) {
+                edgeIndex = edges.length;
+                return false;
+            }
+            edgeIndex = 2 * flashIndex;
+            return true;
+        }
+
+        boolean hasNext()
+        {
+            return isRepeating() || (edgeIndex < edges.length);
+        }
+
+        /**
+         * @return time of the next edge
+         */
+        long nextTime()
+        {
+            long offset = edgeIndex - blockStart;
+            if ((offset < 0) || (offset >= edges.length)) {
+                fill(edgeIndex - (edgeIndex % 2));
+                offset = edgeIndex - blockStart;
+            }
+            return edges[(int) offset];
+        }
+
+        /**
+         * @return whether the next edge turns the output on
+         */
+        boolean nextIsOn()
+        {
+            return (edgeIndex % 2) == 0;
+        }
+
+        void advance()
+        {
+            ++edgeIndex;
+        }
+
+        private void fill(long firstEdge)
+        {
+            blockStart = firstEdge;
+            long flashIndex = firstEdge / 2;
+            for (int i = 0; i < edges.length; i += 2) {
+                long on = getFlashTime(flashIndex++);
+                edges[i] = on;
+                edges[i + 1] = on + FLASH_MILLIS;
+            }
+        }
+    }
+}
@@ -0,0 +1,489 @@
+/**
+ * Copyright 2012 Lingering Socket Labs
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.lingeringsocket.mobflare;
+
+import android.app.*;
+import android.content.*;
+import android.os.*;
+import android.util.*;
+
+/**
+ * Keeps a flare going while its activities come and go.  While waiting
+ * for participants, the service polls the coordinator; once the
+ * countdown starts, it owns the schedule and the output engine, so that
+ * flashes happen on time whether or not anything is showing (including
+ * with the screen off, for repeating flares), and the camera stays open
+ * in between.  It runs in the foreground, with a notification leading
+ * back to the flare.  {@link WaitFlare} and {@link FlareTimer} bind to
+ * it, and only display what it's doing.  Everything here happens on the
+ * UI thread.
+ */
+public class FlareService extends Service
+{
+    private static String LOGTAG = "FlareService";
+
+    private static final int NOTIFICATION_ID = 1;
+
+    private static final String WAKEUP_ACTION =
+        "com.lingeringsocket.mobflare.WAKEUP";
+
+    // while the next flash is further off than this, we let the device
+    // go to sleep
+    static final long IDLE_THRESHOLD_MILLIS = 60000;
+
+    // how long before a flash to wake the device back up
+    private static final long WAKE_LEAD_MILLIS = 30000;
+
+    /**
+     * Receives the progress of the flare being watched.
+     */
+    interface WatchListener
+    {
+        /**
+         * Called with the latest status, including once on registration
+         * if there is one.
+         */
+        void onStatusChanged(FlareStatus status);
+
+        /**
+         * Called if the flare no longer exists.
+         */
+        void onFlareGone();
+    }
+
+    class LocalBinder extends Binder
+    {
+        FlareService getService()
+        {
+            return FlareService.this;
+        }
+    }
+
+    private final IBinder binder = new LocalBinder();
+    private final Handler handler = new Handler();
+    private final Clock clock = Clock.SYSTEM;
+
+    private String flareName;
+    private int participantNumber;
+    private FlareWatcher watcher;
+    private FlareStatus latestStatus;
+    private WatchListener watchListener;
+
+    // in elapsedRealtime terms
+    private FlareSchedule schedule;
+    private CompositeOutput output;
+    private FlareOutput displayOutput;
+    private PureFlashOutput previewOutput;
+    private FlashScheduler flashScheduler;
+    private TimingHistogram jitter;
+
+    private PowerManager.WakeLock cpuWakeLock;
+    private PowerManager.WakeLock screenWakeLock;
+    private PendingIntent wakeupIntent;
+
+    // per-session counts, to keep an eye on battery use
+    private int alarmCount;
+    private long startCpuMillis;
+
+    private Runnable powerUpdater = new Runnable()
+        {
+            public void run()
+            {
+                updatePower();
+            }
+        };
+
+    private BroadcastReceiver wakeupReceiver = new BroadcastReceiver()
+        {
+            @Override
+            public void onReceive(Context context, Intent intent)
+            {
+                ++alarmCount;
+                // the next flash is now close, so this takes the partial
+                // wake lock before the alarm's own is let go
+                updatePower();
+                if (needsDisplay()) {
+                    // bring the timer (if it's in front) back in time
+                    // to flash through it
+                    screenWakeLock.acquire(WAKE_LEAD_MILLIS);
+                }
+            }
+        };
+
+    @Override
+    public void onCreate()
+    {
+        super.onCreate();
+        PowerManager pm =
+            (PowerManager) getSystemService(Context.POWER_SERVICE);
+        cpuWakeLock = pm.newWakeLock(
+            PowerManager.PARTIAL_WAKE_LOCK,
+            getClass().getCanonicalName());
+        cpuWakeLock.setReferenceCounted(false);
+        screenWakeLock = pm.newWakeLock(
+            PowerManager.SCREEN_DIM_WAKE_LOCK
+            | PowerManager.ACQUIRE_CAUSES_WAKEUP,
+            getClass().getCanonicalName() + ".screen");
+        screenWakeLock.setReferenceCounted(false);
+        Intent intent = new Intent(WAKEUP_ACTION);
+        intent.setPackage(getPackageName());
+        wakeupIntent = PendingIntent.getBroadcast(this, 0, intent, 0);
+        registerReceiver(wakeupReceiver, new IntentFilter(WAKEUP_ACTION));
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId)
+    {
+        // if we get killed, the flare is lost along with us
+        return START_NOT_STICKY;
+    }
+
+    @Override
+    public IBinder onBind(Intent intent)
+    {
+        return binder;
+    }
+
+    @Override
+    public void onDestroy()
+    {
+        super.onDestroy();
+        stopFlare();
+        unregisterReceiver(wakeupReceiver);
+    }
+
+    /**
+     * Starts watching a flare which we have joined, replacing whatever
+     * flare was active before.  Once the countdown starts, flashing
+     * begins by itself.
+     *
+     * @param flareName flare to watch
+     * @param participantNumber our place in the wave
+     * @param status status already known
+     */
+    void watchFlare(
+        String flareName, int participantNumber, FlareStatus status)
+    {
+        stopFlare();
+        // keep running while nothing is bound
+        startService(new Intent(this, FlareService.class));
+        this.flareName = flareName;
+        this.participantNumber = participantNumber;
+        latestStatus = status;
+        // long polls don't get far with the CPU asleep
+        cpuWakeLock.acquire();
+        startForeground(
+            NOTIFICATION_ID,
+            buildNotification(WaitFlare.class, R.string.notification_waiting));
+        if (status.countdownStartTime != 0) {
+            startCountdown(status);
+            return;
+        }
+        watcher = new FlareWatcher(
+            new RpcCoordinator(this), flareName, status)
+            {
+                @Override
+                protected void onStatusChanged(FlareStatus status)
+                {
+                    handleStatus(status);
+                }
+
+                @Override
+                protected void onFlareGone()
+                {
+                    handleGone();
+                }
+            };
+        watcher.start();
+    }
+
+    /**
+     * @return whether the given flare is the one being watched or
+     * flashed
+     */
+    boolean isActive(String flareName)
+    {
+        return (this.flareName != null) && this.flareName.equals(flareName);
+    }
+
+    /**
+     * Registers (or with null, unregisters) the single listener.
+     */
+    void setWatchListener(WatchListener listener)
+    {
+        watchListener = listener;
+        if ((listener != null) && (latestStatus != null)) {
+            listener.onStatusChanged(latestStatus);
+        }
+    }
+
+    /**
+     * @return the active flare's schedule, in elapsedRealtime terms, or
+     * null if its countdown hasn't started
+     */
+    FlareSchedule getSchedule()
+    {
+        return schedule;
+    }
+
+    /**
+     * Adds outputs which need a window (if selected) while an activity
+     * is showing, and on platforms without offscreen textures, gives the
+     * torch the activity's preview surface.
+     */
+    void attachDisplay(Activity activity)
+    {
+        detachDisplay();
+        if (output == null) {
+            return;
+        }
+        if (previewOutput != null) {
+            previewOutput.attachPreview(activity);
+        }
+        if (!Prefs.getOutputScreen(this)) {
+            return;
+        }
+        displayOutput = new ScreenFlashOutput();
+        displayOutput.initialize(activity);
+        output.attach(
+            displayOutput,
+            getString(R.string.output_screen),
+            OutputCalibration.load(this, displayOutput));
+    }
+
+    /**
+     * Removes outputs added by {@link #attachDisplay}.
+     */
+    void detachDisplay()
+    {
+        if (previewOutput != null) {
+            previewOutput.detachPreview();
+        }
+        if (displayOutput != null) {
+            output.detach(displayOutput);
+            displayOutput = null;
+        }
+    }
+
+    /**
+     * Stops everything to do with the active flare, if any.
+     */
+    void stopFlare()
+    {
+        handler.removeCallbacks(powerUpdater);
+        getAlarmManager().cancel(wakeupIntent);
+        stopWatching();
+        if (flashScheduler != null) {
+            flashScheduler.stop();
+            if (jitter.getCount() > 0) {
+                Log.i(LOGTAG, jitter.toString());
+            }
+            Log.i(LOGTAG, "Session:  "
+                + flashScheduler.getWakeupCount() + " scheduler wakeups, "
+                + alarmCount + " alarm wakeups; "
+                + (android.os.Process.getElapsedCpuTime() - startCpuMillis)
+                + " ms CPU in all, "
+                + (flashScheduler.getCpuTimeNanos() / 1000000)
+                + " ms on the flash scheduler");
+            flashScheduler = null;
+        }
+        detachDisplay();
+        previewOutput = null;
+        if (output != null) {
+            output.release();
+            output = null;
+        }
+        schedule = null;
+        flareName = null;
+        latestStatus = null;
+        cpuWakeLock.release();
+        screenWakeLock.release();
+        stopForeground(true);
+        stopSelf();
+    }
+
+    /**
+     * Creates the outputs selected in the preferences (not yet
+     * initialized), except for those which need a window.  The torch
+     * is used if nothing else is selected.
+     */
+    static CompositeOutput createOutput(Context context)
+    {
+        CompositeOutput output = new CompositeOutput();
+        if (Prefs.getOutputVibrate(context)) {
+            output.add(
+                new VibrationOutput(),
+                context.getString(R.string.output_vibrate));
+        }
+        if (Prefs.getOutputTone(context)) {
+            output.add(
+                new ToneOutput(),
+                context.getString(R.string.output_tone));
+        }
+        if (Prefs.getOutputTorch(context)
+            || ((output.getBackendCount() == 0)
+                && !Prefs.getOutputScreen(context)))
+        {
+            FlareOutput torch;
+            if (Prefs.getSimulateOutput(context)) {
+                torch = new SimulatedOutput(
+                    Prefs.getSimulatedLatency(context), 0);
+            } else {
+                torch = new PureFlashOutput();
+            }
+            output.add(torch, context.getString(R.string.output_torch));
+        }
+        return output;
+    }
+
+    /**
+     * @return whether any output of the active flare only works through
+     * an activity's window (see {@link #attachDisplay})
+     */
+    private boolean needsDisplay()
+    {
+        return (previewOutput != null) || Prefs.getOutputScreen(this);
+    }
+
+    /**
+     * @return the torch, if it needs a preview surface from an activity
+     */
+    private static PureFlashOutput findPreviewOutput(CompositeOutput output)
+    {
+        for (int i = 0; i < output.getBackendCount(); ++i) {
+            FlareOutput backend = output.getBackend(i);
+            if ((backend instanceof PureFlashOutput)
+                && ((PureFlashOutput) backend).needsPreviewSurface())
+            {
+                return (PureFlashOutput) backend;
+            }
+        }
+        return null;
+    }
+
+    private void stopWatching()
+    {
+        if (watcher != null) {
+            watcher.stop();
+            watcher = null;
+        }
+    }
+
+    private void handleStatus(FlareStatus status)
+    {
+        latestStatus = status;
+        if (status.countdownStartTime != 0) {
+            stopWatching();
+            startCountdown(status);
+        }
+        if (watchListener != null) {
+            watchListener.onStatusChanged(status);
+        }
+    }
+
+    private void handleGone()
+    {
+        WatchListener listener = watchListener;
+        stopFlare();
+        if (listener != null) {
+            listener.onFlareGone();
+        }
+    }
+
+    private void startCountdown(FlareStatus status)
+    {
+        // the countdown start comes from the coordinator's clock;
+        // convert it once, using our best estimate of that clock, and
+        // count down against elapsedRealtime from then on
+        ClockSync clockSync = RpcCoordinator.getClockSync();
+        Log.i(LOGTAG, "Coordinator clock:  " + clockSync);
+        schedule = FlareSchedule.fromStatus(status, participantNumber).shift(
+            clockSync.getElapsedRealtimeOffset());
+
+        startCpuMillis = android.os.Process.getElapsedCpuTime();
+        alarmCount = 0;
+        output = createOutput(this);
+        output.initialize(this);
+        output.loadCalibration(this);
+        previewOutput = findPreviewOutput(output);
+        jitter = new TimingHistogram("Flash edge lateness");
+        flashScheduler = new FlashScheduler(
+            output, output.getCalibration(), clock, schedule, jitter);
+        flashScheduler.start();
+
+        startForeground(
+            NOTIFICATION_ID,
+            buildNotification(
+                FlareTimer.class, R.string.notification_countdown));
+        updatePower();
+    }
+
+    /**
+     * Keeps the CPU awake only while a flash is close, and otherwise
+     * sets an alarm to wake up in time for the next one.  Stops once
+     * the last flash is over.
+     */
+    private void updatePower()
+    {
+        handler.removeCallbacks(powerUpdater);
+        if (schedule == null) {
+            return;
+        }
+        long now = clock.elapsedRealtime();
+        long nextFlashTime = schedule.getNextFlashTime(now);
+        if (nextFlashTime < 0) {
+            stopFlare();
+            return;
+        }
+        if (nextFlashTime - now <= IDLE_THRESHOLD_MILLIS) {
+            getAlarmManager().cancel(wakeupIntent);
+            cpuWakeLock.acquire();
+            // check again once this flash is over
+            handler.postDelayed(
+                powerUpdater,
+                nextFlashTime + FlareSchedule.FLASH_MILLIS + 1 - now);
+        } else {
+            getAlarmManager().set(
+                AlarmManager.ELAPSED_REALTIME_WAKEUP,
+                nextFlashTime - WAKE_LEAD_MILLIS,
+                wakeupIntent);
+            cpuWakeLock.release();
+        }
+    }
+
+    private AlarmManager getAlarmManager()
+    {
+        return (AlarmManager) getSystemService(Context.ALARM_SERVICE);
+    }
+
+    private Notification buildNotification(
+        Class<? extends Activity> activityClass, int textId)
+    {
+        Intent intent = new Intent(this, activityClass);
+        intent.putExtra(FlareTimer.FLARE_NAME, flareName);
+        intent.setFlags(
+            Intent.FLAG_ACTIVITY_NEW_TASK | Intent.FLAG_ACTIVITY_SINGLE_TOP);
+        PendingIntent pendingIntent = PendingIntent.getActivity(
+            this, 0, intent, PendingIntent.FLAG_UPDATE_CURRENT);
+        String text = getString(textId, flareName);
+        Notification notification = new Notification(
+            R.drawable.icon, text, System.currentTimeMillis());
+        notification.flags |= Notification.FLAG_ONGOING_EVENT;
+        notification.setLatestEventInfo(
+            this, getString(R.string.app_name), text, pendingIntent);
+        return notification;
+    }
+}
@@ -0,0 +1,205 @@
+/**
+ * Copyright 2012 Lingering Socket Labs
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.lingeringsocket.mobflare;
+
+import android.content.*;
+import android.os.*;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Holds the state of a flare as reported by the coordinator, together
+ * with our own participant number when the coordinator reports that
+ * too (in response to a join).
+ */
+class FlareStatus
+{
+    int quorumSize;
+    int joinCount;
+    int countdownSeconds;
+    int repeatDeciSeconds;
+    int staggerDeciSeconds;
+    long countdownStartTime;
+    int participantNumber = -1;
+
+    /**
+     * @return whether the coordinator sent the flare's settings, rather
+     * than (like older coordinators replying to a join) just a
+     * participant number
+     */
+    boolean isComplete()
+    {
+        return quorumSize > 0;
+    }
+
+    boolean hasParticipantNumber()
+    {
+        return participantNumber >= 0;
+    }
+
+    FlareStatus copy()
+    {
+        FlareStatus status = new FlareStatus();
+        status.quorumSize = quorumSize;
+        status.joinCount = joinCount;
+        status.countdownSeconds = countdownSeconds;
+        status.repeatDeciSeconds = repeatDeciSeconds;
+        status.staggerDeciSeconds = staggerDeciSeconds;
+        status.countdownStartTime = countdownStartTime;
+        status.participantNumber = participantNumber;
+        return status;
+    }
+
+    /**
+     * @return whether this status shows any progress (more joins, or
+     * the countdown starting) relative to an earlier one
+     */
+    boolean differsFrom(FlareStatus other)
+    {
+        return (joinCount != other.joinCount)
+            || (countdownStartTime != other.countdownStartTime);
+    }
+
+    /**
+     * Decodes a flare object from the coordinator.  Unknown fields are
+     * skipped.  Either the flare's settings and progress must all be
+     * present (the countdown settings only once the countdown has
+     * started), or else (for a join reply from an older coordinator)
+     * just the participant number.
+     *
+     * @param reader reader positioned at the start of the object
+     *
+     * @return decoded status
+     *
+     * @throws IOException if the object is malformed or a required
+     * field is missing
+     */
+    static FlareStatus read(WireReader reader) throws IOException
+    {
+        return read(reader, false);
+    }
+
+    /**
+     * Decodes a reply to a create, which (from an older coordinator)
+     * may carry none of the flare's fields at all.
+     *
+     * @return decoded status, which is empty in that case
+     */
+    static FlareStatus readCreated(WireReader reader) throws IOException
+    {
+        return read(reader, true);
+    }
+
+    private static FlareStatus read(WireReader reader, boolean allowEmpty)
+        throws IOException
+    {
+        FlareStatus status = new FlareStatus();
+        Set<String> seen = new HashSet<String>();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (reader.peek() == WireReader.Token.NULL) {
+                reader.nextNull();
+                continue;
+            }
+            seen.add(name);
+            if (name.equals(FlareTimer.QUORUM_SIZE)) {
+                status.quorumSize = reader.nextInt();
+            } else if (name.equals(FlareTimer.JOIN_COUNT)) {
+                status.joinCount = reader.nextInt();
+            } else if (name.equals(FlareTimer.COUNTDOWN_SECONDS)) {
+                status.countdownSeconds = reader.nextInt();
+            } else if (name.equals(FlareTimer.REPEAT_DECI_SECONDS)) {
+                status.repeatDeciSeconds = reader.nextInt();
+            } else if (name.equals(FlareTimer.STAGGER_DECI_SECONDS)) {
+                status.staggerDeciSeconds = reader.nextInt();
+            } else if (name.equals(FlareTimer.COUNTDOWN_START_TIME)) {
+                status.countdownStartTime = reader.nextLong();
+            } else if (name.equals(FlareTimer.PARTICIPANT_NUMBER)) {
+                status.participantNumber = reader.nextInt();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        if (!seen.contains(FlareTimer.QUORUM_SIZE)) {
+            if (allowEmpty && !status.hasParticipantNumber()) {
+                return status;
+            }
+            require(seen, FlareTimer.PARTICIPANT_NUMBER);
+            return status;
+        }
+        require(seen, FlareTimer.JOIN_COUNT);
+        require(seen, FlareTimer.COUNTDOWN_START_TIME);
+        if (status.countdownStartTime != 0) {
+            require(seen, FlareTimer.COUNTDOWN_SECONDS);
+            require(seen, FlareTimer.REPEAT_DECI_SECONDS);
+            require(seen, FlareTimer.STAGGER_DECI_SECONDS);
+        }
+        return status;
+    }
+
+    private static void require(Set<String> seen, String name)
+        throws IOException
+    {
+        if (!seen.contains(name)) {
+            throw new IOException("Flare is missing " + name);
+        }
+    }
+
+    /**
+     * Passes the status on to another activity.
+     */
+    void putExtras(Intent intent)
+    {
+        intent.putExtra(FlareTimer.QUORUM_SIZE, quorumSize);
+        intent.putExtra(FlareTimer.JOIN_COUNT, joinCount);
+        intent.putExtra(FlareTimer.COUNTDOWN_SECONDS, countdownSeconds);
+        intent.putExtra(FlareTimer.REPEAT_DECI_SECONDS, repeatDeciSeconds);
+        intent.putExtra(FlareTimer.STAGGER_DECI_SECONDS, staggerDeciSeconds);
+        intent.putExtra(FlareTimer.COUNTDOWN_START_TIME, countdownStartTime);
+        if (hasParticipantNumber()) {
+            intent.putExtra(FlareTimer.PARTICIPANT_NUMBER, participantNumber);
+        }
+    }
+
+    /**
+     * Recovers a status passed on by {@link #putExtras}.
+     *
+     * @return status, or null if the intent doesn't carry one
+     */
+    static FlareStatus fromExtras(Intent intent)
+    {
+        Bundle extras = intent.getExtras();
+        if ((extras == null) || !extras.containsKey(FlareTimer.QUORUM_SIZE)) {
+            return null;
+        }
+        FlareStatus status = new FlareStatus();
+        status.quorumSize = extras.getInt(FlareTimer.QUORUM_SIZE);
+        status.joinCount = extras.getInt(FlareTimer.JOIN_COUNT);
+        status.countdownSeconds = extras.getInt(FlareTimer.COUNTDOWN_SECONDS);
+        status.repeatDeciSeconds =
+            extras.getInt(FlareTimer.REPEAT_DECI_SECONDS);
+        status.staggerDeciSeconds =
+            extras.getInt(FlareTimer.STAGGER_DECI_SECONDS);
+        status.countdownStartTime =
+            extras.getLong(FlareTimer.COUNTDOWN_START_TIME);
+        status.participantNumber =
+            extras.getInt(FlareTimer.PARTICIPANT_NUMBER, -1);
+        return status;
+    }
+}
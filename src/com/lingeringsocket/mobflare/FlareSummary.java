@@ -0,0 +1,111 @@
+/**
+ * Copyright 2012 Lingering Socket Labs
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.lingeringsocket.mobflare;
+
+import java.io.*;
+
+/**
+ * Describes one flare returned by a coordinator search.  Optional fields
+ * the coordinator does not send are left as NaN (for coordinates) or -1
+ * (for counts).
+ */
+class FlareSummary
+{
+    String name;
+    double distance = Double.NaN;
+    double latitude = Double.NaN;
+    double longitude = Double.NaN;
+    int quorumSize = -1;
+    int joinCount = -1;
+
+    FlareSummary()
+    {
+    }
+
+    FlareSummary(String name)
+    {
+        this.name = name;
+    }
+
+    boolean hasDistance()
+    {
+        return !Double.isNaN(distance);
+    }
+
+    /**
+     * @return a copy of this summary, with the distance replaced
+     */
+    FlareSummary copyAt(double distance)
+    {
+        FlareSummary flare = new FlareSummary(name);
+        flare.distance = distance;
+        flare.latitude = latitude;
+        flare.longitude = longitude;
+        flare.quorumSize = quorumSize;
+        flare.joinCount = joinCount;
+        return flare;
+    }
+
+    /**
+     * Decodes one element of a flare list from the coordinator.
+     *
+     * @param reader reader positioned at the start of the object
+     *
+     * @return decoded summary
+     *
+     * @throws IOException if the object is malformed or lacks a name or
+     * distance
+     */
+    static FlareSummary read(WireReader reader) throws IOException
+    {
+        FlareSummary flare = new FlareSummary();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String field = reader.nextName();
+            if (reader.peek() == WireReader.Token.NULL) {
+                reader.nextNull();
+            } else if (field.equals("name")) {
+                flare.name = reader.nextString();
+            } else if (field.equals("km")) {
+                flare.distance = reader.nextDouble();
+            } else if (field.equals(FlareTimer.LATITUDE)) {
+                flare.latitude = reader.nextDouble();
+            } else if (field.equals(FlareTimer.LONGITUDE)) {
+                flare.longitude = reader.nextDouble();
+            } else if (field.equals(FlareTimer.QUORUM_SIZE)) {
+                flare.quorumSize = reader.nextInt();
+            } else if (field.equals(FlareTimer.JOIN_COUNT)) {
+                flare.joinCount = reader.nextInt();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        if (flare.name == null) {
+            throw new IOException("Flare is missing name");
+        }
+        if (!flare.hasDistance()) {
+            throw new IOException("Flare " + flare.name + " is missing km");
+        }
+        return flare;
+    }
+
+    @Override
+    public String toString()
+    {
+        return name;
+    }
+}
@@ -29,8 +29,8 @@ import android.view.*;
 import android.widget.*;
 
 /**
- * Displays a countdown timer and invokes the flare output when the
- * timer expires.
+ * Displays a countdown timer while {@link FlareService} takes care of
+ * invoking the flare output when it expires.
  */
 public class FlareTimer extends Activity
 {
@@ -49,18 +49,18 @@ public class FlareTimer extends Activity
     protected static final String LONGITUDE = "longitude";
 
     private int countdownSecondsRemaining;
-    private int repeatDeciSeconds;
-    private int staggerDeciSeconds;
-    private int participantNumber;
 
     private PowerManager.WakeLock wakeLock;
 
-    private long countdownStartTime;
-    private long nextOutputTime;
+    // per-session count, to keep an eye on battery use
+    private int tickCount;
+
+    // in elapsedRealtime terms, as obtained from the service
+    private FlareSchedule schedule;
 
-    private boolean flashed;
     private String flareName;
-    private FlareOutput output;
+    private Clock clock;
+    private FlareService service;
     private boolean suspended;
 
     private TextView countdownView;
@@ -73,31 +73,75 @@ public class FlareTimer extends Activity
                 onTimerTick();
             }
         };
+
+    private ServiceConnection connection = new ServiceConnection()
+        {
+            public void onServiceConnected(ComponentName name, IBinder binder)
+            {
+                service = ((FlareService.LocalBinder) binder).getService();
+                schedule = service.getSchedule();
+                if (schedule == null) {
+                    // the flare is over (or was lost along with our
+                    // process)
+                    finish();
+                    return;
+                }
+                if (!suspended) {
+                    attach();
+                }
+            }
+
+            public void onServiceDisconnected(ComponentName name)
+            {
+                service = null;
+            }
+        };
     
     @Override
     protected void onCreate(Bundle savedInstanceState)
     {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.timer);
+        // when the service's alarm turns the screen back on before a
+        // flash, show up even over the keyguard
+        getWindow().addFlags(
+            WindowManager.LayoutParams.FLAG_SHOW_WHEN_LOCKED
+            | WindowManager.LayoutParams.FLAG_TURN_SCREEN_ON);
 
         countdownView =
             (TextView) findViewById(R.id.total_time_remaining);
-        
+
+        clock = Clock.SYSTEM;
         readIntent();
         updateDisplay();
 
-        output = new PureFlashOutput();
-        output.initialize(this);
-        flashed = false;
+        suspended = true;
+        bindService(
+            new Intent(this, FlareService.class), connection,
+            Context.BIND_AUTO_CREATE);
+    }
+
+    @Override
+    protected void onDestroy()
+    {
+        super.onDestroy();
+        if ((service != null) && isFinishing()) {
+            // the user quit or backed out; a mere pause (e.g. to look
+            // at another app) leaves the flare running
+            service.stopFlare();
+        }
+        unbindService(connection);
+        Log.i(LOGTAG, "Session:  " + tickCount + " display ticks");
     }
 
     @Override
     protected void onResume()
     {
         super.onResume();
-        acquireWakeLock();
         suspended = false;
-        scheduleNextTick();
+        if (schedule != null) {
+            attach();
+        }
     }
 
     @Override
@@ -105,10 +149,34 @@ public class FlareTimer extends Activity
     {
         super.onPause();
         releaseWakeLock();
-        output.release();
+        if (service != null) {
+            service.detachDisplay();
+        }
         suspended = true;
     }
 
+    private void attach()
+    {
+        service.attachDisplay(this);
+        updateWakeLock(clock.elapsedRealtime());
+        scheduleNextTick();
+    }
+
+    /**
+     * Keeps the screen on only while a flash is close.
+     */
+    private void updateWakeLock(long now)
+    {
+        long nextFlashTime = schedule.getNextFlashTime(now);
+        if ((nextFlashTime >= 0)
+            && (nextFlashTime - now <= FlareService.IDLE_THRESHOLD_MILLIS))
+        {
+            acquireWakeLock();
+        } else {
+            releaseWakeLock();
+        }
+    }
+
     public void onQuitClicked(View v)
     {
         finish();
@@ -116,15 +184,6 @@ public class FlareTimer extends Activity
 
     private void readIntent()
     {
-        int countdownSeconds = getIntent().getIntExtra(COUNTDOWN_SECONDS, 0);
-        countdownStartTime =
-            getIntent().getLongExtra(COUNTDOWN_START_TIME,
-                System.currentTimeMillis());
-        repeatDeciSeconds = getIntent().getIntExtra(REPEAT_DECI_SECONDS, 0);
-        staggerDeciSeconds = getIntent().getIntExtra(STAGGER_DECI_SECONDS, 0);
-        participantNumber = getIntent().getIntExtra(PARTICIPANT_NUMBER, 0);
-        nextOutputTime = countdownStartTime + countdownSeconds * 1000L
-            + participantNumber * staggerDeciSeconds * 100L;
         flareName = getIntent().getStringExtra(FLARE_NAME);
         TextView flareNameView = (TextView) findViewById(R.id.flare_name);
         flareNameView.setText(flareName);
@@ -147,20 +206,12 @@ public class FlareTimer extends Activity
 
     private void scheduleNextTick()
     {
-        // fiddle with the delay to try to get everyone synchronized
-        // on tenths of a second
-        long diff = nextOutputTime - System.currentTimeMillis();
-        if (diff < 0) {
-            diff = 0;
-        }
-        diff %= 100;
-        long delay;
-        if (diff < 50) {
-            delay = 100 - diff;
-        } else {
-            delay = diff;
-        }
-        
+        // the display only needs to change when the seconds do, so
+        // wake just after each one turns over; the flashes themselves
+        // are timed by the flash scheduler
+        long now = clock.elapsedRealtime();
+        long remainingMillis = schedule.getCountdownEnd(now) - now;
+        long delay = (Math.max(remainingMillis, 0) % 1000) + 1;
         tickHandler.sendEmptyMessageDelayed(0, delay);
     }
 
@@ -169,30 +220,16 @@ public class FlareTimer extends Activity
         if (suspended) {
             return;
         }
-        boolean cancelTimer = false;
-        long remainingMillis =
-            nextOutputTime - System.currentTimeMillis();
+        ++tickCount;
+        long now = clock.elapsedRealtime();
+        long remainingMillis = schedule.getCountdownEnd(now) - now;
         if (remainingMillis < 0) {
             remainingMillis = 0;
         }
         countdownSecondsRemaining = (int) (remainingMillis / 1000L);
-        if (countdownSecondsRemaining == 0) {
-            if (flashed) {
-                output.endOutput();
-                if (repeatDeciSeconds == 0) {
-                    cancelTimer = true;
-                }
-            } else {
-                output.beginOutput();
-                flashed = true;
-            }
-        }
-        if ((remainingMillis == 0) && (repeatDeciSeconds != 0)) {
-            nextOutputTime += repeatDeciSeconds * 100;
-            flashed = false;
-        }
         updateDisplay();
-        if (!cancelTimer) {
+        updateWakeLock(now);
+        if ((remainingMillis > 0) || schedule.isRepeating()) {
             scheduleNextTick();
         }
     }
@@ -21,7 +21,6 @@ import java.io.*;
 import android.app.*;
 import android.content.*;
 import android.graphics.*;
-import android.graphics.drawable.*;
 import android.os.*;
 import android.text.*;
 import android.text.method.*;
@@ -35,13 +34,15 @@ import android.widget.*;
 public class FlareType extends Activity
 {
     private static String LOGTAG = "FlareType";
+
+    // settings used to preview each type
+    private static final int PREVIEW_REPEAT_DECI_SECONDS = 10;
+    private static final int PREVIEW_STAGGER_DECI_SECONDS = 3;
+    private static final int PREVIEW_WAVE_REPEAT_DECI_SECONDS = 20;
+
     private RadioGroup radioGroup;
-    private GridView gridView;
-    private ImageAdapter imageAdapter;
+    private FlarePreviewView previewView;
     private int currentId;
-    private int iTick;
-    private boolean suspended;
-    private static Bitmap flareBitmap;
 
     @Override
     protected void onCreate(Bundle savedInstanceState)
@@ -49,61 +50,29 @@ public class FlareType extends Activity
         super.onCreate(savedInstanceState);
         setContentView(R.layout.flare_type);
         radioGroup = (RadioGroup) findViewById(R.id.flare_type_group);
-        gridView = (GridView) findViewById(R.id.flaregrid);
-        if (flareBitmap == null) {
-            flareBitmap = BitmapFactory.decodeResource(
-                getResources(), R.drawable.flare);
-        }
-        imageAdapter = new ImageAdapter(this);
-        gridView.setAdapter(imageAdapter);
+        previewView = (FlarePreviewView) findViewById(R.id.flare_preview);
         currentId = radioGroup.getCheckedRadioButtonId();
-        scheduleNextTick();
+        updatePreview();
     }
 
-    private Handler tickHandler = new Handler() 
-        {
-            @Override
-            public void handleMessage(Message msg) {
-                removeMessages(0);
-                onTimerTick(msg.what);
-            }
-        };
-
     @Override
     protected void onResume()
     {
         super.onResume();
-        suspended = false;
-        scheduleNextTick();
+        previewView.start();
     }
 
     @Override
     protected void onPause()
     {
         super.onPause();
-        suspended = true;
-    }
-
-    private void scheduleNextTick()
-    {
-        // update every half second
-        tickHandler.sendEmptyMessageDelayed(0, 500);
-    }
-
-    private void onTimerTick(int what)
-    {
-        if (suspended) {
-            return;
-        }
-        ++iTick;
-        imageAdapter.notifyDataSetChanged();
-        scheduleNextTick();
+        previewView.stop();
     }
 
     public void onRadioButtonClicked(View v) 
     {
         currentId = v.getId();
-        iTick = -1;
+        updatePreview();
     }
 
     public void onNextClicked(View v) 
@@ -115,65 +84,23 @@ public class FlareType extends Activity
         finish();
     }
 
-    private class ImageAdapter extends BaseAdapter 
+    private void updatePreview()
     {
-        private Context context;
-
-        public ImageAdapter(Context context) {
-            this.context = context;
-        }
-
-        public int getCount() {
-            return 5;
-        }
-
-        public Object getItem(int position) {
-            return null;
-        }
-
-        public long getItemId(int position) {
-            return 0;
-        }
-
-        // create a new ImageView for each item referenced by the Adapter
-        public View getView(int position, View convertView, ViewGroup parent) {
-            ImageView imageView;
-            if (convertView == null) {
-                imageView = new ImageView(context);
-                imageView.setLayoutParams(new GridView.LayoutParams(50, 50));
-                imageView.setScaleType(ImageView.ScaleType.CENTER_CROP);
-                imageView.setPadding(8, 8, 8, 8);
-            } else {
-                imageView = (ImageView) convertView;
-            }
-            switch (currentId) {
-            case R.id.flare_type_once:
-                imageView.setImageBitmap(flareBitmap);
-                break;
-            case R.id.flare_type_repeat:
-                if ((iTick % 2) == 0) {
-                    imageView.setImageDrawable(new ColorDrawable());
-                } else {
-                    imageView.setImageBitmap(flareBitmap);
-                }
-                break;
-            case R.id.flare_type_wave:
-                if (iTick < getCount() && ((iTick % getCount()) == position)) {
-                    imageView.setImageBitmap(flareBitmap);
-                } else {
-                    imageView.setImageDrawable(new ColorDrawable());
-                }
-                break;
-            case R.id.flare_type_wave_repeat:
-                if ((iTick % getCount()) == position) {
-                    imageView.setImageBitmap(flareBitmap);
-                } else {
-                    imageView.setImageDrawable(new ColorDrawable());
-                }
-                break;
-            }
-            return imageView;
+        switch (currentId) {
+        case R.id.flare_type_repeat:
+            previewView.setPattern(PREVIEW_REPEAT_DECI_SECONDS, 0);
+            break;
+        case R.id.flare_type_wave:
+            previewView.setPattern(0, PREVIEW_STAGGER_DECI_SECONDS);
+            break;
+        case R.id.flare_type_wave_repeat:
+            previewView.setPattern(
+                PREVIEW_WAVE_REPEAT_DECI_SECONDS,
+                PREVIEW_STAGGER_DECI_SECONDS);
+            break;
+        default:
+            previewView.setPattern(0, 0);
+            break;
         }
     }
-    
 }
@@ -0,0 +1,187 @@
+/**
+ * Copyright 2012 Lingering Socket Labs
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.lingeringsocket.mobflare;
+
+import android.os.*;
+import android.util.*;
+
+/**
+ * Subscribes to the status of a flare by long-polling the coordinator on
+ * a dedicated thread, reconnecting automatically after errors.  Changes
+ * are delivered on the thread which created the watcher.  Watching stops
+ * by itself once the countdown has started or the flare is gone.
+ */
+abstract class FlareWatcher implements Runnable
+{
+    private static String LOGTAG = "FlareWatcher";
+
+    // how long we ask the coordinator to hold each request; comfortably
+    // below the HTTP client's socket timeout
+    private static final int WAIT_SECONDS = 25;
+
+    // never poll faster than this, even if the coordinator doesn't
+    // support holding requests
+    private static final long MIN_POLL_MILLIS = 1000;
+
+    private static final long MIN_RECONNECT_MILLIS = 1000;
+    private static final long MAX_RECONNECT_MILLIS = 30000;
+
+    private final RpcCoordinator rpcCoordinator;
+    private final String flareName;
+    private final FlareStatus initialStatus;
+    private final Handler handler;
+    private Thread thread;
+    private volatile boolean stopped;
+    private volatile RpcCall<FlareStatus> currentCall;
+
+    /**
+     * @param rpcCoordinator coordinator to poll
+     * @param flareName flare to watch
+     * @param initialStatus status already known to the caller (which
+     * won't be delivered again), or null to start by fetching it
+     */
+    FlareWatcher(
+        RpcCoordinator rpcCoordinator, String flareName,
+        FlareStatus initialStatus)
+    {
+        this.rpcCoordinator = rpcCoordinator;
+        this.flareName = flareName;
+        this.initialStatus = initialStatus;
+        handler = new Handler();
+    }
+
+    void start()
+    {
+        thread = new Thread(this, LOGTAG);
+        thread.start();
+    }
+
+    void stop()
+    {
+        stopped = true;
+        RpcCall<FlareStatus> call = currentCall;
+        if (call != null) {
+            call.cancel();
+        }
+        if (thread != null) {
+            thread.interrupt();
+            thread = null;
+        }
+    }
+
+    /**
+     * Called whenever the flare's join count or countdown start changes
+     * (including with the first status obtained).
+     */
+    protected abstract void onStatusChanged(FlareStatus status);
+
+    /**
+     * Called if the flare no longer exists.
+     */
+    protected abstract void onFlareGone();
+
+    @Override
+    public void run()
+    {
+        FlareStatus known = initialStatus;
+        long reconnectMillis = MIN_RECONNECT_MILLIS;
+        while (!stopped) {
+            long startTime = SystemClock.elapsedRealtime();
+            FlareStatus status;
+            RpcCall<FlareStatus> call;
+            if (known == null) {
+                call = rpcCoordinator.getFlare(flareName);
+            } else {
+                call = rpcCoordinator.watchFlare(
+                    flareName, known, WAIT_SECONDS);
+            }
+            currentCall = call;
+            if (stopped) {
+                return;
+            }
+            try {
+                status = call.execute();
+            } catch (RpcException ex) {
+                if (stopped) {
+                    return;
+                }
+                Log.w(LOGTAG, "Watch failed; reconnecting", ex);
+                if (!pause(reconnectMillis)) {
+                    return;
+                }
+                reconnectMillis =
+                    Math.min(reconnectMillis * 2, MAX_RECONNECT_MILLIS);
+                continue;
+            }
+            reconnectMillis = MIN_RECONNECT_MILLIS;
+            if (status == null) {
+                deliverGone();
+                return;
+            }
+            if ((known == null) || status.differsFrom(known)) {
+                known = status;
+                deliver(status);
+                if (status.countdownStartTime != 0) {
+                    return;
+                }
+            } else {
+                long elapsed = SystemClock.elapsedRealtime() - startTime;
+                if (!pause(MIN_POLL_MILLIS - elapsed)) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private boolean pause(long millis)
+    {
+        if (millis <= 0) {
+            return true;
+        }
+        try {
+            Thread.sleep(millis);
+            return true;
+        } catch (InterruptedException ex) {
+            return false;
+        }
+    }
+
+    private void deliver(final FlareStatus status)
+    {
+        handler.post(new Runnable()
+            {
+                public void run()
+                {
+                    if (!stopped) {
+                        onStatusChanged(status);
+                    }
+                }
+            });
+    }
+
+    private void deliverGone()
+    {
+        handler.post(new Runnable()
+            {
+                public void run()
+                {
+                    if (!stopped) {
+                        onFlareGone();
+                    }
+                }
+            });
+    }
+}
@@ -0,0 +1,223 @@
+/**
+ * Copyright 2012 Lingering Socket Labs
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.lingeringsocket.mobflare;
+
+import android.os.*;
+
+/**
+ * Drives a {@link FlareOutput} from a dedicated high-priority thread, so
+ * that flash edges land within about a millisecond of when they are
+ * due, regardless of what the UI thread is up to.  The thread sleeps
+ * until shortly before each edge, lines itself up against a tick of the
+ * millisecond clock, sleeps again, and spins for the last stretch using
+ * the monotonic nanosecond clock.  Each edge is issued early by the
+ * output's calibrated latency, so that it takes effect on time.
+ */
+class FlashScheduler implements Runnable
+{
+    private static String LOGTAG = "FlashScheduler";
+
+    // how long before an edge to stop sleeping in long stretches
+    private static final long APPROACH_MILLIS = 20;
+
+    // how long before an edge to stop sleeping altogether and spin
+    private static final long SPIN_NANOS = 2000000;
+
+    // upper bound on one sleep, just in case the thread's sleep and
+    // elapsedRealtime ever part ways (as they do across a suspend)
+    private static final long MAX_SLEEP_MILLIS = 10000;
+
+    private final FlareOutput output;
+    private final long onLeadNanos;
+    private final long offLeadNanos;
+    private final Clock clock;
+    private final FlareSchedule schedule;
+    private final TimingHistogram jitter;
+    private Thread thread;
+    private volatile boolean stopped;
+    private volatile int wakeupCount;
+    private volatile long cpuTimeNanos;
+
+    /**
+     * @param output output to drive
+     * @param calibration latency of the output
+     * @param clock source of time
+     * @param schedule flashes to produce, in elapsedRealtime terms
+     * @param jitter receives the lateness of each edge
+     */
+    FlashScheduler(
+        FlareOutput output, OutputCalibration calibration, Clock clock,
+        FlareSchedule schedule, TimingHistogram jitter)
+    {
+        this.output = output;
+        onLeadNanos = calibration.getOnLeadMicros() * 1000;
+        offLeadNanos = calibration.getOffLeadMicros() * 1000;
+        this.clock = clock;
+        this.schedule = schedule;
+        this.jitter = jitter;
+    }
+
+    void start()
+    {
+        thread = new Thread(this, LOGTAG);
+        thread.start();
+    }
+
+    /**
+     * Stops the thread, waiting for it to finish so that the output
+     * can safely be released afterwards.
+     */
+    void stop()
+    {
+        stopped = true;
+        if (thread == null) {
+            return;
+        }
+        thread.interrupt();
+        try {
+            thread.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        thread = null;
+    }
+
+    /**
+     * @return number of times the thread has woken up from sleep
+     */
+    int getWakeupCount()
+    {
+        return wakeupCount;
+    }
+
+    /**
+     * @return CPU time used by the thread, once it has finished
+     */
+    long getCpuTimeNanos()
+    {
+        return cpuTimeNanos;
+    }
+
+    @Override
+    public void run()
+    {
+        android.os.Process.setThreadPriority(
+            android.os.Process.THREAD_PRIORITY_URGENT_DISPLAY);
+        FlareSchedule.Cursor cursor = schedule.newCursor();
+        // skip flashes which are already over (e.g. after a pause)
+        if (!cursor.seek(clock.elapsedRealtime()
+                + (Math.max(onLeadNanos, offLeadNanos) / 1000000)))
+        {
+            cpuTimeNanos = Debug.threadCpuTimeNanos();
+            return;
+        }
+        boolean on = false;
+        try {
+            while (!stopped && cursor.hasNext()) {
+                boolean nextOn = cursor.nextIsOn();
+                if (!awaitEdge(
+                        cursor.nextTime(),
+                        nextOn ? onLeadNanos : offLeadNanos))
+                {
+                    return;
+                }
+                on = nextOn;
+                if (on) {
+                    output.beginOutput();
+                } else {
+                    output.endOutput();
+                }
+                cursor.advance();
+            }
+        } finally {
+            if (on) {
+                output.endOutput();
+            }
+            cpuTimeNanos = Debug.threadCpuTimeNanos();
+        }
+    }
+
+    /**
+     * Waits until it is time to issue an edge, and records how late we
+     * are for it.
+     *
+     * @param edgeTime when the edge should take effect
+     * @param leadNanos how long before that to issue it
+     *
+     * @return false if stopped while waiting
+     */
+    private boolean awaitEdge(long edgeTime, long leadNanos)
+    {
+        long leadMillis = (leadNanos + 999999) / 1000000;
+        for (;;) {
+            long remainingMillis =
+                edgeTime - leadMillis - clock.elapsedRealtime();
+            if (remainingMillis <= APPROACH_MILLIS) {
+                break;
+            }
+            if (!sleep(Math.min(
+                        remainingMillis - APPROACH_MILLIS, MAX_SLEEP_MILLIS)))
+            {
+                return false;
+            }
+        }
+
+        // the clock only has millisecond resolution, so wait for it to
+        // tick over, and take the edge's position relative to that
+        long startMillis = clock.elapsedRealtime();
+        long giveUpNanos = System.nanoTime() + 2000000;
+        long tickMillis;
+        long tickNanos;
+        do {
+            tickMillis = clock.elapsedRealtime();
+            tickNanos = System.nanoTime();
+        } while ((tickMillis == startMillis) && (tickNanos < giveUpNanos));
+        long targetNanos =
+            tickNanos + ((edgeTime - tickMillis) * 1000000L) - leadNanos;
+
+        long remainingNanos = targetNanos - System.nanoTime();
+        if (remainingNanos > SPIN_NANOS) {
+            if (!sleep((remainingNanos - SPIN_NANOS) / 1000000)) {
+                return false;
+            }
+        }
+        long now;
+        while ((now = System.nanoTime()) < targetNanos) {
+            if (stopped) {
+                return false;
+            }
+        }
+        jitter.record(now - targetNanos);
+        return true;
+    }
+
+    private boolean sleep(long millis)
+    {
+        if (stopped) {
+            return false;
+        }
+        if (millis <= 0) {
+            return true;
+        }
+        try {
+            Thread.sleep(millis);
+            ++wakeupCount;
+            return true;
+        } catch (InterruptedException ex) {
+            return false;
+        }
+    }
+}
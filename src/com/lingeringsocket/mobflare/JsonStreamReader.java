@@ -0,0 +1,404 @@
+/**
+ * Copyright 2012 Lingering Socket Labs
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.lingeringsocket.mobflare;
+
+import java.io.*;
+
+/**
+ * Pull parser which reads a JSON document one token at a time directly
+ * from a stream, so that coordinator responses can be decoded into
+ * result objects without first buffering them into a String and a DOM.
+ * (android.util.JsonReader does the same job, but requires API level 11.)
+ */
+class JsonStreamReader extends WireReader
+{
+    private static final int EMPTY_DOCUMENT = 0;
+    private static final int NONEMPTY_DOCUMENT = 1;
+    private static final int EMPTY_ARRAY = 2;
+    private static final int NONEMPTY_ARRAY = 3;
+    private static final int EMPTY_OBJECT = 4;
+    private static final int DANGLING_NAME = 5;
+    private static final int NONEMPTY_OBJECT = 6;
+
+    private final Reader in;
+    private final char [] buffer = new char[1024];
+    private int pos;
+    private int limit;
+    private int [] stack = new int[16];
+    private int stackSize;
+    private Token token;
+    private String value;
+    private final StringBuilder builder = new StringBuilder();
+
+    /**
+     * Creates a reader for a UTF-8 encoded stream.
+     *
+     * @param is stream to read; closed by {@link #close}
+     */
+    JsonStreamReader(InputStream is) throws IOException
+    {
+        this(new InputStreamReader(is, "UTF-8"));
+    }
+
+    JsonStreamReader(Reader in)
+    {
+        this.in = in;
+        push(EMPTY_DOCUMENT);
+    }
+
+    @Override
+    Token peek() throws IOException
+    {
+        if (token != null) {
+            return token;
+        }
+        int c;
+        switch (stack[stackSize - 1]) {
+        case EMPTY_DOCUMENT:
+            stack[stackSize - 1] = NONEMPTY_DOCUMENT;
+            token = readValue(nextNonWhitespace());
+            break;
+        case NONEMPTY_DOCUMENT:
+            if (!skipWhitespace()) {
+                token = Token.END_DOCUMENT;
+            } else {
+                throw syntaxError("Trailing content after document");
+            }
+            break;
+        case EMPTY_ARRAY:
+            stack[stackSize - 1] = NONEMPTY_ARRAY;
+            c = nextNonWhitespace();
+            if (c == ']') {
+                token = Token.END_ARRAY;
+            } else {
+                token = readValue(c);
+            }
+            break;
+        case NONEMPTY_ARRAY:
+            c = nextNonWhitespace();
+            if (c == ']') {
+                token = Token.END_ARRAY;
+            } else if (c == ',') {
+                token = readValue(nextNonWhitespace());
+            } else {
+                throw syntaxError("Unterminated array");
+            }
+            break;
+        case EMPTY_OBJECT:
+        case NONEMPTY_OBJECT:
+            c = nextNonWhitespace();
+            if (c == '}') {
+                token = Token.END_OBJECT;
+                break;
+            }
+            if (stack[stackSize - 1] == NONEMPTY_OBJECT) {
+                if (c != ',') {
+                    throw syntaxError("Unterminated object");
+                }
+                c = nextNonWhitespace();
+            }
+            if (c != '"') {
+                throw syntaxError("Expected name");
+            }
+            stack[stackSize - 1] = DANGLING_NAME;
+            value = readString();
+            token = Token.NAME;
+            break;
+        case DANGLING_NAME:
+            if (nextNonWhitespace() != ':') {
+                throw syntaxError("Expected ':'");
+            }
+            stack[stackSize - 1] = NONEMPTY_OBJECT;
+            token = readValue(nextNonWhitespace());
+            break;
+        default:
+            throw new IllegalStateException();
+        }
+        return token;
+    }
+
+    @Override
+    void beginArray() throws IOException
+    {
+        expect(Token.BEGIN_ARRAY);
+        push(EMPTY_ARRAY);
+    }
+
+    @Override
+    void endArray() throws IOException
+    {
+        expect(Token.END_ARRAY);
+        --stackSize;
+    }
+
+    @Override
+    void beginObject() throws IOException
+    {
+        expect(Token.BEGIN_OBJECT);
+        push(EMPTY_OBJECT);
+    }
+
+    @Override
+    void endObject() throws IOException
+    {
+        expect(Token.END_OBJECT);
+        --stackSize;
+    }
+
+    @Override
+    String nextName() throws IOException
+    {
+        expect(Token.NAME);
+        return value;
+    }
+
+    @Override
+    String nextString() throws IOException
+    {
+        Token t = peek();
+        if ((t != Token.STRING) && (t != Token.NUMBER)) {
+            throw typeError(Token.STRING);
+        }
+        token = null;
+        return value;
+    }
+
+    @Override
+    boolean nextBoolean() throws IOException
+    {
+        expect(Token.BOOLEAN);
+        return value.equals("true");
+    }
+
+    @Override
+    void nextNull() throws IOException
+    {
+        expect(Token.NULL);
+    }
+
+    @Override
+    double nextDouble() throws IOException
+    {
+        String s = nextString();
+        try {
+            return Double.parseDouble(s);
+        } catch (NumberFormatException ex) {
+            throw syntaxError("Expected number but was " + s);
+        }
+    }
+
+    @Override
+    long nextLong() throws IOException
+    {
+        String s = nextString();
+        try {
+            return Long.parseLong(s);
+        } catch (NumberFormatException ex) {
+            // e.g. "1.0" or "1e3"
+        }
+        double d;
+        try {
+            d = Double.parseDouble(s);
+        } catch (NumberFormatException ex) {
+            throw syntaxError("Expected number but was " + s);
+        }
+        long l = (long) d;
+        if (l != d) {
+            throw syntaxError("Expected integer but was " + s);
+        }
+        return l;
+    }
+
+    @Override
+    int nextInt() throws IOException
+    {
+        long l = nextLong();
+        if ((int) l != l) {
+            throw syntaxError("Integer out of range: " + l);
+        }
+        return (int) l;
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        in.close();
+    }
+
+    private void expect(Token expected) throws IOException
+    {
+        if (peek() != expected) {
+            throw typeError(expected);
+        }
+        token = null;
+    }
+
+    private void push(int scope)
+    {
+        if (stackSize == stack.length) {
+            int [] newStack = new int[stackSize * 2];
+            System.arraycopy(stack, 0, newStack, 0, stackSize);
+            stack = newStack;
+        }
+        stack[stackSize++] = scope;
+    }
+
+    private Token readValue(int c) throws IOException
+    {
+        switch (c) {
+        case '[':
+            return Token.BEGIN_ARRAY;
+        case '{':
+            return Token.BEGIN_OBJECT;
+        case '"':
+            value = readString();
+            return Token.STRING;
+        default:
+            value = readLiteral((char) c);
+            if (value.equals("true") || value.equals("false")) {
+                return Token.BOOLEAN;
+            }
+            if (value.equals("null")) {
+                return Token.NULL;
+            }
+            return Token.NUMBER;
+        }
+    }
+
+    private String readString() throws IOException
+    {
+        builder.setLength(0);
+        for (;;) {
+            if (!fill()) {
+                throw syntaxError("Unterminated string");
+            }
+            // copy unescaped runs straight out of the buffer
+            int start = pos;
+            while (pos < limit) {
+                char c = buffer[pos++];
+                if (c == '"') {
+                    builder.append(buffer, start, pos - start - 1);
+                    return builder.toString();
+                }
+                if (c == '\\') {
+                    builder.append(buffer, start, pos - start - 1);
+                    builder.append(readEscape());
+                    start = pos;
+                }
+            }
+            builder.append(buffer, start, pos - start);
+        }
+    }
+
+    private char readEscape() throws IOException
+    {
+        int c = nextChar();
+        switch (c) {
+        case 'b':
+            return '\b';
+        case 'f':
+            return '\f';
+        case 'n':
+            return '\n';
+        case 'r':
+            return '\r';
+        case 't':
+            return '\t';
+        case 'u':
+            int code = 0;
+            for (int i = 0; i < 4; ++i) {
+                int digit = Character.digit((char) nextChar(), 16);
+                if (digit < 0) {
+                    throw syntaxError("Malformed unicode escape");
+                }
+                code = (code << 4) | digit;
+            }
+            return (char) code;
+        default:
+            // '"', '\\', '/'
+            return (char) c;
+        }
+    }
+
+    private String readLiteral(char first) throws IOException
+    {
+        builder.setLength(0);
+        builder.append(first);
+        while (fill()) {
+            char c = buffer[pos];
+            if ((c == ',') || (c == ']') || (c == '}') || (c == ':')
+                || (c == ' ') || (c == '\t') || (c == '\n') || (c == '\r'))
+            {
+                break;
+            }
+            builder.append(c);
+            ++pos;
+        }
+        return builder.toString();
+    }
+
+    private int nextChar() throws IOException
+    {
+        if (!fill()) {
+            throw syntaxError("Unexpected end of input");
+        }
+        return buffer[pos++];
+    }
+
+    private int nextNonWhitespace() throws IOException
+    {
+        if (!skipWhitespace()) {
+            throw syntaxError("Unexpected end of input");
+        }
+        return buffer[pos++];
+    }
+
+    private boolean skipWhitespace() throws IOException
+    {
+        while (fill()) {
+            char c = buffer[pos];
+            if ((c != ' ') && (c != '\t') && (c != '\n') && (c != '\r')) {
+                return true;
+            }
+            ++pos;
+        }
+        return false;
+    }
+
+    private boolean fill() throws IOException
+    {
+        if (pos < limit) {
+            return true;
+        }
+        int n = in.read(buffer, 0, buffer.length);
+        if (n <= 0) {
+            return false;
+        }
+        pos = 0;
+        limit = n;
+        return true;
+    }
+
+    private IOException typeError(Token expected) throws IOException
+    {
+        return new IOException("Expected " + expected + " but was " + peek());
+    }
+
+    private IOException syntaxError(String message)
+    {
+        return new IOException("Malformed JSON: " + message);
+    }
+}
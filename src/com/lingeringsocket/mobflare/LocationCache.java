@@ -0,0 +1,244 @@
+/**
+ * Copyright 2012 Lingering Socket Labs
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.lingeringsocket.mobflare;
+
+import java.util.*;
+
+import android.content.*;
+import android.location.*;
+
+/**
+ * Shares the best known location fix across the whole app, so that any
+ * screen (or RPC) can get a usable position without starting another
+ * provider request.  Fixes come in from {@link LocationRequest}s (and
+ * from the providers' last known locations); callers say how old and
+ * how inaccurate a fix they can live with, and listeners hear about
+ * every improvement.
+ */
+class LocationCache
+{
+    /**
+     * What a caller will accept from the cache.
+     */
+    static class Policy
+    {
+        final long maxAgeMillis;
+        final float maxErrorMeters;
+
+        Policy(long maxAgeMillis, float maxErrorMeters)
+        {
+            this.maxAgeMillis = maxAgeMillis;
+            this.maxErrorMeters = maxErrorMeters;
+        }
+
+        boolean accepts(Location fix)
+        {
+            return accepts(fix, System.currentTimeMillis());
+        }
+
+        /**
+         * @param now wall clock time, which fixes are stamped with
+         */
+        boolean accepts(Location fix, long now)
+        {
+            return (now - fix.getTime() <= maxAgeMillis)
+                && fix.hasAccuracy()
+                && (fix.getAccuracy() <= maxErrorMeters);
+        }
+    }
+
+    // good enough to search for flares nearby
+    static final Policy LISTING = new Policy(10 * 60 * 1000, 500);
+
+    // good enough to put a new flare on the map
+    static final Policy CREATION = new Policy(2 * 60 * 1000, 100);
+
+    // a fix this much newer than the current one wins regardless
+    private static final long SIGNIFICANTLY_NEWER_MILLIS = 120000;
+
+    /**
+     * Hears about each improvement to the cached fix, on the thread
+     * which supplied it (the UI thread, for fixes from a
+     * {@link LocationRequest}).
+     */
+    interface Listener
+    {
+        void onLocationChanged(Location fix);
+    }
+
+    private static LocationCache instance;
+
+    private final LocationManager locationManager;
+    private final Clock clock;
+    private final List<Listener> listeners = new ArrayList<Listener>();
+    private Location best;
+
+    private long hitCount;
+    private long missCount;
+    private long servedAgeSumMillis;
+    private long servedAgeMaxMillis;
+
+    private LocationCache(Context context)
+    {
+        this((LocationManager)
+            context.getSystemService(Context.LOCATION_SERVICE),
+            Clock.SYSTEM);
+    }
+
+    /**
+     * Creates a cache of its own, for tests.
+     */
+    LocationCache(LocationManager locationManager, Clock clock)
+    {
+        this.locationManager = locationManager;
+        this.clock = clock;
+    }
+
+    static synchronized LocationCache getInstance(Context context)
+    {
+        if (instance == null) {
+            instance = new LocationCache(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    /**
+     * Looks up a fix which satisfies a policy.
+     *
+     * @return fix, or null if none known does
+     */
+    synchronized Location get(Policy policy)
+    {
+        long now = clock.currentTimeMillis();
+        if ((best == null) || !policy.accepts(best, now)) {
+            // other apps may have brought the providers' fixes up to date
+            absorbLastKnown();
+        }
+        if ((best == null) || !policy.accepts(best, now)) {
+            ++missCount;
+            return null;
+        }
+        long age = now - best.getTime();
+        ++hitCount;
+        servedAgeSumMillis += age;
+        servedAgeMaxMillis = Math.max(servedAgeMaxMillis, age);
+        return best;
+    }
+
+    /**
+     * @return the best fix known, however old or inaccurate, or null
+     */
+    synchronized Location getLatest()
+    {
+        absorbLastKnown();
+        return best;
+    }
+
+    /**
+     * Offers a new fix, which replaces the cached one if it is better.
+     */
+    void put(Location fix)
+    {
+        List<Listener> toNotify;
+        synchronized (this) {
+            if (!isBetter(fix, best)) {
+                return;
+            }
+            best = fix;
+            toNotify = new ArrayList<Listener>(listeners);
+        }
+        for (Listener listener : toNotify) {
+            listener.onLocationChanged(fix);
+        }
+    }
+
+    synchronized void addListener(Listener listener)
+    {
+        listeners.add(listener);
+    }
+
+    synchronized void removeListener(Listener listener)
+    {
+        listeners.remove(listener);
+    }
+
+    /**
+     * @return number of lookups answered with a fix
+     */
+    synchronized long getHitCount()
+    {
+        return hitCount;
+    }
+
+    /**
+     * @return number of lookups which found no acceptable fix
+     */
+    synchronized long getMissCount()
+    {
+        return missCount;
+    }
+
+    @Override
+    public synchronized String toString()
+    {
+        StringBuilder sb = new StringBuilder();
+        sb.append(hitCount).append(" hits, ");
+        sb.append(missCount).append(" misses");
+        if (hitCount > 0) {
+            sb.append("; served fixes ");
+            sb.append((servedAgeSumMillis / hitCount) / 1000);
+            sb.append(" s old on average, at most ");
+            sb.append(servedAgeMaxMillis / 1000).append(" s");
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Decides whether one fix is better than another, favoring accuracy
+     * unless the other is a lot older.
+     */
+    static boolean isBetter(Location fix, Location current)
+    {
+        if (current == null) {
+            return true;
+        }
+        long timeDelta = fix.getTime() - current.getTime();
+        if (timeDelta > SIGNIFICANTLY_NEWER_MILLIS) {
+            return true;
+        }
+        if (timeDelta < -SIGNIFICANTLY_NEWER_MILLIS) {
+            return false;
+        }
+        float accuracy =
+            fix.hasAccuracy() ? fix.getAccuracy() : Float.MAX_VALUE;
+        float currentAccuracy =
+            current.hasAccuracy() ? current.getAccuracy() : Float.MAX_VALUE;
+        if (accuracy < currentAccuracy) {
+            return true;
+        }
+        return (timeDelta > 0) && (accuracy == currentAccuracy);
+    }
+
+    private void absorbLastKnown()
+    {
+        for (String provider : locationManager.getProviders(true)) {
+            Location lastKnown = locationManager.getLastKnownLocation(provider);
+            if ((lastKnown != null) && isBetter(lastKnown, best)) {
+                best = lastKnown;
+            }
+        }
+    }
+}
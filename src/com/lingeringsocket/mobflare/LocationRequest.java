@@ -0,0 +1,351 @@
+/**
+ * Copyright 2012 Lingering Socket Labs
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.lingeringsocket.mobflare;
+
+import java.util.*;
+
+import android.content.*;
+import android.location.*;
+import android.os.*;
+import android.util.*;
+
+/**
+ * Obtains a location fix without tying up a thread while waiting:
+ * location updates and the timeout are both delivered through the main
+ * looper, and results are handed to a callback there, which can go on
+ * to start whatever needs the fix (typically an {@link RpcTask}).
+ *
+ *<p>
+ *
+ * All enabled providers (GPS, network and passive) are raced against
+ * each other.  The first fix which is accurate and recent enough is
+ * reported right away (indoors, that's normally the network's), and
+ * better ones keep being reported as they arrive, until one is as good
+ * as we need or the time runs out.  Every fix also goes into the
+ * {@link LocationCache}.  Must be used from the UI thread.
+ */
+class LocationRequest
+{
+    private static String LOGTAG = "LocationRequest";
+
+    static final long DEFAULT_TIMEOUT_MILLIS = 120000;
+
+    // stop refining once a fix is this good
+    private static final float REFINED_ACCURACY_METERS = 50;
+
+    // constant from API level 8
+    private static final String PASSIVE_PROVIDER = "passive";
+
+    private static final String [] PROVIDERS =
+    {
+        LocationManager.GPS_PROVIDER,
+        LocationManager.NETWORK_PROVIDER,
+        PASSIVE_PROVIDER
+    };
+
+    // time to first usable fix, by provider, over the life of the process
+    private static final Map<String, ProviderStats> providerStats =
+        new HashMap<String, ProviderStats>();
+
+    /**
+     * Receives the outcome of a request.
+     */
+    interface Callback
+    {
+        /**
+         * Called once, unless the request is cancelled, with the first
+         * usable fix, or at the timeout with the best one obtained
+         * (usable or not).
+         *
+         * @param result fix obtained, or a bogus location if none was
+         * @param isBogus whether no fix was obtained
+         */
+        void onLocationObtained(Location result, boolean isBogus);
+
+        /**
+         * Called afterwards for each better fix, until refinement ends.
+         */
+        void onLocationImproved(Location result);
+    }
+
+    private final LocationManager locationManager;
+    private final LocationCache cache;
+    private final LocationCache.Policy usablePolicy;
+    private final Handler handler = new Handler();
+    private final List<Listener> listeners = new ArrayList<Listener>();
+    private Location location;
+    private Callback callback;
+    private long startTime;
+    private boolean started;
+    private boolean obtained;
+    private boolean done;
+
+    private final Runnable timeout = new Runnable()
+        {
+            public void run()
+            {
+                finish();
+            }
+        };
+
+    /**
+     * @param context context for looking up the location service
+     * @param usablePolicy what fix is worth reporting right away
+     */
+    LocationRequest(Context context, LocationCache.Policy usablePolicy)
+    {
+        this.usablePolicy = usablePolicy;
+        locationManager = (LocationManager)
+            context.getSystemService(Context.LOCATION_SERVICE);
+        cache = LocationCache.getInstance(context);
+        for (String provider : locationManager.getProviders(true)) {
+            if (Arrays.asList(PROVIDERS).contains(provider)) {
+                listeners.add(new Listener(provider));
+            }
+        }
+        location = cache.getLatest();
+    }
+
+    /**
+     * @return best location known so far (before starting, the cache's
+     * best), or null
+     */
+    Location getLastLocation()
+    {
+        return location;
+    }
+
+    /**
+     * Starts listening for fresh fixes.
+     *
+     * @param timeoutMillis how long to wait for a usable fix, and to
+     * keep refining it afterwards
+     * @param callback receives the results
+     */
+    void start(long timeoutMillis, Callback callback)
+    {
+        if (started) {
+            throw new IllegalStateException("already started");
+        }
+        started = true;
+        this.callback = callback;
+        startTime = SystemClock.elapsedRealtime();
+        synchronized (providerStats) {
+            for (Listener listener : listeners) {
+                getStats(listener.provider).requestCount++;
+            }
+        }
+        if (listeners.isEmpty()) {
+            // nothing enabled; report that asynchronously, just as if
+            // we had waited
+            handler.post(timeout);
+            return;
+        }
+        for (Listener listener : listeners) {
+            locationManager.requestLocationUpdates(
+                listener.provider, 0, 0, listener, Looper.getMainLooper());
+        }
+        handler.postDelayed(timeout, timeoutMillis);
+        if ((location != null) && usablePolicy.accepts(location)) {
+            // a recent cached fix will do to start with
+            handler.post(new Runnable()
+                {
+                    public void run()
+                    {
+                        deliver();
+                    }
+                });
+        }
+    }
+
+    /**
+     * Stops waiting, and reports whatever location is known now (if
+     * nothing has been reported yet).
+     */
+    void stopWaiting()
+    {
+        finish();
+    }
+
+    /**
+     * Stops waiting, without reporting anything more.
+     */
+    void cancel()
+    {
+        callback = null;
+        finish();
+    }
+
+    /**
+     * @return whether the request has finished (or been cancelled)
+     */
+    boolean isDone()
+    {
+        return done;
+    }
+
+    /**
+     * @return time to first usable fix for each provider, over the life
+     * of the process
+     */
+    static String getProviderStats()
+    {
+        synchronized (providerStats) {
+            return providerStats.toString();
+        }
+    }
+
+    private void onFix(Listener listener, Location fix)
+    {
+        cache.put(fix);
+        boolean usable = usablePolicy.accepts(fix);
+        if (!listener.usable && usable) {
+            listener.usable = true;
+            long millis = SystemClock.elapsedRealtime() - startTime;
+            synchronized (providerStats) {
+                ProviderStats stats = getStats(listener.provider);
+                stats.fixCount++;
+                stats.sumMillis += millis;
+                stats.maxMillis = Math.max(stats.maxMillis, millis);
+            }
+        }
+        if (!LocationCache.isBetter(fix, location)) {
+            return;
+        }
+        location = fix;
+        if (obtained) {
+            if (callback != null) {
+                callback.onLocationImproved(fix);
+            }
+        } else if (usable) {
+            deliver();
+        }
+        if (fix.hasAccuracy() && (fix.getAccuracy() <= REFINED_ACCURACY_METERS)) {
+            // as good as it needs to get
+            finish();
+        }
+    }
+
+    private void onProviderGone(Listener listener)
+    {
+        locationManager.removeUpdates(listener);
+        listeners.remove(listener);
+        if (listeners.isEmpty()) {
+            finish();
+        }
+    }
+
+    private void deliver()
+    {
+        if (obtained || done) {
+            return;
+        }
+        obtained = true;
+        if (callback == null) {
+            return;
+        }
+        Location result = location;
+        boolean isBogus = false;
+        if (result == null) {
+            result = new Location(LocationManager.GPS_PROVIDER);
+            isBogus = true;
+        }
+        callback.onLocationObtained(result, isBogus);
+    }
+
+    private void finish()
+    {
+        if (done) {
+            return;
+        }
+        deliver();
+        done = true;
+        handler.removeCallbacks(timeout);
+        for (Listener listener : listeners) {
+            locationManager.removeUpdates(listener);
+        }
+        Log.i(LOGTAG, "Time to first usable fix:  " + getProviderStats());
+        Log.i(LOGTAG, "Location cache:  " + cache);
+    }
+
+    private static ProviderStats getStats(String provider)
+    {
+        ProviderStats stats = providerStats.get(provider);
+        if (stats == null) {
+            stats = new ProviderStats();
+            providerStats.put(provider, stats);
+        }
+        return stats;
+    }
+
+    private static class ProviderStats
+    {
+        int requestCount;
+        int fixCount;
+        long sumMillis;
+        long maxMillis;
+
+        @Override
+        public String toString()
+        {
+            if (fixCount == 0) {
+                return "0/" + requestCount;
+            }
+            return fixCount + "/" + requestCount + " mean "
+                + (sumMillis / fixCount) + " ms, max " + maxMillis + " ms";
+        }
+    }
+
+    private class Listener implements LocationListener
+    {
+        final String provider;
+        boolean usable;
+
+        Listener(String provider)
+        {
+            this.provider = provider;
+        }
+
+        @Override
+        public void onLocationChanged(Location fix)
+        {
+            if (!done) {
+                onFix(this, fix);
+            }
+        }
+
+        @Override
+        public void onProviderEnabled(String provider)
+        {
+        }
+
+        @Override
+        public void onProviderDisabled(String provider)
+        {
+            if (!done) {
+                onProviderGone(this);
+            }
+        }
+
+        @Override
+        public void onStatusChanged(String provider, int status, Bundle extras)
+        {
+            if (!done && (status == LocationProvider.OUT_OF_SERVICE)) {
+                onProviderGone(this);
+            }
+        }
+    }
+}
@@ -37,13 +37,28 @@ import org.json.*;
 public class Main extends Activity
 {
     private static String LOGTAG = "Main";
+
+    // enough to fill a few screens; with the whole-Earth search there's
+    // no point ordering thousands of flares up front, so the rest are
+    // only sorted if the user scrolls that far
+    private static final int ORDERED_FLARES = 100;
+
+    // relist once a refined fix moves this fraction of the search radius
+    private static final float RELIST_FRACTION = 0.25f;
     
-    private List<String> flareList;
-    private ArrayAdapter<String> arrayAdapter;
+    private List<FlareSummary> flareList;
+    private ListView flareListView;
+    private int orderedCount;
+    private boolean shownBogusLocation;
+    private FlareListAdapter arrayAdapter;
     private RpcCoordinator rpcCoordinator;
-    private String emptyMessage;
-    private RefreshLocationTask locationTask;
-    private Location newFlareLocation;
+    private FlareSummary emptyFlare;
+    private LocationCache locationCache;
+    private LocationCache.Listener locationListener;
+    private LocationRequest locationRequest;
+    private ProgressDialog locationProgress;
+    private Location listedLocation;
+    private float listedRadius;
     private boolean bogusLocation;
     private int clientVersion;
     
@@ -52,29 +67,48 @@ public class Main extends Activity
     {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.main);
-        emptyMessage = getString(R.string.empty_message);
-        ListView flareListView = (ListView) findViewById(R.id.flare_list);
-        flareList = new ArrayList<String>();
-        arrayAdapter = new ArrayAdapter<String>(
-            this, android.R.layout.simple_list_item_1,
-            android.R.id.text1, flareList);
+        emptyFlare = new FlareSummary(getString(R.string.empty_message));
+        flareListView = (ListView) findViewById(R.id.flare_list);
+        flareList = new ArrayList<FlareSummary>();
+        arrayAdapter = new FlareListAdapter();
         flareListView.setAdapter(arrayAdapter);
         flareListView.setOnItemClickListener(new ListView.OnItemClickListener()
             {
                 public void onItemClick(AdapterView<?> parent, View view,
                     int position, long id) 
                 {
-                    String flareName = flareList.get((int) id);
-                    if (flareName.equals(emptyMessage)) {
+                    FlareSummary flare = flareList.get((int) id);
+                    if (flare == emptyFlare) {
                         onCreateClicked(view);
                         return;
                     }
+                    // whatever's left would only compete with the join
+                    FlarePrefetcher.getInstance(Main.this).cancel();
                     Intent i = new Intent(Main.this, WaitFlare.class);
-                    i.putExtra(FlareTimer.FLARE_NAME, flareName);
+                    i.putExtra(FlareTimer.FLARE_NAME, flare.name);
                     startActivity(i);
                 }
             }
             );
+        flareListView.setOnScrollListener(new AbsListView.OnScrollListener()
+            {
+                public void onScroll(AbsListView view, int firstVisibleItem,
+                    int visibleItemCount, int totalItemCount)
+                {
+                    // finish ordering just before the unordered flares
+                    // come into view
+                    if (firstVisibleItem + (2 * visibleItemCount)
+                        > orderedCount)
+                    {
+                        orderRemainingFlares();
+                    }
+                }
+
+                public void onScrollStateChanged(
+                    AbsListView view, int scrollState)
+                {
+                }
+            });
 
         try {
             PackageInfo pInfo =
@@ -85,9 +119,51 @@ public class Main extends Activity
         }
 
         rpcCoordinator = new RpcCoordinator(this);
+
+        // relist whenever a fix (from our own request or anyone else's)
+        // shows we've moved
+        locationCache = LocationCache.getInstance(this);
+        locationListener = new LocationCache.Listener()
+            {
+                public void onLocationChanged(Location fix)
+                {
+                    if (LocationCache.LISTING.accepts(fix)) {
+                        updateLocation(fix);
+                    }
+                }
+            };
+        locationCache.addListener(locationListener);
+
+        // show whatever we found last time while we look again
+        new LoadLastListTask().execute();
         refresh();
     }
 
+    @Override
+    protected void onResume()
+    {
+        super.onResume();
+        if ((listedLocation != null) && !bogusLocation
+            && (listedRadius != getSearchRadius()))
+        {
+            // search radius changed in settings; usually the flares we
+            // already have can answer that
+            refreshFlares(listedLocation);
+        }
+    }
+
+    @Override
+    protected void onDestroy()
+    {
+        super.onDestroy();
+        locationCache.removeListener(locationListener);
+        if (locationRequest != null) {
+            locationRequest.cancel();
+            locationRequest = null;
+        }
+        dismissLocationProgress();
+    }
+
     @Override
     public boolean onCreateOptionsMenu(Menu menu)
     {
@@ -102,6 +178,8 @@ public class Main extends Activity
     {
         switch (item.getItemId()) {
         case R.id.refresh:
+            // the user wants to hear from the coordinator
+            RpcCoordinator.getFlareIndex().clear();
             refresh();
             return true;
         case R.id.about:
@@ -113,6 +191,9 @@ public class Main extends Activity
         case R.id.settings:
             displaySettings();
             return true;
+        case R.id.calibrate:
+            displayCalibration();
+            return true;
         default:
             return false;
         }
@@ -120,20 +201,89 @@ public class Main extends Activity
 
     private void refresh()
     {
-        if (locationTask != null) {
-            refreshFlares(locationTask.getLastLocation());
+        if ((locationRequest != null) && !locationRequest.isDone()) {
+            refreshFlares(locationRequest.getLastLocation());
             return;
         }
-        locationTask = new RefreshLocationTask();        
-        Location location = locationTask.getLastLocation();
-        if (location == null) {
-            locationTask.setBlocking(true);
+        Location location = locationCache.get(LocationCache.LISTING);
+        if (location != null) {
+            // recent enough that there's no need to ask the providers
+            bogusLocation = false;
+            refreshFlares(location);
+            return;
+        }
+        locationRequest = new LocationRequest(this, LocationCache.LISTING);
+        location = locationRequest.getLastLocation();
+        final boolean blocking = (location == null);
+        if (blocking) {
+            // nothing to go on until a fix arrives
+            showLocationProgress();
         } else {
-            // kick off location update in background
-            locationTask.setBlocking(false);
+            // list from what we have now, and relist if the fixes
+            // which follow show we're somewhere else
             refreshFlares(location);
         }
-        locationTask.execute();
+        locationRequest.start(
+            LocationRequest.DEFAULT_TIMEOUT_MILLIS,
+            new LocationRequest.Callback()
+            {
+                public void onLocationObtained(
+                    Location result, boolean isBogus)
+                {
+                    dismissLocationProgress();
+                    if (!isBogus) {
+                        updateLocation(result);
+                    } else if (blocking) {
+                        bogusLocation = true;
+                        refreshFlares(result);
+                    }
+                }
+
+                public void onLocationImproved(Location result)
+                {
+                    // locationListener has already seen it
+                }
+            });
+    }
+
+    private void updateLocation(Location fix)
+    {
+        float relistMeters =
+            Prefs.getSearchRadius(this) * 1000 * RELIST_FRACTION;
+        if ((listedLocation == null) || bogusLocation
+            || (fix.distanceTo(listedLocation) > relistMeters))
+        {
+            bogusLocation = false;
+            refreshFlares(fix);
+        }
+    }
+
+    private void showLocationProgress()
+    {
+        locationProgress = new ProgressDialog(this);
+        locationProgress.setMessage(getString(R.string.obtaining_location));
+        locationProgress.setIndeterminate(true);
+        locationProgress.setCancelable(true);
+        locationProgress.setOnCancelListener(
+            new DialogInterface.OnCancelListener()
+            {
+                public void onCancel(DialogInterface dialog)
+                {
+                    // settle for searching everywhere
+                    if (locationRequest != null) {
+                        locationRequest.stopWaiting();
+                    }
+                }
+            });
+        locationProgress.show();
+    }
+
+    private void dismissLocationProgress()
+    {
+        if (locationProgress != null) {
+            locationProgress.dismiss();
+            locationProgress = null;
+        }
     }
 
     private float getSearchRadius()
@@ -153,10 +303,82 @@ public class Main extends Activity
             locationError();
             return;
         }
-        newFlareLocation = location;
+        listedLocation = location;
+        listedRadius = getSearchRadius();
+        if (!bogusLocation) {
+            long startTime = System.nanoTime();
+            List<FlareSummary> flares = rpcCoordinator.findIndexedFlares(
+                location, listedRadius, ORDERED_FLARES);
+            if (flares != null) {
+                showFlares(flares);
+                FlareIndex index = RpcCoordinator.getFlareIndex();
+                Log.d(LOGTAG, "Listed from index in "
+                    + ((System.nanoTime() - startTime) / 1000) + " us ("
+                    + index.getHitCount() + " hits, "
+                    + index.getMissCount() + " misses)");
+                return;
+            }
+        }
         RefreshTask refreshTask = new RefreshTask(location);
-        refreshTask.setCoordinator(rpcCoordinator);
-        refreshTask.execute();
+        refreshTask.executeInParallel();
+    }
+
+    private void showFlares(List<FlareSummary> flares)
+    {
+        // the user is likely to pick one of the first few
+        FlarePrefetcher.getInstance(this).prefetch(flares);
+        if (flares.isEmpty()) {
+            flares = Collections.singletonList(emptyFlare);
+        }
+        if ((shownBogusLocation != bogusLocation)
+            || !hasSameRows(flares))
+        {
+            shownBogusLocation = bogusLocation;
+            flareList.clear();
+            flareList.addAll(flares);
+            orderedCount = Math.min(ORDERED_FLARES, flareList.size());
+            arrayAdapter.notifyDataSetChanged();
+            return;
+        }
+        // same flares in the same order (the usual case for a refresh);
+        // swap in the new summaries and rebind just the visible rows
+        // which look different, rather than the whole list
+        int first = flareListView.getFirstVisiblePosition();
+        for (int i = 0; i < flares.size(); ++i) {
+            FlareSummary shown = flareList.get(i);
+            FlareSummary flare = flares.get(i);
+            flareList.set(i, flare);
+            if (Double.compare(shown.distance, flare.distance) != 0) {
+                View row = flareListView.getChildAt(i - first);
+                if (row != null) {
+                    arrayAdapter.getView(i, row, flareListView);
+                }
+            }
+        }
+    }
+
+    private void orderRemainingFlares()
+    {
+        if (orderedCount >= flareList.size()) {
+            return;
+        }
+        FlareRanking.sortByDistance(
+            flareList.subList(orderedCount, flareList.size()));
+        orderedCount = flareList.size();
+        arrayAdapter.notifyDataSetChanged();
+    }
+
+    private boolean hasSameRows(List<FlareSummary> flares)
+    {
+        if (flares.size() != flareList.size()) {
+            return false;
+        }
+        for (int i = 0; i < flares.size(); ++i) {
+            if (!flares.get(i).name.equals(flareList.get(i).name)) {
+                return false;
+            }
+        }
+        return true;
     }
 
     private void locationError()
@@ -173,6 +395,11 @@ public class Main extends Activity
         startActivity(new Intent(this, Prefs.class));
     }
 
+    protected void displayCalibration()
+    {
+        startActivity(new Intent(this, Calibrate.class));
+    }
+
     protected void displayAboutBox()
     {
         startActivity(new Intent(this, About.class));
@@ -185,17 +412,46 @@ public class Main extends Activity
 
     public void onCreateClicked(View v)
     {
-        if (newFlareLocation == null) {
+        // FlareName looks for a better fix when it actually creates the
+        // flare; this is just a fallback
+        Location location = locationCache.getLatest();
+        if (location == null) {
             locationError();
             return;
         }
         Intent i = new Intent(this, FlareType.class);
-        i.putExtra(FlareTimer.LATITUDE, newFlareLocation.getLatitude());
-        i.putExtra(FlareTimer.LONGITUDE, newFlareLocation.getLongitude());
+        i.putExtra(FlareTimer.LATITUDE, location.getLatitude());
+        i.putExtra(FlareTimer.LONGITUDE, location.getLongitude());
         startActivity(i);
     }
 
-    private class RefreshTask extends RpcTask<Void, Void, List<String>> 
+    /**
+     * Reads the last persisted flare list off the UI thread.
+     */
+    private class LoadLastListTask
+        extends AsyncTask<Void, Void, List<FlareSummary>>
+    {
+        @Override
+        protected List<FlareSummary> doInBackground(Void... v)
+        {
+            return rpcCoordinator.loadLastFlareList(ORDERED_FLARES);
+        }
+
+        @Override
+        protected void onPostExecute(List<FlareSummary> lastFlares)
+        {
+            if ((lastFlares == null) || !flareList.isEmpty()) {
+                // nothing saved, or a fresh list already beat us
+                return;
+            }
+            flareList.addAll(lastFlares);
+            orderedCount = Math.min(ORDERED_FLARES, flareList.size());
+            arrayAdapter.notifyDataSetChanged();
+        }
+    }
+
+    private class RefreshTask
+        extends RpcTask<Void, Void, List<FlareSummary>> 
     {
         private Location location;
 
@@ -213,42 +469,46 @@ public class Main extends Activity
         }
         
         @Override
-        protected List<String> executeCall(Void... v) throws Exception
+        protected List<FlareSummary> executeCall(Void... v) throws Exception
         {
-            return rpcCoordinator.listFlares(
-                location, getSearchRadius(), clientVersion);
+            return runCall(rpcCoordinator.listFlares(
+                location, getSearchRadius(), clientVersion,
+                ORDERED_FLARES));
         }
 
         @Override
-        protected void onPostExecute(List<String> flares)
+        protected void onPostExecute(List<FlareSummary> flares)
         {
-            flareList.clear();
-            if (flares.isEmpty()) {
-                flareList.add(emptyMessage);
-            } else {
-                flareList.addAll(flares);
-            }
-            arrayAdapter.notifyDataSetChanged();
+            showFlares(flares);
             progress.dismiss();
         }
     }
 
-    private class RefreshLocationTask extends LocationTask 
+    private class FlareListAdapter extends ArrayAdapter<FlareSummary>
     {
-        RefreshLocationTask() 
+        FlareListAdapter()
         {
-            super(Main.this);
+            super(
+                Main.this, android.R.layout.simple_list_item_2,
+                android.R.id.text1, flareList);
         }
 
-        protected void onLocationObtained(Location result, boolean isBogus)
+        @Override
+        public View getView(int position, View convertView, ViewGroup parent)
         {
-            if (isBlocking()) {
-                refreshFlares(result);
+            View view = super.getView(position, convertView, parent);
+            TextView distanceView =
+                (TextView) view.findViewById(android.R.id.text2);
+            FlareSummary flare = getItem(position);
+            if (flare.hasDistance() && !bogusLocation) {
+                distanceView.setText(
+                    getString(R.string.flare_distance, flare.distance));
+                distanceView.setVisibility(View.VISIBLE);
             } else {
-                newFlareLocation = result;
+                // distance from a bogus location is meaningless
+                distanceView.setVisibility(View.GONE);
             }
-            bogusLocation = isBogus;
-            locationTask = null;
+            return view;
         }
     }
 }
@@ -0,0 +1,440 @@
+/**
+ * Copyright 2012 Lingering Socket Labs
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.lingeringsocket.mobflare;
+
+import java.io.*;
+
+/**
+ * Pull parser for MessagePack, the compact binary encoding the
+ * coordinator can send instead of JSON.  Maps are presented as objects
+ * (their keys must be strings) and binary values as UTF-8 strings;
+ * extension values are skipped and read as null.
+ */
+class MsgPackReader extends WireReader
+{
+    private static final int DOCUMENT = 0;
+    private static final int ARRAY = 1;
+    private static final int MAP_KEY = 2;
+    private static final int MAP_VALUE = 3;
+
+    private final InputStream in;
+    private final byte [] buffer = new byte[1024];
+    private int pos;
+    private int limit;
+
+    // each scope is a kind plus the number of values left in it (for
+    // maps, counting keys and values separately)
+    private int [] scopeKinds = new int[16];
+    private long [] scopeRemaining = new long[16];
+    private int stackSize;
+
+    private Token token;
+    private String stringValue;
+    private long longValue;
+    private double doubleValue;
+    private boolean isInteger;
+    private boolean booleanValue;
+    private long containerSize;
+
+    /**
+     * @param in stream to read; closed by {@link #close}
+     */
+    MsgPackReader(InputStream in)
+    {
+        this.in = in;
+        push(DOCUMENT, 1);
+    }
+
+    @Override
+    Token peek() throws IOException
+    {
+        if (token != null) {
+            return token;
+        }
+        int top = stackSize - 1;
+        if (scopeRemaining[top] == 0) {
+            switch (scopeKinds[top]) {
+            case DOCUMENT:
+                token = Token.END_DOCUMENT;
+                break;
+            case ARRAY:
+                token = Token.END_ARRAY;
+                break;
+            default:
+                token = Token.END_OBJECT;
+                break;
+            }
+            return token;
+        }
+        --scopeRemaining[top];
+        if (scopeKinds[top] == MAP_KEY) {
+            scopeKinds[top] = MAP_VALUE;
+            if (readValue(nextByte()) != Token.STRING) {
+                throw syntaxError("Map key is not a string");
+            }
+            token = Token.NAME;
+        } else {
+            if (scopeKinds[top] == MAP_VALUE) {
+                scopeKinds[top] = MAP_KEY;
+            }
+            token = readValue(nextByte());
+        }
+        return token;
+    }
+
+    @Override
+    void beginArray() throws IOException
+    {
+        expect(Token.BEGIN_ARRAY);
+        push(ARRAY, containerSize);
+    }
+
+    @Override
+    void endArray() throws IOException
+    {
+        expect(Token.END_ARRAY);
+        --stackSize;
+    }
+
+    @Override
+    void beginObject() throws IOException
+    {
+        expect(Token.BEGIN_OBJECT);
+        push(MAP_KEY, containerSize * 2);
+    }
+
+    @Override
+    void endObject() throws IOException
+    {
+        expect(Token.END_OBJECT);
+        --stackSize;
+    }
+
+    @Override
+    String nextName() throws IOException
+    {
+        expect(Token.NAME);
+        return stringValue;
+    }
+
+    @Override
+    String nextString() throws IOException
+    {
+        Token t = peek();
+        if (t == Token.STRING) {
+            token = null;
+            return stringValue;
+        }
+        if (t == Token.NUMBER) {
+            token = null;
+            return isInteger
+                ? Long.toString(longValue) : Double.toString(doubleValue);
+        }
+        throw typeError(Token.STRING);
+    }
+
+    @Override
+    boolean nextBoolean() throws IOException
+    {
+        expect(Token.BOOLEAN);
+        return booleanValue;
+    }
+
+    @Override
+    void nextNull() throws IOException
+    {
+        expect(Token.NULL);
+    }
+
+    @Override
+    double nextDouble() throws IOException
+    {
+        if (peek() == Token.NUMBER) {
+            token = null;
+            return isInteger ? longValue : doubleValue;
+        }
+        String s = nextString();
+        try {
+            return Double.parseDouble(s);
+        } catch (NumberFormatException ex) {
+            throw syntaxError("Expected number but was " + s);
+        }
+    }
+
+    @Override
+    long nextLong() throws IOException
+    {
+        if (peek() == Token.NUMBER) {
+            token = null;
+            if (isInteger) {
+                return longValue;
+            }
+            long l = (long) doubleValue;
+            if (l != doubleValue) {
+                throw syntaxError("Expected integer but was " + doubleValue);
+            }
+            return l;
+        }
+        String s = nextString();
+        try {
+            return Long.parseLong(s);
+        } catch (NumberFormatException ex) {
+            throw syntaxError("Expected integer but was " + s);
+        }
+    }
+
+    @Override
+    int nextInt() throws IOException
+    {
+        long l = nextLong();
+        if ((int) l != l) {
+            throw syntaxError("Integer out of range: " + l);
+        }
+        return (int) l;
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        in.close();
+    }
+
+    private void expect(Token expected) throws IOException
+    {
+        if (peek() != expected) {
+            throw typeError(expected);
+        }
+        token = null;
+    }
+
+    private void push(int kind, long remaining)
+    {
+        if (stackSize == scopeKinds.length) {
+            int [] newKinds = new int[stackSize * 2];
+            System.arraycopy(scopeKinds, 0, newKinds, 0, stackSize);
+            scopeKinds = newKinds;
+            long [] newRemaining = new long[stackSize * 2];
+            System.arraycopy(scopeRemaining, 0, newRemaining, 0, stackSize);
+            scopeRemaining = newRemaining;
+        }
+        scopeKinds[stackSize] = kind;
+        scopeRemaining[stackSize] = remaining;
+        ++stackSize;
+    }
+
+    private Token readValue(int b) throws IOException
+    {
+        if (b <= 0x7f) {
+            return integer(b);
+        }
+        if (b >= 0xe0) {
+            return integer((byte) b);
+        }
+        if (b <= 0x8f) {
+            containerSize = b & 0x0f;
+            return Token.BEGIN_OBJECT;
+        }
+        if (b <= 0x9f) {
+            containerSize = b & 0x0f;
+            return Token.BEGIN_ARRAY;
+        }
+        if (b <= 0xbf) {
+            return string(b & 0x1f);
+        }
+        switch (b) {
+        case 0xc0:
+            return Token.NULL;
+        case 0xc2:
+        case 0xc3:
+            booleanValue = (b == 0xc3);
+            return Token.BOOLEAN;
+        case 0xc4:
+        case 0xd9:
+            return string(nextByte());
+        case 0xc5:
+        case 0xda:
+            return string(readUnsigned(2));
+        case 0xc6:
+        case 0xdb:
+            return string(readUnsigned(4));
+        case 0xc7:
+            return extension(readUnsigned(1));
+        case 0xc8:
+            return extension(readUnsigned(2));
+        case 0xc9:
+            return extension(readUnsigned(4));
+        case 0xca:
+            return floating(Float.intBitsToFloat((int) readUnsigned(4)));
+        case 0xcb:
+            return floating(Double.longBitsToDouble(readUnsigned(8)));
+        case 0xcc:
+            return integer(readUnsigned(1));
+        case 0xcd:
+            return integer(readUnsigned(2));
+        case 0xce:
+            return integer(readUnsigned(4));
+        case 0xcf:
+            long l = readUnsigned(8);
+            if (l < 0) {
+                // beyond the range of a long
+                return floating(((l >>> 1) * 2.0) + (l & 1));
+            }
+            return integer(l);
+        case 0xd0:
+            return integer((byte) readUnsigned(1));
+        case 0xd1:
+            return integer((short) readUnsigned(2));
+        case 0xd2:
+            return integer((int) readUnsigned(4));
+        case 0xd3:
+            return integer(readUnsigned(8));
+        case 0xd4:
+            return extension(1);
+        case 0xd5:
+            return extension(2);
+        case 0xd6:
+            return extension(4);
+        case 0xd7:
+            return extension(8);
+        case 0xd8:
+            return extension(16);
+        case 0xdc:
+            containerSize = readUnsigned(2);
+            return Token.BEGIN_ARRAY;
+        case 0xdd:
+            containerSize = readUnsigned(4);
+            return Token.BEGIN_ARRAY;
+        case 0xde:
+            containerSize = readUnsigned(2);
+            return Token.BEGIN_OBJECT;
+        case 0xdf:
+            containerSize = readUnsigned(4);
+            return Token.BEGIN_OBJECT;
+        default:
+            throw syntaxError("Unknown type 0x" + Integer.toHexString(b));
+        }
+    }
+
+    private Token integer(long l)
+    {
+        longValue = l;
+        isInteger = true;
+        return Token.NUMBER;
+    }
+
+    private Token floating(double d)
+    {
+        doubleValue = d;
+        isInteger = false;
+        return Token.NUMBER;
+    }
+
+    private Token string(long length) throws IOException
+    {
+        if (length > Integer.MAX_VALUE) {
+            throw syntaxError("String too long");
+        }
+        int n = (int) length;
+        if (limit - pos >= n) {
+            // common case:  decode straight out of the buffer
+            stringValue = new String(buffer, pos, n, "UTF-8");
+            pos += n;
+        } else {
+            byte [] bytes = new byte[n];
+            readFully(bytes);
+            stringValue = new String(bytes, "UTF-8");
+        }
+        return Token.STRING;
+    }
+
+    private Token extension(long length) throws IOException
+    {
+        // type byte, then the payload
+        skip(length + 1);
+        return Token.NULL;
+    }
+
+    /**
+     * Reads a big-endian value; for eight bytes, the result is the
+     * two's complement one.
+     */
+    private long readUnsigned(int n) throws IOException
+    {
+        long l = 0;
+        for (int i = 0; i < n; ++i) {
+            l = (l << 8) | nextByte();
+        }
+        return l;
+    }
+
+    private int nextByte() throws IOException
+    {
+        if (!fill()) {
+            throw syntaxError("Unexpected end of input");
+        }
+        return buffer[pos++] & 0xff;
+    }
+
+    private void readFully(byte [] bytes) throws IOException
+    {
+        int offset = 0;
+        while (offset < bytes.length) {
+            if (!fill()) {
+                throw syntaxError("Unexpected end of input");
+            }
+            int n = Math.min(limit - pos, bytes.length - offset);
+            System.arraycopy(buffer, pos, bytes, offset, n);
+            pos += n;
+            offset += n;
+        }
+    }
+
+    private void skip(long length) throws IOException
+    {
+        while (length > 0) {
+            if (!fill()) {
+                throw syntaxError("Unexpected end of input");
+            }
+            int n = (int) Math.min(limit - pos, length);
+            pos += n;
+            length -= n;
+        }
+    }
+
+    private boolean fill() throws IOException
+    {
+        if (pos < limit) {
+            return true;
+        }
+        int n = in.read(buffer, 0, buffer.length);
+        if (n <= 0) {
+            return false;
+        }
+        pos = 0;
+        limit = n;
+        return true;
+    }
+
+    private IOException typeError(Token expected) throws IOException
+    {
+        return new IOException("Expected " + expected + " but was " + peek());
+    }
+
+    private IOException syntaxError(String message)
+    {
+        return new IOException("Malformed MessagePack: " + message);
+    }
+}
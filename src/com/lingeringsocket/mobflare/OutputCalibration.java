@@ -0,0 +1,140 @@
+/**
+ * Copyright 2012 Lingering Socket Labs
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.lingeringsocket.mobflare;
+
+import java.util.*;
+
+import android.content.*;
+import android.os.*;
+
+/**
+ * Measures how long an output takes to act on each edge, so that the
+ * flash scheduler can issue edges that much early.  Without a sensor
+ * looking at the flash, what is measured is the time from issuing the
+ * command until the output reports it done (for the camera, until the
+ * new parameters have been applied); that is the part which varies most
+ * from device to device.  Results are kept in preferences per device
+ * model and per kind of output.
+ */
+class OutputCalibration
+{
+    static final int DEFAULT_TRIALS = 10;
+
+    // how long to hold each state between trials
+    private static final long SETTLE_MILLIS = 250;
+
+    private final long onLeadMicros;
+    private final long offLeadMicros;
+
+    OutputCalibration(long onLeadMicros, long offLeadMicros)
+    {
+        this.onLeadMicros = onLeadMicros;
+        this.offLeadMicros = offLeadMicros;
+    }
+
+    /**
+     * @return how early to issue each beginOutput
+     */
+    long getOnLeadMicros()
+    {
+        return onLeadMicros;
+    }
+
+    /**
+     * @return how early to issue each endOutput
+     */
+    long getOffLeadMicros()
+    {
+        return offLeadMicros;
+    }
+
+    /**
+     * Blinks an output repeatedly, timing each edge.  Blocks for a few
+     * seconds, so don't call it on the UI thread.  The first trial is
+     * only a warm-up; the result is the median of the rest.
+     *
+     * @param output output, already initialized
+     * @param trials number of on/off cycles to time
+     *
+     * @return measured leads
+     */
+    static OutputCalibration measure(FlareOutput output, int trials)
+        throws InterruptedException
+    {
+        long [] onMicros = new long[trials];
+        long [] offMicros = new long[trials];
+        for (int i = -1; i < trials; ++i) {
+            long start = System.nanoTime();
+            output.beginOutput();
+            long on = (System.nanoTime() - start) / 1000;
+            Thread.sleep(SETTLE_MILLIS);
+            start = System.nanoTime();
+            output.endOutput();
+            long off = (System.nanoTime() - start) / 1000;
+            Thread.sleep(SETTLE_MILLIS);
+            if (i >= 0) {
+                onMicros[i] = on;
+                offMicros[i] = off;
+            }
+        }
+        return new OutputCalibration(median(onMicros), median(offMicros));
+    }
+
+    private static long median(long [] values)
+    {
+        Arrays.sort(values);
+        return values[values.length / 2];
+    }
+
+    /**
+     * Loads the calibration for an output on this device.
+     *
+     * @return calibration, with zero leads if none has been saved
+     */
+    static OutputCalibration load(Context context, FlareOutput output)
+    {
+        String key = getKey(output);
+        return new OutputCalibration(
+            Prefs.getOutputLeadMicros(context, key + ".on"),
+            Prefs.getOutputLeadMicros(context, key + ".off"));
+    }
+
+    /**
+     * Saves this as the calibration for an output on this device.
+     */
+    void save(Context context, FlareOutput output)
+    {
+        String key = getKey(output);
+        Prefs.setOutputLeadMicros(context, key + ".on", onLeadMicros);
+        Prefs.setOutputLeadMicros(context, key + ".off", offLeadMicros);
+    }
+
+    /**
+     * @return whether a calibration has been saved for an output on this
+     * device
+     */
+    static boolean isSaved(Context context, FlareOutput output)
+    {
+        return Prefs.hasOutputLead(context, getKey(output) + ".on");
+    }
+
+    private static String getKey(FlareOutput output)
+    {
+        // preferences can be restored onto a different device, so
+        // qualify the key with the model
+        return Build.MODEL + "." + output.getClass().getSimpleName();
+    }
+}
@@ -27,6 +27,18 @@ public class Prefs extends PreferenceActivity {
     private static final String SEARCH_RADIUS = "search_radius";
     private static final String SEARCH_RADIUS_DEFAULT = "2.0";
 
+    private static final String OUTPUT_TORCH = "output_torch";
+    private static final String OUTPUT_SCREEN = "output_screen";
+    private static final String OUTPUT_VIBRATE = "output_vibrate";
+    private static final String OUTPUT_TONE = "output_tone";
+
+    private static final String SIMULATE_OUTPUT = "simulate_output";
+
+    private static final String SIMULATED_LATENCY = "simulated_latency";
+    private static final String SIMULATED_LATENCY_DEFAULT = "50";
+
+    private static final String OUTPUT_LEAD_PREFIX = "output_lead.";
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -53,4 +65,50 @@ public class Prefs extends PreferenceActivity {
         PreferenceManager.getDefaultSharedPreferences(context).edit().putFloat(
             SEARCH_RADIUS, searchRadius).commit();
     }
+
+    public static boolean getOutputTorch(Context context) {
+        return PreferenceManager.getDefaultSharedPreferences(context).getBoolean(
+            OUTPUT_TORCH, true);
+    }
+
+    public static boolean getOutputScreen(Context context) {
+        return PreferenceManager.getDefaultSharedPreferences(context).getBoolean(
+            OUTPUT_SCREEN, false);
+    }
+
+    public static boolean getOutputVibrate(Context context) {
+        return PreferenceManager.getDefaultSharedPreferences(context).getBoolean(
+            OUTPUT_VIBRATE, false);
+    }
+
+    public static boolean getOutputTone(Context context) {
+        return PreferenceManager.getDefaultSharedPreferences(context).getBoolean(
+            OUTPUT_TONE, false);
+    }
+
+    public static boolean getSimulateOutput(Context context) {
+        return PreferenceManager.getDefaultSharedPreferences(context).getBoolean(
+            SIMULATE_OUTPUT, false);
+    }
+
+    public static long getSimulatedLatency(Context context) {
+        return Long.valueOf(
+            PreferenceManager.getDefaultSharedPreferences(context).getString(
+                SIMULATED_LATENCY, SIMULATED_LATENCY_DEFAULT));
+    }
+
+    static long getOutputLeadMicros(Context context, String key) {
+        return PreferenceManager.getDefaultSharedPreferences(context).getLong(
+            OUTPUT_LEAD_PREFIX + key, 0);
+    }
+
+    static boolean hasOutputLead(Context context, String key) {
+        return PreferenceManager.getDefaultSharedPreferences(context).contains(
+            OUTPUT_LEAD_PREFIX + key);
+    }
+
+    static void setOutputLeadMicros(Context context, String key, long micros) {
+        PreferenceManager.getDefaultSharedPreferences(context).edit().putLong(
+            OUTPUT_LEAD_PREFIX + key, micros).commit();
+    }
 }
@@ -15,29 +15,138 @@
  */
 package com.lingeringsocket.mobflare;
 
-import java.io.*;
+import java.lang.reflect.*;
 
 import android.app.*;
+import android.content.*;
 import android.hardware.*;
+import android.util.*;
 import android.view.*;
 
 /**
  * Implements FlareOutput by blinking the camera's flash (without
- * taking any picture).
+ * taking any picture).  Where the platform has a torch API (API level
+ * 23, looked up reflectively), that is used directly.  Otherwise the
+ * camera is opened and configured up front and kept open, and each edge
+ * just applies one of two prebuilt parameter sets, so that no edge pays
+ * for opening the camera or reading back its parameters.  Given an
+ * activity with a preview surface, the preview is shown there; given
+ * anything else (normally {@link FlareService}), the preview goes to an
+ * offscreen texture where the platform has those (API level 11).
+ * Older cameras may not light the torch without a preview, so on older
+ * platforms the preview moves to a surface in whichever activity is
+ * showing (see {@link #attachPreview}), and goes nowhere in between.
+ * The camera is shared between the UI thread (surface callbacks) and
+ * the flash scheduler, so access is synchronized.
  */
 class PureFlashOutput implements FlareOutput, SurfaceHolder.Callback
 {
-    private Activity activity;
+    private static String LOGTAG = "PureFlashOutput";
+
+    private static Method getCameraIdList;
+    private static Method setTorchMode;
+    private static Constructor<?> newSurfaceTexture;
+    private static Method setPreviewTexture;
+
+    private Context context;
+    private boolean headless;
+    private Object previewTexture;
     private Camera camera;
+    private Camera.Parameters torchOn;
+    private Camera.Parameters torchOff;
     private SurfaceView surfaceView;
     private SurfaceHolder surfaceHolder;
+    private Object cameraManager;
+    private String torchCameraId;
+    private final TimingHistogram onLatency =
+        new TimingHistogram("Torch on latency");
+    private final TimingHistogram offLatency =
+        new TimingHistogram("Torch off latency");
+
+    static
+    {
+        try {
+            Class<?> c =
+                Class.forName("android.hardware.camera2.CameraManager");
+            getCameraIdList = c.getMethod("getCameraIdList");
+            setTorchMode =
+                c.getMethod("setTorchMode", String.class, Boolean.TYPE);
+        } catch (Exception ex) {
+            // older platform
+            setTorchMode = null;
+        }
+        try {
+            Class<?> c = Class.forName("android.graphics.SurfaceTexture");
+            newSurfaceTexture = c.getConstructor(Integer.TYPE);
+            setPreviewTexture = Camera.class.getMethod("setPreviewTexture", c);
+        } catch (Exception ex) {
+            // older platform
+            setPreviewTexture = null;
+        }
+    }
 
     @Override
-    public void initialize(Activity activity)
+    public synchronized void initialize(Context context)
+    {
+        this.context = context;
+
+        if (findTorch()) {
+            return;
+        }
+
+        if ((context instanceof Activity)
+            && attachSurface((Activity) context))
+        {
+            return;
+        }
+        headless = true;
+        accessCamera();
+    }
+
+    /**
+     * @return whether the torch needs a preview surface from an activity
+     * (see {@link #attachPreview}) to light reliably, because the
+     * platform has no offscreen textures
+     */
+    synchronized boolean needsPreviewSurface()
+    {
+        return headless && (torchCameraId == null)
+            && (setPreviewTexture == null);
+    }
+
+    /**
+     * Moves the preview onto the given activity's preview surface (if it
+     * has one) while the activity is showing.
+     */
+    synchronized void attachPreview(Activity activity)
+    {
+        detachPreview();
+        attachSurface(activity);
+    }
+
+    /**
+     * Moves the preview off the surface given to {@link #attachPreview}.
+     */
+    synchronized void detachPreview()
     {
-        this.activity = activity;
+        if (surfaceView == null) {
+            return;
+        }
+        surfaceView.getHolder().removeCallback(this);
+        surfaceView = null;
+        if (surfaceHolder != null) {
+            releaseCamera();
+            surfaceHolder = null;
+            accessCamera();
+        }
+    }
 
+    private boolean attachSurface(Activity activity)
+    {
         surfaceView = (SurfaceView) activity.findViewById(R.id.surfaceview);
+        if (surfaceView == null) {
+            return false;
+        }
         SurfaceHolder holder = surfaceView.getHolder();
         holder.addCallback(this);
         holder.setType(SurfaceHolder.SURFACE_TYPE_PUSH_BUFFERS);
@@ -47,71 +156,164 @@ class PureFlashOutput implements FlareOutput, SurfaceHolder.Callback
             // ourselves.
             surfaceCreated(holder);
         }
+        return true;
+    }
+
+    /**
+     * Looks for a camera whose torch can be controlled directly.
+     *
+     * @return whether one was found
+     */
+    private boolean findTorch()
+    {
+        if (setTorchMode == null) {
+            return false;
+        }
+        cameraManager = context.getSystemService("camera");
+        try {
+            for (String id : (String []) getCameraIdList.invoke(cameraManager)) {
+                try {
+                    // fails for cameras without a flash
+                    setTorchMode.invoke(cameraManager, id, false);
+                    torchCameraId = id;
+                    return true;
+                } catch (InvocationTargetException ex) {
+                    // try the next one
+                }
+            }
+        } catch (Exception ex) {
+            Log.w(LOGTAG, "Torch API unusable", ex);
+        }
+        return false;
     }
 
     @Override
-    public void surfaceCreated(SurfaceHolder holder) {
+    public synchronized void surfaceCreated(SurfaceHolder holder) {
+        // a headless camera is already open, without the surface
+        releaseCamera();
         surfaceHolder = holder;
         accessCamera();
     }
 
     @Override
-    public void surfaceChanged(SurfaceHolder holder, int i, int j, int k) {
+    public synchronized void surfaceChanged(
+        SurfaceHolder holder, int i, int j, int k) {
         releaseCamera();
         surfaceHolder = holder;
         accessCamera();
     }
 
     @Override
-    public void surfaceDestroyed(SurfaceHolder holder) {
+    public synchronized void surfaceDestroyed(SurfaceHolder holder) {
         releaseCamera();
         surfaceHolder = null;
+        if (headless) {
+            // keep going without the surface until it comes back
+            accessCamera();
+        }
     }
 
     @Override
     public void beginOutput() 
     {
-        setCameraFlash(Camera.Parameters.FLASH_MODE_TORCH);
+        long start = System.nanoTime();
+        if (torchCameraId != null) {
+            setTorch(true);
+        } else {
+            setCameraFlash(true);
+        }
+        onLatency.record(System.nanoTime() - start);
     }
     
     @Override
     public void endOutput() 
     {
-        setCameraFlash(Camera.Parameters.FLASH_MODE_OFF);
+        long start = System.nanoTime();
+        if (torchCameraId != null) {
+            setTorch(false);
+        } else {
+            setCameraFlash(false);
+        }
+        offLatency.record(System.nanoTime() - start);
     }
 
     @Override
-    public void release() 
+    public synchronized void release() 
     {
+        if (torchCameraId != null) {
+            setTorch(false);
+        }
         releaseCamera();
+        if (onLatency.getCount() > 0) {
+            Log.i(LOGTAG, onLatency.toString());
+            Log.i(LOGTAG, offLatency.toString());
+        }
     }
 
-    private void setCameraFlash(String flashMode) 
+    /**
+     * @return how long turning the flash on has taken
+     */
+    TimingHistogram getOnLatency()
+    {
+        return onLatency;
+    }
+
+    /**
+     * @return how long turning the flash off has taken
+     */
+    TimingHistogram getOffLatency()
+    {
+        return offLatency;
+    }
+
+    private void setTorch(boolean on)
+    {
+        try {
+            setTorchMode.invoke(cameraManager, torchCameraId, on);
+        } catch (Exception ex) {
+            Log.w(LOGTAG, "Failed to set torch mode", ex);
+        }
+    }
+
+    private synchronized void setCameraFlash(boolean on) 
     {
-        accessCamera();
         if (camera == null) {
-            return;
+            // normally opened by the surface callbacks; this only
+            // happens after a release without the surface going away,
+            // and makes this edge late
+            Log.w(LOGTAG, "Opening camera on a flash edge");
+            accessCamera();
+            if (camera == null) {
+                return;
+            }
         }
-        Camera.Parameters p = camera.getParameters();
-        p.setFlashMode(flashMode);
-        camera.setParameters(p);
+        camera.setParameters(on ? torchOn : torchOff);
     }
     
     private void accessCamera() {
         if (camera != null) {
             return;
         }
-        if (surfaceHolder == null) {
+        if ((surfaceHolder == null) && !headless) {
             return;
         }
         camera = Camera.open();
-        Camera.Parameters p = camera.getParameters();
-        p.setFlashMode(Camera.Parameters.FLASH_MODE_OFF);
-        camera.setParameters(p);
+        torchOff = camera.getParameters();
+        torchOff.setFlashMode(Camera.Parameters.FLASH_MODE_OFF);
+        camera.setParameters(torchOff);
+        torchOn = camera.getParameters();
+        torchOn.setFlashMode(Camera.Parameters.FLASH_MODE_TORCH);
         try {
-            camera.setPreviewDisplay(surfaceHolder);
-        } catch (IOException ex) {
-            ex.printStackTrace();
+            if (surfaceHolder != null) {
+                camera.setPreviewDisplay(surfaceHolder);
+            } else if (setPreviewTexture != null) {
+                if (previewTexture == null) {
+                    previewTexture = newSurfaceTexture.newInstance(0);
+                }
+                setPreviewTexture.invoke(camera, previewTexture);
+            }
+        } catch (Exception ex) {
+            Log.w(LOGTAG, "Failed to set preview target", ex);
         }
         camera.startPreview();
     }
@@ -123,6 +325,8 @@ class PureFlashOutput implements FlareOutput, SurfaceHolder.Callback
             camera.setPreviewCallback(null);
             camera.release();
             camera = null;
+            torchOn = null;
+            torchOff = null;
         }
     }
 }
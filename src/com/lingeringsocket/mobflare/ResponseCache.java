@@ -0,0 +1,228 @@
+/**
+ * Copyright 2012 Lingering Socket Labs
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.lingeringsocket.mobflare;
+
+import android.util.*;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Remembers coordinator responses together with their validators (ETag
+ * and Last-Modified), so that unchanged resources can be revalidated with
+ * a conditional request and served from the already-decoded result.
+ * Entries live in a small in-memory LRU; a few named slots can also be
+ * persisted to disk (as raw response bodies) so that they survive a
+ * restart.
+ */
+class ResponseCache
+{
+    private static String LOGTAG = "ResponseCache";
+
+    // don't bother persisting bodies bigger than this
+    static final int MAX_DISK_BODY_BYTES = 64 * 1024;
+
+    // bumped whenever the slot file layout changes
+    private static final int SLOT_VERSION = 2;
+
+    /**
+     * A cached response.
+     */
+    static class Entry
+    {
+        String uri;
+        String etag;
+        String lastModified;
+        String contentType;
+        Object value;
+        byte [] body;
+
+        boolean hasValidator()
+        {
+            return (etag != null) || (lastModified != null);
+        }
+    }
+
+    private final Map<String, Entry> entries;
+    private File diskDir;
+    private long hitCount;
+    private long missCount;
+
+    /**
+     * @param maxEntries maximum number of entries kept in memory
+     */
+    ResponseCache(final int maxEntries)
+    {
+        entries = new LinkedHashMap<String, Entry>(maxEntries, 0.75f, true)
+            {
+                @Override
+                protected boolean removeEldestEntry(
+                    Map.Entry<String, Entry> eldest)
+                {
+                    return size() > maxEntries;
+                }
+            };
+    }
+
+    /**
+     * Enables persistence of named slots.
+     *
+     * @param diskDir directory in which to keep them
+     */
+    synchronized void enableDiskTier(File diskDir)
+    {
+        if (this.diskDir == null) {
+            diskDir.mkdirs();
+            this.diskDir = diskDir;
+        }
+    }
+
+    synchronized boolean hasDiskTier()
+    {
+        return diskDir != null;
+    }
+
+    synchronized Entry get(String uri)
+    {
+        return entries.get(uri);
+    }
+
+    synchronized void put(Entry entry)
+    {
+        entries.put(entry.uri, entry);
+    }
+
+    synchronized void remove(String uri)
+    {
+        entries.remove(uri);
+    }
+
+    synchronized void recordHit()
+    {
+        ++hitCount;
+    }
+
+    synchronized void recordMiss()
+    {
+        ++missCount;
+    }
+
+    /**
+     * @return number of responses served from the cache after
+     * revalidation
+     */
+    synchronized long getHitCount()
+    {
+        return hitCount;
+    }
+
+    /**
+     * @return number of responses which had to be transferred in full
+     */
+    synchronized long getMissCount()
+    {
+        return missCount;
+    }
+
+    /**
+     * Persists an entry (which must have its body set, already
+     * decompressed) to a named slot, replacing whatever was there.
+     */
+    void writeSlot(String slot, Entry entry)
+    {
+        File file = getSlotFile(slot);
+        if ((file == null) || (entry.body == null)) {
+            return;
+        }
+        File tmpFile = new File(file.getPath() + ".tmp");
+        try {
+            DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmpFile)));
+            try {
+                out.writeInt(SLOT_VERSION);
+                out.writeUTF(entry.uri);
+                out.writeUTF(entry.etag == null ? "" : entry.etag);
+                out.writeUTF(
+                    entry.lastModified == null ? "" : entry.lastModified);
+                out.writeUTF(
+                    entry.contentType == null ? "" : entry.contentType);
+                out.writeInt(entry.body.length);
+                out.write(entry.body);
+            } finally {
+                out.close();
+            }
+            if (!tmpFile.renameTo(file)) {
+                tmpFile.delete();
+            }
+        } catch (IOException ex) {
+            Log.w(LOGTAG, "Failed to persist " + slot, ex);
+            tmpFile.delete();
+        }
+    }
+
+    /**
+     * Reads back a persisted slot.
+     *
+     * @return entry with uri, validators, content type and body set (but no decoded
+     * value), or null if nothing usable was persisted
+     */
+    Entry readSlot(String slot)
+    {
+        File file = getSlotFile(slot);
+        if ((file == null) || !file.exists()) {
+            return null;
+        }
+        try {
+            DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)));
+            try {
+                if (in.readInt() != SLOT_VERSION) {
+                    return null;
+                }
+                Entry entry = new Entry();
+                entry.uri = in.readUTF();
+                entry.etag = emptyToNull(in.readUTF());
+                entry.lastModified = emptyToNull(in.readUTF());
+                entry.contentType = emptyToNull(in.readUTF());
+                int length = in.readInt();
+                if ((length < 0) || (length > MAX_DISK_BODY_BYTES)) {
+                    return null;
+                }
+                entry.body = new byte[length];
+                in.readFully(entry.body);
+                return entry;
+            } finally {
+                in.close();
+            }
+        } catch (IOException ex) {
+            Log.w(LOGTAG, "Failed to read " + slot, ex);
+            return null;
+        }
+    }
+
+    private synchronized File getSlotFile(String slot)
+    {
+        if (diskDir == null) {
+            return null;
+        }
+        return new File(diskDir, slot);
+    }
+
+    private static String emptyToNull(String s)
+    {
+        return s.length() == 0 ? null : s;
+    }
+}
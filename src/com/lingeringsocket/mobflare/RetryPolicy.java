@@ -0,0 +1,177 @@
+/**
+ * Copyright 2012 Lingering Socket Labs
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.lingeringsocket.mobflare;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+
+import org.apache.http.conn.*;
+import org.apache.http.impl.cookie.*;
+
+/**
+ * Decides whether and when a failed coordinator request should be
+ * retried: exponential backoff with full jitter, bounded by both an
+ * attempt count and a total time budget, and stretched to honor any
+ * Retry-After the coordinator sends.
+ */
+class RetryPolicy
+{
+    private final int maxAttempts;
+    private final long baseDelayMillis;
+    private final long maxDelayMillis;
+    private final long budgetMillis;
+    private final boolean idempotent;
+    private final boolean speculative;
+
+    /**
+     * @param maxAttempts maximum number of attempts, including the first
+     * @param baseDelayMillis backoff ceiling after the first failure;
+     * doubles after each further failure
+     * @param maxDelayMillis maximum backoff ceiling
+     * @param budgetMillis total time after which no further attempt is
+     * started
+     * @param idempotent whether the request may safely be repeated even
+     * if the coordinator might already have processed it; if not, only
+     * failures which prove it didn't (such as a refused connection or a
+     * 503) are retried
+     */
+    RetryPolicy(
+        int maxAttempts, long baseDelayMillis, long maxDelayMillis,
+        long budgetMillis, boolean idempotent)
+    {
+        this(
+            maxAttempts, baseDelayMillis, maxDelayMillis, budgetMillis,
+            idempotent, false);
+    }
+
+    /**
+     * @param speculative whether nobody is waiting for the result (as
+     * with a prefetch); such requests are only sent while the circuit
+     * breaker is closed, and their outcomes don't count towards it
+     */
+    RetryPolicy(
+        int maxAttempts, long baseDelayMillis, long maxDelayMillis,
+        long budgetMillis, boolean idempotent, boolean speculative)
+    {
+        this.maxAttempts = maxAttempts;
+        this.baseDelayMillis = baseDelayMillis;
+        this.maxDelayMillis = maxDelayMillis;
+        this.budgetMillis = budgetMillis;
+        this.idempotent = idempotent;
+        this.speculative = speculative;
+    }
+
+    boolean isSpeculative()
+    {
+        return speculative;
+    }
+
+    /**
+     * @return whether a request failing with the given exception may be
+     * retried
+     */
+    boolean isRetryable(IOException ex)
+    {
+        if (idempotent) {
+            return true;
+        }
+        // the request can't have reached the coordinator
+        return (ex instanceof ConnectException)
+            || (ex instanceof ConnectTimeoutException)
+            || (ex instanceof UnknownHostException);
+    }
+
+    /**
+     * @return whether a request failing with the given HTTP status may be
+     * retried
+     */
+    boolean isRetryable(int statusCode)
+    {
+        switch (statusCode) {
+        case 429:
+        case 503:
+            // coordinator turned the request away without processing it
+            return true;
+        case 502:
+        case 504:
+            return idempotent;
+        default:
+            return false;
+        }
+    }
+
+    /**
+     * Computes how long to wait before the next attempt.
+     *
+     * @param failedAttempts number of attempts made so far (at least 1)
+     * @param elapsedMillis time since the first attempt started
+     * @param retryAfterMillis delay requested by the coordinator, or -1
+     * @param random source of jitter
+     *
+     * @return delay in milliseconds, or -1 if no further attempt should be
+     * made
+     */
+    long computeDelay(
+        int failedAttempts, long elapsedMillis, long retryAfterMillis,
+        Random random)
+    {
+        if (failedAttempts >= maxAttempts) {
+            return -1;
+        }
+        long ceiling = baseDelayMillis << Math.min(failedAttempts - 1, 20);
+        ceiling = Math.min(ceiling, maxDelayMillis);
+        // full jitter, so that clients which failed together don't all
+        // come back together
+        long delay = (long) (random.nextDouble() * ceiling);
+        if (retryAfterMillis > delay) {
+            delay = retryAfterMillis;
+        }
+        if (elapsedMillis + delay > budgetMillis) {
+            return -1;
+        }
+        return delay;
+    }
+
+    /**
+     * Parses the value of a Retry-After header, which may be either a
+     * number of seconds or an HTTP date.
+     *
+     * @param value header value, or null
+     * @param nowMillis current wall clock time
+     *
+     * @return delay in milliseconds, or -1 if absent or unparseable
+     */
+    static long parseRetryAfter(String value, long nowMillis)
+    {
+        if (value == null) {
+            return -1;
+        }
+        value = value.trim();
+        try {
+            long seconds = Long.parseLong(value);
+            return seconds < 0 ? -1 : seconds * 1000;
+        } catch (NumberFormatException ex) {
+            // try a date instead
+        }
+        try {
+            Date date = DateUtils.parseDate(value);
+            return Math.max(0, date.getTime() - nowMillis);
+        } catch (DateParseException ex) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,77 @@
+/**
+ * Copyright 2012 Lingering Socket Labs
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.lingeringsocket.mobflare;
+
+import android.util.*;
+
+/**
+ * Handle for a single call to the coordinator, created by
+ * {@link RpcCoordinator}.  Each call can be executed once (on any
+ * thread) and cancelled independently of any other call in flight.
+ */
+abstract class RpcCall<T> extends CallHandle
+{
+    private static String LOGTAG = "RpcCall";
+
+    private final String description;
+
+    /**
+     * @param description description of the call for logging
+     */
+    RpcCall(String description)
+    {
+        this.description = description;
+    }
+
+    /**
+     * Executes the call on the current thread.
+     *
+     * @return result of the call
+     *
+     * @throws RpcException if the call failed or was cancelled
+     */
+    final T execute() throws RpcException
+    {
+        try {
+            if (isCancelled()) {
+                throw new RpcException(
+                    R.string.server_error, description + " cancelled");
+            }
+            return perform();
+        } catch (RpcException ex) {
+            if (!isCancelled()) {
+                Log.e(LOGTAG, description + " failed", ex);
+            }
+            throw ex;
+        } catch (Exception ex) {
+            if (isCancelled()) {
+                throw new RpcException(
+                    R.string.server_error, description + " cancelled", ex);
+            }
+            Log.e(LOGTAG, description + " failed", ex);
+            throw new RpcException(
+                R.string.server_error, description + " failed", ex);
+        } finally {
+            setRequest(null);
+            setCancelHook(null);
+        }
+    }
+
+    /**
+     * Performs the work of the call.
+     */
+    protected abstract T perform() throws Exception;
+}
@@ -19,213 +19,1249 @@ import org.apache.http.*;
 import org.apache.http.client.*;
 import org.apache.http.client.entity.*;
 import org.apache.http.client.methods.*;
+import org.apache.http.client.params.*;
+import org.apache.http.conn.*;
+import org.apache.http.conn.params.*;
+import org.apache.http.conn.scheme.*;
+import org.apache.http.conn.ssl.*;
 import org.apache.http.entity.*;
 import org.apache.http.impl.client.*;
+import org.apache.http.impl.conn.tsccm.*;
+import org.apache.http.impl.cookie.*;
 import org.apache.http.message.*;
+import org.apache.http.params.*;
+import org.apache.http.protocol.*;
 
 import org.json.*;
 
 import android.content.*;
 import android.location.*;
-import android.net.http.*;
 import android.os.*;
 import android.util.*;
 
 import java.util.*;
 import java.io.*;
 import java.net.*;
+import java.util.zip.*;
 
 /**
- * Makes RPC calls (currently via HTTP+JSON) to the mobflare coordinator.
+ * Makes RPC calls (via HTTP, with JSON or MessagePack bodies) to the
+ * mobflare coordinator.
+ * Each method returns a separate {@link RpcCall}, so any number of calls
+ * may be in flight at once, on any threads.
  */
 class RpcCoordinator
 {
     private static String LOGTAG = "RpcCoordinator";
 
-    private Context context;
-    private int errId;
+    // disk slot holding the most recent flare list, so that a cold
+    // start has something to show right away
+    private static final String LAST_LIST_SLOT = "last_list";
+
+    // number of searches whose lists are kept in step incrementally
+    private static final int MAX_LIST_SYNCS = 4;
+
+    // connection pool sizing; a long poll holds a connection for
+    // the duration, so leave room for other calls alongside
+    private static final int MAX_CONNECTIONS = 16;
+    private static final int MAX_CONNECTIONS_PER_ROUTE = 8;
+    private static final int CONNECTION_POOL_TIMEOUT_MILLIS = 10000;
+    private static final int CONNECT_TIMEOUT_MILLIS = 20000;
+    private static final int SOCKET_TIMEOUT_MILLIS = 60000;
+
+    // formats we can decode, most compact first; the coordinator picks
+    // one, and coordinators which only speak JSON ignore the header
+    private static final String ACCEPT =
+        "application/x-msgpack, application/json;q=0.5";
+
+    // precise coordinator time (milliseconds since the epoch) on
+    // responses, when the coordinator provides it; otherwise the Date
+    // header is used
+    private static final String SERVER_TIME_HEADER = "X-Server-Time";
+
+    // request bodies smaller than this aren't worth compressing
+    private static final int MIN_GZIP_REQUEST_BYTES = 256;
+
+    /**
+     * Retry budgets per kind of call, and circuit breaker settings.
+     * Joins and creates aren't idempotent, so they are only retried
+     * when the coordinator can't have seen them.
+     */
+    static class Policies
+    {
+        RetryPolicy list = new RetryPolicy(3, 500, 4000, 10000, true);
+        RetryPolicy status = new RetryPolicy(3, 250, 2000, 5000, true);
+        RetryPolicy watch = new RetryPolicy(1, 0, 0, 0, true);
+        RetryPolicy join = new RetryPolicy(3, 250, 2000, 5000, false);
+        RetryPolicy create = new RetryPolicy(2, 500, 2000, 5000, false);
+        RetryPolicy prefetch = new RetryPolicy(1, 0, 0, 0, true, true);
+
+        int breakerFailureThreshold = 5;
+        long breakerMinOpenMillis = 5000;
+        long breakerMaxOpenMillis = 120000;
+    }
+
+    private static final Policies DEFAULT_POLICIES = new Policies();
+
+    private final Context context;
+    private final String serverUri;
+    private final Clock clock;
+    private final Policies policies;
+    private final Map<String, CircuitBreaker> circuitBreakers;
+    private final ClockSync clockSync;
     private static HttpClient httpClient;
-    private HttpUriRequest abortableRequest;
+    private static Map<String, CircuitBreaker> sharedCircuitBreakers;
+    private static Random random;
+    private static ResponseCache responseCache;
+    private static FlareIndex flareIndex;
+    private static Map<String, FlareListSync> listSyncs;
+    private static SingleFlight singleFlight;
+    private static WireStats wireStats;
+    private static ClockSync sharedClockSync;
+    private static Set<String> gzipRequestHosts;
 
     static 
     {
+        // same settings as AndroidHttpClient, except for the pool, which
+        // AndroidHttpClient limits to two connections per route
+        HttpParams params = new BasicHttpParams();
+        HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1);
+        HttpProtocolParams.setContentCharset(params, "UTF-8");
         // TODO:  client version info
-        httpClient = AndroidHttpClient.newInstance("mobflare-android");
+        HttpProtocolParams.setUserAgent(params, "mobflare-android");
+        HttpConnectionParams.setStaleCheckingEnabled(params, false);
+        HttpConnectionParams.setConnectionTimeout(
+            params, CONNECT_TIMEOUT_MILLIS);
+        HttpConnectionParams.setSoTimeout(params, SOCKET_TIMEOUT_MILLIS);
+        HttpConnectionParams.setSocketBufferSize(params, 8192);
+        HttpClientParams.setRedirecting(params, false);
+        ConnManagerParams.setMaxTotalConnections(params, MAX_CONNECTIONS);
+        ConnManagerParams.setMaxConnectionsPerRoute(
+            params, new ConnPerRouteBean(MAX_CONNECTIONS_PER_ROUTE));
+        ConnManagerParams.setTimeout(params, CONNECTION_POOL_TIMEOUT_MILLIS);
+        SchemeRegistry schemeRegistry = new SchemeRegistry();
+        schemeRegistry.register(
+            new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+        schemeRegistry.register(
+            new Scheme("https", SSLSocketFactory.getSocketFactory(), 443));
+        ClientConnectionManager connectionManager =
+            new ThreadSafeClientConnManager(params, schemeRegistry);
+        DefaultHttpClient client =
+            new DefaultHttpClient(connectionManager, params);
+        client.addRequestInterceptor(new HttpRequestInterceptor()
+            {
+                public void process(HttpRequest request, HttpContext context)
+                {
+                    if (!request.containsHeader("Accept")) {
+                        request.addHeader("Accept", ACCEPT);
+                    }
+                    request.addHeader("Accept-Encoding", "gzip");
+                }
+            });
+        httpClient = client;
+        responseCache = new ResponseCache(32);
+        flareIndex = new FlareIndex(Clock.SYSTEM);
+        listSyncs = new LinkedHashMap<String, FlareListSync>(
+            MAX_LIST_SYNCS, 0.75f, true)
+            {
+                @Override
+                protected boolean removeEldestEntry(
+                    Map.Entry<String, FlareListSync> eldest)
+                {
+                    return size() > MAX_LIST_SYNCS;
+                }
+            };
+        singleFlight = new SingleFlight();
+        sharedCircuitBreakers = new HashMap<String, CircuitBreaker>();
+        random = new Random();
+        wireStats = new WireStats();
+        sharedClockSync = new ClockSync(Clock.SYSTEM);
+        gzipRequestHosts = new HashSet<String>();
     }
 
     RpcCoordinator(Context context) 
+    {
+        this(
+            context, null, Clock.SYSTEM, DEFAULT_POLICIES,
+            sharedCircuitBreakers, sharedClockSync);
+    }
+
+    /**
+     * Creates a coordinator client with its own clock, policies,
+     * circuit breakers and clock estimate, and no disk cache (for
+     * tests).
+     *
+     * @param serverUri base URI of the coordinator
+     * @param clock clock for timing retries and breakers
+     * @param policies retry and breaker settings
+     */
+    RpcCoordinator(String serverUri, Clock clock, Policies policies)
+    {
+        this(
+            null, serverUri, clock, policies,
+            new HashMap<String, CircuitBreaker>(), new ClockSync(clock));
+    }
+
+    private RpcCoordinator(
+        Context context, String serverUri, Clock clock, Policies policies,
+        Map<String, CircuitBreaker> circuitBreakers, ClockSync clockSync)
     {
         this.context = context;
+        this.serverUri = serverUri;
+        this.clock = clock;
+        this.policies = policies;
+        this.circuitBreakers = circuitBreakers;
+        this.clockSync = clockSync;
+    }
+
+    /**
+     * Points the response cache at its directory.  This is done lazily,
+     * by whichever worker thread first needs the disk, since looking up
+     * (and creating) the directory is itself disk access.
+     */
+    private void enableDiskTier()
+    {
+        if ((context != null) && !responseCache.hasDiskTier()) {
+            responseCache.enableDiskTier(
+                new File(context.getCacheDir(), "responses"));
+        }
+    }
+
+    /**
+     * Decodes a response body, and decides what to do about error
+     * statuses.
+     */
+    private abstract static class ResponseDecoder<T>
+    {
+        abstract T decode(WireReader reader) throws IOException;
+
+        /**
+         * Handles a status other than 200 (or 304 with a cached result).
+         * The default throws.
+         *
+         * @return result to return in place of a decoded one
+         */
+        T handleStatus(int statusCode) throws Exception
+        {
+            throw new RuntimeException("Unexpected HTTP status " + statusCode);
+        }
+    }
+
+    private static class FlareListDecoder
+        extends ResponseDecoder<FlareListSync.Changes>
+    {
+        @Override
+        FlareListSync.Changes decode(WireReader reader) throws IOException
+        {
+            return FlareListSync.Changes.read(reader);
+        }
+
+        @Override
+        FlareListSync.Changes handleStatus(int statusCode) throws Exception
+        {
+            if (statusCode == 403) {
+                throw new RpcException(
+                    R.string.need_upgrade, "Obsolete client version");
+            }
+            if (statusCode == 410) {
+                // the coordinator no longer has changes going back to
+                // our token
+                return null;
+            }
+            return super.handleStatus(statusCode);
+        }
+    }
+
+    private static class FlareStatusDecoder extends ResponseDecoder<FlareStatus>
+    {
+        private final boolean created;
+
+        FlareStatusDecoder()
+        {
+            this(false);
+        }
+
+        /**
+         * @param created whether the response is a reply to a create
+         * (see {@link FlareStatus#readCreated})
+         */
+        FlareStatusDecoder(boolean created)
+        {
+            this.created = created;
+        }
+
+        @Override
+        FlareStatus decode(WireReader reader) throws IOException
+        {
+            if (created) {
+                return FlareStatus.readCreated(reader);
+            }
+            return FlareStatus.read(reader);
+        }
+
+        @Override
+        FlareStatus handleStatus(int statusCode) throws Exception
+        {
+            if (statusCode == 404) {
+                return null;
+            }
+            return super.handleStatus(statusCode);
+        }
+    }
+
+    /**
+     * @return number of GET responses served from the response cache
+     * after a 304
+     */
+    static long getCacheHitCount()
+    {
+        return responseCache.getHitCount();
+    }
+
+    /**
+     * @return number of cacheable GET responses which had to be
+     * transferred in full
+     */
+    static long getCacheMissCount()
+    {
+        return responseCache.getMissCount();
+    }
+
+    /**
+     * @return flares remembered from recent searches
+     */
+    static FlareIndex getFlareIndex()
+    {
+        return flareIndex;
+    }
+
+    /**
+     * @return number of GETs which were satisfied by sharing an
+     * identical request already in flight
+     */
+    static long getCoalescedCount()
+    {
+        return singleFlight.getCoalescedCount();
+    }
+
+    /**
+     * @return bytes and decode time of coordinator responses, per
+     * wire format
+     */
+    static WireStats getWireStats()
+    {
+        return wireStats;
+    }
+
+    /**
+     * @return estimate of the coordinator's clock, fed by every
+     * response received
+     */
+    static ClockSync getClockSync()
+    {
+        return sharedClockSync;
     }
 
     private String getServerUri()
     {
+        if (serverUri != null) {
+            return serverUri;
+        }
         return Prefs.getServerUri(context);
     }
 
-    List<String> listFlares(Location location, float radius, int clientVersion)
-        throws Exception
+    /**
+     * Searches for flares near a location.  Repeating a search only
+     * fetches the changes since the last time (when the coordinator
+     * supports that).
+     *
+     * @param orderedCount number of nearest flares to put in order (see
+     * {@link FlareRanking#rank}), or 0 for all of them
+     */
+    RpcCall<List<FlareSummary>> listFlares(
+        final Location location, final float radius, int clientVersion,
+        final int orderedCount)
     {
-        String uri = getServerUri() + "/list?latitude="
+        final String uri = getServerUri() + "/list?latitude="
             + location.getLatitude() + "&longitude="
             + location.getLongitude() + "&radius="
             + radius + "&clientVersion="
             + clientVersion;
-        HttpGet httpGet = new HttpGet(uri);
+        return new RpcCall<List<FlareSummary>>("HTTP GET " + uri)
+            {
+                @Override
+                protected List<FlareSummary> perform() throws Exception
+                {
+                    FlareListSync sync = getListSync(uri);
+                    FlareListSync.Changes changes = null;
+                    String token = sync.getToken();
+                    if (token != null) {
+                        HttpGet httpGet = new HttpGet(
+                            uri + "&since=" + URLEncoder.encode(token, "UTF-8"));
+                        changes = decodeResponse(
+                            executeRequest(this, httpGet, policies.list),
+                            new FlareListDecoder());
+                        if (changes == null) {
+                            sync.reset();
+                        }
+                    }
+                    if (changes == null) {
+                        // deltas mean nothing on their own, so only
+                        // complete lists go through the response cache
+                        changes = fetch(
+                            this, new HttpGet(uri), policies.list, uri,
+                            new FlareListDecoder(), LAST_LIST_SLOT);
+                    }
+                    sync.apply(changes);
+                    List<FlareSummary> all = sync.getAll();
+                    Log.d(LOGTAG, "Flare list:  " + changes.size()
+                        + (changes.complete ? " sent, " : " changes, ")
+                        + all.size() + " total");
+                    flareIndex.put(
+                        location.getLatitude(), location.getLongitude(),
+                        radius, all);
+                    return sync.rank(orderedCount);
+                }
+            };
+    }
+
+    private static FlareListSync getListSync(String uri)
+    {
+        synchronized (listSyncs) {
+            FlareListSync sync = listSyncs.get(uri);
+            if (sync == null) {
+                sync = new FlareListSync();
+                listSyncs.put(uri, sync);
+            }
+            return sync;
+        }
+    }
+
+    /**
+     * Answers a search from the flares found by recent ones, without
+     * any network access, if they covered the whole area.
+     *
+     * @param orderedCount number of nearest flares to put in order (see
+     * {@link FlareRanking#rank}), or 0 for all of them
+     *
+     * @return flares, or null if {@link #listFlares} is needed
+     */
+    List<FlareSummary> findIndexedFlares(
+        Location location, float radius, int orderedCount)
+    {
+        return flareIndex.find(
+            location.getLatitude(), location.getLongitude(), radius,
+            orderedCount);
+    }
+
+    /**
+     * Loads the most recent flare list persisted by {@link #listFlares},
+     * without any network access.  This reads the disk, so call it from
+     * a worker thread.
+     *
+     * @param orderedCount number of nearest flares to put in order (see
+     * {@link FlareRanking#rank}), or 0 for all of them
+     *
+     * @return last list, or null if none is available
+     */
+    List<FlareSummary> loadLastFlareList(int orderedCount)
+    {
+        enableDiskTier();
+        ResponseCache.Entry entry = responseCache.readSlot(LAST_LIST_SLOT);
+        if (entry == null) {
+            return null;
+        }
         try {
-            HttpResponse httpResponse = execute(httpGet);
-            if (httpResponse.getStatusLine().getStatusCode() == 403) {
-                errId = R.string.need_upgrade;
-                throw new RuntimeException("Obsolete client version");
-            }
-            String json =
-                readInputStream(
-                    httpResponse.getEntity().getContent());
-            JSONTokener tokener = new JSONTokener(json);
-            JSONArray jsonArray = new JSONArray(tokener);
-            // sort flares by distance; fake a multimap just to deal
-            // with the pathological case of equal distances,
-            // which actually comes up during testing on
-            // an emulator
-            SortedMap<Double, List<String>> sortedMap =
-                new TreeMap<Double, List<String>>();
-            for (int i = 0; i < jsonArray.length(); ++i) {
-                JSONObject jsonObj = jsonArray.getJSONObject(i);
-                String name = jsonObj.getString("name");
-                double distance = jsonObj.getDouble("km");
-                List<String> list = sortedMap.get(distance);
-                if (list == null) {
-                    list = new ArrayList<String>();
-                    sortedMap.put(distance, list);
-                }
-                list.add(name);
-            }
-            List<String> flareList = new ArrayList<String>();
-            for (List<String> list : sortedMap.values()) {
-                flareList.addAll(list);
-            }
-            return flareList;
-        } catch (Exception ex) {
-            Log.e(LOGTAG, "HTTP GET failed", ex);
-            throw ex;
+            FlareListSync sync = new FlareListSync();
+            sync.apply(decodeBody(
+                entry.body, entry.contentType, new FlareListDecoder()));
+            return sync.rank(orderedCount);
+        } catch (IOException ex) {
+            Log.w(LOGTAG, "Discarding unreadable flare list", ex);
+            return null;
         }
     }
 
     private URI generateFlareUri(String flareName) throws Exception
+    {
+        return generateFlareUri(flareName, "");
+    }
+
+    private URI generateFlareUri(String flareName, String query)
+        throws Exception
     {
         return new URI(
-            getServerUri() + "/flare/" + URLEncoder.encode(flareName, "UTF-8"));
+            getServerUri() + "/flare/" + URLEncoder.encode(flareName, "UTF-8")
+            + query);
     }
 
-    private HttpResponse execute(HttpUriRequest request) throws Exception
+    /**
+     * Executes a request.  Request bodies are gzipped once the
+     * coordinator has advertised (by sending Accept-Encoding in a
+     * response, as in RFC 7694) that it takes them that way.
+     *
+     * @return the final response, which may still carry an error status
+     */
+    private HttpResponse executeRequest(
+        CallHandle call, HttpUriRequest request, RetryPolicy policy)
+        throws Exception
     {
-        errId = R.string.server_error;
-        httpClient.getConnectionManager().closeExpiredConnections();
-        try {
-            synchronized(this) {
-                abortableRequest = request;
+        String hostKey = getHostKey(request.getURI());
+        HttpEntityEnclosingRequest enclosingRequest = null;
+        HttpEntity plainEntity = null;
+        if ((request instanceof HttpEntityEnclosingRequest)
+            && acceptsGzip(hostKey))
+        {
+            enclosingRequest = (HttpEntityEnclosingRequest) request;
+            plainEntity = enclosingRequest.getEntity();
+            HttpEntity compressedEntity = gzip(plainEntity);
+            if (compressedEntity == null) {
+                plainEntity = null;
+            } else {
+                enclosingRequest.setEntity(compressedEntity);
             }
-            return httpClient.execute(request);
-        } finally {
-            synchronized(this) {
-                abortableRequest = null;
+        }
+        HttpResponse httpResponse =
+            executeWithRetries(call, request, policy, hostKey);
+        if ((plainEntity != null)
+            && (httpResponse.getStatusLine().getStatusCode()
+                == HttpStatus.SC_UNSUPPORTED_MEDIA_TYPE))
+        {
+            // the coordinator changed its mind (or is a different one
+            // behind the same name); it won't have acted on the request
+            setAcceptsGzip(hostKey, false);
+            consume(httpResponse);
+            enclosingRequest.setEntity(plainEntity);
+            httpResponse = executeWithRetries(call, request, policy, hostKey);
+        }
+        Header acceptEncoding = httpResponse.getFirstHeader("Accept-Encoding");
+        if (acceptEncoding != null) {
+            setAcceptsGzip(
+                hostKey,
+                acceptEncoding.getValue().toLowerCase().indexOf("gzip") != -1);
+        }
+        return httpResponse;
+    }
+
+    /**
+     * Executes a request, retrying according to a policy, and failing
+     * fast while the coordinator's circuit breaker is open.
+     */
+    private HttpResponse executeWithRetries(
+        CallHandle call, HttpUriRequest request, RetryPolicy policy,
+        String hostKey)
+        throws Exception
+    {
+        CircuitBreaker breaker = getCircuitBreaker(hostKey);
+        boolean speculative = policy.isSpeculative();
+        long startTime = clock.elapsedRealtime();
+        for (int attempt = 1; ; ++attempt) {
+            if (speculative ? !breaker.isClosed() : !breaker.allowRequest()) {
+                throw new RpcException(
+                    R.string.server_unavailable, "Coordinator unavailable");
+            }
+            httpClient.getConnectionManager().closeExpiredConnections();
+            call.setRequest(request);
+            long retryAfterMillis = -1;
+            long delay;
+            IOException failure = null;
+            try {
+                long requestTime = clock.elapsedRealtime();
+                HttpResponse httpResponse = httpClient.execute(request);
+                addClockSample(
+                    httpResponse, requestTime, clock.elapsedRealtime());
+                int statusCode = httpResponse.getStatusLine().getStatusCode();
+                if (!policy.isRetryable(statusCode)) {
+                    if (!speculative) {
+                        if (statusCode >= 500) {
+                            breaker.recordFailure();
+                        } else {
+                            breaker.recordSuccess();
+                        }
+                    }
+                    return httpResponse;
+                }
+                retryAfterMillis = RetryPolicy.parseRetryAfter(
+                    getHeader(httpResponse, "Retry-After"),
+                    clock.currentTimeMillis());
+                if (statusCode == 503) {
+                    if (!speculative) {
+                        breaker.recordFailure();
+                    }
+                    if (retryAfterMillis > 0) {
+                        breaker.tripFor(retryAfterMillis);
+                    }
+                }
+                delay = policy.computeDelay(
+                    attempt, clock.elapsedRealtime() - startTime,
+                    retryAfterMillis, random);
+                if (delay < 0) {
+                    return httpResponse;
+                }
+                consume(httpResponse);
+                Log.w(LOGTAG, "HTTP " + statusCode + " from "
+                    + request.getURI() + "; retrying in " + delay + " ms");
+            } catch (IOException ex) {
+                // an abort (or interrupt) is the caller giving up, not
+                // the coordinator failing
+                if (call.isCancelled()
+                    || Thread.currentThread().isInterrupted())
+                {
+                    throw ex;
+                }
+                if (!speculative) {
+                    breaker.recordFailure();
+                }
+                if (!policy.isRetryable(ex)) {
+                    throw ex;
+                }
+                delay = policy.computeDelay(
+                    attempt, clock.elapsedRealtime() - startTime,
+                    -1, random);
+                if (delay < 0) {
+                    throw ex;
+                }
+                Log.w(LOGTAG, request.getMethod() + " " + request.getURI()
+                    + " failed; retrying in " + delay + " ms", ex);
+                failure = ex;
+            }
+            // outside the try, so that giving up here isn't mistaken
+            // for a failed request
+            if (!call.pause(delay, clock)) {
+                if (failure != null) {
+                    throw failure;
+                }
+                throw new IOException("Cancelled");
             }
         }
     }
-    
-    JSONObject getFlare(String flareName) throws Exception
+
+    private void addClockSample(
+        HttpResponse httpResponse, long requestTime, long responseTime)
     {
-        HttpGet httpGet =
-            new HttpGet(generateFlareUri(flareName));
+        String serverTime = getHeader(httpResponse, SERVER_TIME_HEADER);
+        if (serverTime != null) {
+            try {
+                clockSync.addSample(
+                    requestTime, responseTime, Long.parseLong(serverTime), 1);
+                return;
+            } catch (NumberFormatException ex) {
+                // fall back to Date
+            }
+        }
+        String date = getHeader(httpResponse, "Date");
+        if (date == null) {
+            return;
+        }
         try {
-            HttpResponse httpResponse = execute(httpGet);
-            if (httpResponse.getStatusLine().getStatusCode() == 404) {
-                return null;
+            clockSync.addSample(
+                requestTime, responseTime,
+                DateUtils.parseDate(date).getTime(), 1000);
+        } catch (DateParseException ex) {
+            Log.w(LOGTAG, "Unparseable Date header " + date);
+        }
+    }
+
+    private static String getHostKey(URI uri)
+    {
+        return uri.getHost() + ":" + uri.getPort();
+    }
+
+    private CircuitBreaker getCircuitBreaker(String host)
+    {
+        synchronized (circuitBreakers) {
+            CircuitBreaker breaker = circuitBreakers.get(host);
+            if (breaker == null) {
+                breaker = new CircuitBreaker(
+                    policies.breakerFailureThreshold,
+                    policies.breakerMinOpenMillis,
+                    policies.breakerMaxOpenMillis, clock);
+                circuitBreakers.put(host, breaker);
             }
-            String json =
-                readInputStream(
-                    httpResponse.getEntity().getContent());
-            JSONTokener tokener = new JSONTokener(json);
-            return new JSONObject(tokener);
-        } catch (Exception ex) {
-            Log.e(LOGTAG, "HTTP GET failed", ex);
-            throw ex;
+            return breaker;
         }
     }
 
-    int joinFlare(String flareName) throws Exception
+    private static boolean acceptsGzip(String host)
     {
-        HttpPost httpPost =
-            new HttpPost(generateFlareUri(flareName));
-        try {
-            HttpResponse httpResponse = execute(httpPost);
-            if (httpResponse.getStatusLine().getStatusCode() == 404) {
-                errId = R.string.invalid_flare;
-                throw new RuntimeException("Flare expired");
+        synchronized (gzipRequestHosts) {
+            return gzipRequestHosts.contains(host);
+        }
+    }
+
+    private static void setAcceptsGzip(String host, boolean accepts)
+    {
+        synchronized (gzipRequestHosts) {
+            if (accepts) {
+                gzipRequestHosts.add(host);
+            } else {
+                gzipRequestHosts.remove(host);
             }
-            String json =
-                readInputStream(
-                    httpResponse.getEntity().getContent());
-            JSONTokener tokener = new JSONTokener(json);
-            JSONObject jsonObj = new JSONObject(tokener);
-            return jsonObj.getInt(FlareTimer.PARTICIPANT_NUMBER);
-        } catch (Exception ex) {
-            Log.e(LOGTAG, "HTTP POST failed", ex);
-            throw ex;
         }
     }
 
-    String createFlare(String name, Bundle props)
-        throws Exception
+    /**
+     * @return compressed copy of a request body, or null if the body is
+     * missing or compressing it isn't worthwhile
+     */
+    private static HttpEntity gzip(HttpEntity entity) throws IOException
     {
-        HttpPut httpPut =
-            new HttpPut(generateFlareUri(name));
+        if ((entity == null)
+            || (entity.getContentLength() < MIN_GZIP_REQUEST_BYTES)
+            || (entity.getContentEncoding() != null))
+        {
+            return null;
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        GZIPOutputStream out = new GZIPOutputStream(bytes);
         try {
-            JSONObject jsonObj = new JSONObject();
-            for (String key : props.keySet()) {
-                jsonObj.put(key, props.get(key));
+            entity.writeTo(out);
+        } finally {
+            out.close();
+        }
+        if (bytes.size() >= entity.getContentLength()) {
+            return null;
+        }
+        ByteArrayEntity compressed = new ByteArrayEntity(bytes.toByteArray());
+        compressed.setContentType(entity.getContentType());
+        compressed.setContentEncoding("gzip");
+        return compressed;
+    }
+    
+    /**
+     * Fetches the status of a flare speculatively (nobody is waiting for
+     * it yet):  without retries, without sharing the request with
+     * other callers, and without counting against the coordinator's
+     * circuit breaker if it fails.  The response still primes the cache
+     * for a later {@link #getFlare}.
+     */
+    RpcCall<FlareStatus> prefetchFlare(final String flareName)
+    {
+        return new RpcCall<FlareStatus>(
+            "HTTP GET (prefetch) flare " + flareName)
+            {
+                @Override
+                protected FlareStatus perform() throws Exception
+                {
+                    URI uri = generateFlareUri(flareName);
+                    return fetchUncoalesced(
+                        this, new HttpGet(uri), policies.prefetch,
+                        uri.toString(), new FlareStatusDecoder(), null);
+                }
+            };
+    }
+
+    RpcCall<FlareStatus> getFlare(final String flareName)
+    {
+        return new RpcCall<FlareStatus>("HTTP GET flare " + flareName)
+            {
+                @Override
+                protected FlareStatus perform() throws Exception
+                {
+                    URI uri = generateFlareUri(flareName);
+                    return fetch(
+                        this, new HttpGet(uri), policies.status,
+                        uri.toString(), new FlareStatusDecoder(), null);
+                }
+            };
+    }
+
+    /**
+     * Long-polls the status of a flare.  The coordinator holds the
+     * request until the join count or countdown start time differs
+     * from what the caller already knows, or until the wait expires,
+     * and then responds with the current status.  (Coordinators which
+     * don't support waiting respond immediately.)
+     *
+     * @param flareName flare to watch
+     * @param known status already known to the caller
+     * @param waitSeconds maximum time the coordinator should hold the
+     * request
+     *
+     * @return current status, or null if the flare no longer exists
+     */
+    RpcCall<FlareStatus> watchFlare(
+        final String flareName, FlareStatus known, int waitSeconds)
+    {
+        final String query = "?" + FlareTimer.JOIN_COUNT + "="
+            + known.joinCount
+            + "&" + FlareTimer.COUNTDOWN_START_TIME + "="
+            + known.countdownStartTime
+            + "&waitSeconds=" + waitSeconds;
+        return new RpcCall<FlareStatus>("HTTP GET (wait) flare " + flareName)
+            {
+                @Override
+                protected FlareStatus perform() throws Exception
+                {
+                    final HttpGet httpGet =
+                        new HttpGet(generateFlareUri(flareName, query));
+                    // several watchers of the same flare with the same
+                    // view of it can share one long poll
+                    return singleFlight.execute(
+                        this, httpGet.getURI().toString(),
+                        new SingleFlight.Work<FlareStatus>()
+                        {
+                            public FlareStatus perform(CallHandle sharedCall)
+                                throws Exception
+                            {
+                                return decodeResponse(
+                                    executeRequest(
+                                        sharedCall, httpGet, policies.watch),
+                                    new FlareStatusDecoder());
+                            }
+                        });
+                }
+            };
+    }
+
+    /**
+     * Executes a GET through the response cache: if a previous response
+     * for the same key carried validators, the request is made
+     * conditional, and a 304 returns the previously decoded result.
+     * Concurrent fetches with the same key share a single request.
+     *
+     * @param call call on whose behalf the request is made
+     * @param httpGet request to execute
+     * @param policy retry policy for the request
+     * @param cacheKey key identifying the decoded result (normally the
+     * request URI, plus anything else the decoder depends on)
+     * @param decoder decoder for the response
+     * @param diskSlot slot in which to persist the response, or null
+     * to keep it in memory only
+     *
+     * @return decoded result
+     */
+    private <T> T fetch(
+        CallHandle call, final HttpGet httpGet, final RetryPolicy policy,
+        final String cacheKey, final ResponseDecoder<T> decoder,
+        final String diskSlot)
+        throws Exception
+    {
+        return singleFlight.execute(
+            call, cacheKey,
+            new SingleFlight.Work<T>()
+            {
+                public T perform(CallHandle sharedCall) throws Exception
+                {
+                    return fetchUncoalesced(
+                        sharedCall, httpGet, policy, cacheKey, decoder,
+                        diskSlot);
+                }
+            });
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> T fetchUncoalesced(
+        CallHandle call, HttpGet httpGet, RetryPolicy policy,
+        String cacheKey, ResponseDecoder<T> decoder, String diskSlot)
+        throws Exception
+    {
+        if (diskSlot != null) {
+            enableDiskTier();
+        }
+        ResponseCache.Entry cached = responseCache.get(cacheKey);
+        if ((cached == null) && (diskSlot != null)) {
+            cached = readSlot(diskSlot, cacheKey, decoder);
+        }
+        if (cached != null) {
+            if (cached.etag != null) {
+                httpGet.setHeader("If-None-Match", cached.etag);
             }
-            httpPut.setEntity(new StringEntity(jsonObj.toString()));
-            HttpResponse httpResponse = execute(httpPut);
-            if (httpResponse.getStatusLine().getStatusCode() == 409) {
-                errId = R.string.duplicate_flare_name;
-                throw new RuntimeException("Flare name already in use");
+            if (cached.lastModified != null) {
+                httpGet.setHeader("If-Modified-Since", cached.lastModified);
             }
-            String json =
-                readInputStream(httpResponse.getEntity().getContent());
-            JSONTokener tokener = new JSONTokener(json);
-            jsonObj = new JSONObject(tokener);
-            return jsonObj.getString("name");
-        } catch (Exception ex) {
-            Log.e(LOGTAG, "HTTP PUT failed", ex);
-            throw ex;
         }
+        HttpResponse httpResponse = executeRequest(call, httpGet, policy);
+        int statusCode = httpResponse.getStatusLine().getStatusCode();
+        if ((statusCode == HttpStatus.SC_NOT_MODIFIED) && (cached != null)) {
+            consume(httpResponse);
+            responseCache.recordHit();
+            return (T) cached.value;
+        }
+        responseCache.recordMiss();
+        if (statusCode != HttpStatus.SC_OK) {
+            responseCache.remove(cacheKey);
+            consume(httpResponse);
+            return decoder.handleStatus(statusCode);
+        }
+
+        ResponseCache.Entry entry = new ResponseCache.Entry();
+        entry.uri = cacheKey;
+        entry.etag = getHeader(httpResponse, "ETag");
+        entry.lastModified = getHeader(httpResponse, "Last-Modified");
+        if (diskSlot == null) {
+            entry.value = decodeEntity(httpResponse, decoder, null);
+        } else {
+            // capture the body on the way through the decoder so that
+            // it can be persisted
+            entry.value = decodeEntity(httpResponse, decoder, entry);
+            responseCache.writeSlot(diskSlot, entry);
+            entry.body = null;
+        }
+        if (entry.hasValidator()) {
+            responseCache.put(entry);
+        } else {
+            responseCache.remove(cacheKey);
+        }
+        return (T) entry.value;
     }
 
-    synchronized void cancel()
+    private <T> ResponseCache.Entry readSlot(
+        String diskSlot, String cacheKey, ResponseDecoder<T> decoder)
     {
-        if (abortableRequest != null) {
-            abortableRequest.abort();
+        ResponseCache.Entry entry = responseCache.readSlot(diskSlot);
+        if ((entry == null) || !entry.uri.equals(cacheKey)
+            || !entry.hasValidator())
+        {
+            return null;
+        }
+        try {
+            entry.value = decodeBody(entry.body, entry.contentType, decoder);
+        } catch (IOException ex) {
+            return null;
         }
+        entry.body = null;
+        responseCache.put(entry);
+        return entry;
     }
-    
-    private static String readInputStream(InputStream is) throws IOException
+
+    private <T> T decodeResponse(
+        HttpResponse httpResponse, ResponseDecoder<T> decoder)
+        throws Exception
+    {
+        int statusCode = httpResponse.getStatusLine().getStatusCode();
+        if (statusCode != HttpStatus.SC_OK) {
+            consume(httpResponse);
+            return decoder.handleStatus(statusCode);
+        }
+        return decodeEntity(httpResponse, decoder, null);
+    }
+
+    /**
+     * Decodes a response body in whichever format and content encoding
+     * the coordinator chose, recording what that cost.
+     *
+     * @param capture if not null, receives the decompressed body (when
+     * small enough to persist) and its content type
+     */
+    private static <T> T decodeEntity(
+        HttpResponse httpResponse, ResponseDecoder<T> decoder,
+        ResponseCache.Entry capture)
+        throws IOException
     {
-        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        HttpEntity entity = httpResponse.getEntity();
+        if (entity == null) {
+            throw new IOException("Missing response body");
+        }
+        Header contentTypeHeader = entity.getContentType();
+        String contentType =
+            (contentTypeHeader == null) ? null : contentTypeHeader.getValue();
+        Header encoding = entity.getContentEncoding();
+        boolean gzipped =
+            (encoding != null) && encoding.getValue().equalsIgnoreCase("gzip");
 
-        int nRead;
-        byte[] data = new byte[16384];
-        
-        while ((nRead = is.read(data, 0, data.length)) != -1) {
-            buffer.write(data, 0, nRead);
+        CountingInputStream wireStream =
+            new CountingInputStream(entity.getContent());
+        CountingInputStream bodyStream = new CountingInputStream(
+            gzipped ? new GZIPInputStream(wireStream) : wireStream);
+        InputStream in = bodyStream;
+        CapturingInputStream capturingStream = null;
+        if (capture != null) {
+            capturingStream = new CapturingInputStream(
+                in, ResponseCache.MAX_DISK_BODY_BYTES);
+            in = capturingStream;
+        }
+
+        // CPU time rather than elapsed time, since decoding is
+        // interleaved with waiting for the network
+        long startNanos = Debug.threadCpuTimeNanos();
+        T result;
+        WireReader reader = openReader(contentType, in);
+        try {
+            result = decoder.decode(reader);
+        } finally {
+            reader.close();
         }
-        buffer.flush();
-        is.close();
-        return new String(buffer.toByteArray());
+        long decodeNanos = (startNanos < 0)
+            ? -1 : (Debug.threadCpuTimeNanos() - startNanos);
+
+        wireStats.record(
+            getFormat(contentType) + (gzipped ? "+gzip" : ""),
+            wireStream.getCount(), bodyStream.getCount(), decodeNanos);
+        if (capture != null) {
+            capture.body = capturingStream.getCaptured();
+            capture.contentType = contentType;
+        }
+        return result;
     }
 
-    int getErrorId() 
+    private static <T> T decodeBody(
+        byte [] body, String contentType, ResponseDecoder<T> decoder)
+        throws IOException
     {
-        return errId;
+        WireReader reader =
+            openReader(contentType, new ByteArrayInputStream(body));
+        try {
+            return decoder.decode(reader);
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static boolean isMsgPack(String contentType)
+    {
+        return (contentType != null)
+            && (contentType.startsWith("application/x-msgpack")
+                || contentType.startsWith("application/msgpack"));
+    }
+
+    private static String getFormat(String contentType)
+    {
+        return isMsgPack(contentType) ? "msgpack" : "json";
+    }
+
+    private static WireReader openReader(String contentType, InputStream in)
+        throws IOException
+    {
+        if (isMsgPack(contentType)) {
+            return new MsgPackReader(in);
+        }
+        // coordinator always speaks UTF-8, whatever the platform default
+        return new JsonStreamReader(in);
+    }
+
+    private static String getHeader(HttpResponse httpResponse, String name)
+    {
+        Header header = httpResponse.getFirstHeader(name);
+        return header == null ? null : header.getValue();
+    }
+
+    /**
+     * Fails a call whose response has a status other than 2xx (after
+     * the caller has dealt with any statuses it expects), rather than
+     * trying to decode an error page.
+     */
+    private static void requireSuccess(HttpResponse httpResponse)
+        throws IOException, RpcException
+    {
+        int statusCode = httpResponse.getStatusLine().getStatusCode();
+        if ((statusCode >= 200) && (statusCode < 300)) {
+            return;
+        }
+        consume(httpResponse);
+        if ((statusCode == 429) || (statusCode == 503)) {
+            throw new RpcException(
+                R.string.server_unavailable, "Coordinator unavailable");
+        }
+        throw new RpcException(
+            R.string.server_error, "Unexpected HTTP status " + statusCode);
+    }
+
+    private static void consume(HttpResponse httpResponse) throws IOException
+    {
+        HttpEntity entity = httpResponse.getEntity();
+        if (entity != null) {
+            entity.consumeContent();
+        }
+    }
+
+    /**
+     * Joins a flare.  The coordinator replies with the flare's full
+     * status as of the join, so the caller can show it without another
+     * round trip; for older coordinators, which reply with only the
+     * participant number, the status is fetched separately.
+     *
+     * @return status including our participant number
+     */
+    RpcCall<FlareStatus> joinFlare(final String flareName)
+    {
+        return new RpcCall<FlareStatus>("HTTP POST flare " + flareName)
+            {
+                @Override
+                protected FlareStatus perform() throws Exception
+                {
+                    URI uri = generateFlareUri(flareName);
+                    HttpResponse httpResponse =
+                        executeRequest(this, new HttpPost(uri), policies.join);
+                    int statusCode =
+                        httpResponse.getStatusLine().getStatusCode();
+                    if (statusCode == 404) {
+                        consume(httpResponse);
+                        throw new RpcException(
+                            R.string.invalid_flare, "Flare expired");
+                    }
+                    if (statusCode == 403) {
+                        consume(httpResponse);
+                        throw new RpcException(
+                            R.string.need_upgrade, "Obsolete client version");
+                    }
+                    requireSuccess(httpResponse);
+                    FlareStatus status = decodeEntity(
+                        httpResponse, new FlareStatusDecoder(), null);
+                    if (!status.hasParticipantNumber()) {
+                        throw new IOException("Missing participant number");
+                    }
+                    if (status.isComplete()) {
+                        return status;
+                    }
+                    FlareStatus current = fetch(
+                        this, new HttpGet(uri), policies.status,
+                        uri.toString(), new FlareStatusDecoder(), null);
+                    if (current == null) {
+                        throw new RpcException(
+                            R.string.invalid_flare, "Flare expired");
+                    }
+                    // the fetched status may be shared via the cache
+                    current = current.copy();
+                    current.participantNumber = status.participantNumber;
+                    return current;
+                }
+            };
+    }
+
+    /**
+     * Creates a flare, asking the coordinator to join the creator to it
+     * at the same time.
+     *
+     * @return status of the new flare; if it has a participant number,
+     * the creator has been joined (older coordinators don't do that,
+     * and return an incomplete status)
+     */
+    RpcCall<FlareStatus> createFlare(final String name, final Bundle props)
+    {
+        return new RpcCall<FlareStatus>("HTTP PUT flare " + name)
+            {
+                @Override
+                protected FlareStatus perform() throws Exception
+                {
+                    HttpPut httpPut =
+                        new HttpPut(generateFlareUri(name, "?join=true"));
+                    JSONObject jsonObj = new JSONObject();
+                    for (String key : props.keySet()) {
+                        jsonObj.put(key, props.get(key));
+                    }
+                    StringEntity entity =
+                        new StringEntity(jsonObj.toString(), "UTF-8");
+                    entity.setContentType("application/json; charset=UTF-8");
+                    httpPut.setEntity(entity);
+                    HttpResponse httpResponse =
+                        executeRequest(this, httpPut, policies.create);
+                    int statusCode =
+                        httpResponse.getStatusLine().getStatusCode();
+                    if (statusCode == 409) {
+                        consume(httpResponse);
+                        throw new RpcException(
+                            R.string.duplicate_flare_name,
+                            "Flare name already in use");
+                    }
+                    requireSuccess(httpResponse);
+                    FlareStatus status = decodeEntity(
+                        httpResponse, new FlareStatusDecoder(true), null);
+                    // recent searches didn't see the new flare
+                    flareIndex.clear();
+                    return status;
+                }
+            };
+    }
+
+    /**
+     * Passes a stream through while keeping a copy of what was read,
+     * up to a limit.
+     */
+    private static class CapturingInputStream extends FilterInputStream
+    {
+        private ByteArrayOutputStream copy = new ByteArrayOutputStream();
+        private final int maxBytes;
+
+        CapturingInputStream(InputStream in, int maxBytes)
+        {
+            super(in);
+            this.maxBytes = maxBytes;
+        }
+
+        @Override
+        public int read() throws IOException
+        {
+            int b = super.read();
+            if ((b != -1) && (copy != null)) {
+                copy.write(b);
+                checkLimit();
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte [] buffer, int offset, int count)
+            throws IOException
+        {
+            int n = super.read(buffer, offset, count);
+            if ((n > 0) && (copy != null)) {
+                copy.write(buffer, offset, n);
+                checkLimit();
+            }
+            return n;
+        }
+
+        private void checkLimit()
+        {
+            if (copy.size() > maxBytes) {
+                copy = null;
+            }
+        }
+
+        /**
+         * @return everything read, or null if that exceeded the limit
+         */
+        byte [] getCaptured()
+        {
+            return copy == null ? null : copy.toByteArray();
+        }
+    }
+
+    /**
+     * Counts the bytes read through it.
+     */
+    private static class CountingInputStream extends FilterInputStream
+    {
+        private long count;
+
+        CountingInputStream(InputStream in)
+        {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException
+        {
+            int b = super.read();
+            if (b != -1) {
+                ++count;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte [] buffer, int offset, int length)
+            throws IOException
+        {
+            int n = super.read(buffer, offset, length);
+            if (n > 0) {
+                count += n;
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException
+        {
+            long skipped = super.skip(n);
+            count += skipped;
+            return skipped;
+        }
+
+        long getCount()
+        {
+            return count;
+        }
     }
 }
@@ -0,0 +1,47 @@
+/**
+ * Copyright 2012 Lingering Socket Labs
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.lingeringsocket.mobflare;
+
+/**
+ * Reports the failure of an RPC call, carrying the string resource of
+ * the message to show the user.
+ */
+class RpcException extends Exception
+{
+    private static final long serialVersionUID = 1L;
+
+    private final int errId;
+
+    RpcException(int errId, String message)
+    {
+        super(message);
+        this.errId = errId;
+    }
+
+    RpcException(int errId, String message, Throwable cause)
+    {
+        super(message, cause);
+        this.errId = errId;
+    }
+
+    /**
+     * @return string resource describing the failure to the user
+     */
+    int getErrorId()
+    {
+        return errId;
+    }
+}
@@ -20,6 +20,9 @@ import android.app.*;
 import android.content.*;
 import android.widget.*;
 
+import java.lang.reflect.*;
+import java.util.concurrent.*;
+
 /**
  * Extends AsyncTask with progress and exception handling specific
  * to REST server calls.
@@ -27,14 +30,66 @@ import android.widget.*;
 abstract class RpcTask<Params, Progress, Result>
     extends AsyncTask<Params, Progress, Result>
 {
-    private RpcCoordinator rpcCoordinator;
+    private static Method executeOnExecutor;
+    private static Executor threadPoolExecutor;
+
     protected ProgressDialog progress;
     private Exception ex;
-    private boolean aborted;
+    private volatile boolean aborted;
+    private volatile RpcCall<?> currentCall;
 
-    void setCoordinator(RpcCoordinator rpcCoordinator)
+    static
     {
-        this.rpcCoordinator = rpcCoordinator;
+        // AsyncTask.execute has been serial since Honeycomb; look up the
+        // API 11 way to opt back into the thread pool
+        try {
+            executeOnExecutor = AsyncTask.class.getMethod(
+                "executeOnExecutor", Executor.class, Object[].class);
+            threadPoolExecutor = (Executor)
+                AsyncTask.class.getField("THREAD_POOL_EXECUTOR").get(null);
+        } catch (Exception ex) {
+            // older platform, where execute already uses the pool
+            executeOnExecutor = null;
+        }
+    }
+
+    /**
+     * Executes the task on AsyncTask's thread pool, so that it can run
+     * concurrently with other tasks (e.g. a refresh alongside a create).
+     */
+    @SuppressWarnings("unchecked")
+    void executeInParallel(Params... params)
+    {
+        if (executeOnExecutor == null) {
+            execute(params);
+            return;
+        }
+        try {
+            executeOnExecutor.invoke(this, threadPoolExecutor, params);
+        } catch (IllegalAccessException ex) {
+            throw new RuntimeException(ex);
+        } catch (InvocationTargetException ex) {
+            throw new RuntimeException(ex.getCause());
+        }
+    }
+
+    /**
+     * Executes a call on behalf of this task, making it the one which
+     * gets cancelled if the user cancels the progress dialog.
+     *
+     * @return result of the call
+     */
+    protected <T> T runCall(RpcCall<T> call) throws RpcException
+    {
+        currentCall = call;
+        try {
+            if (aborted) {
+                call.cancel();
+            }
+            return call.execute();
+        } finally {
+            currentCall = null;
+        }
     }
     
     @Override
@@ -49,7 +104,10 @@ abstract class RpcTask<Params, Progress, Result>
                     public void onCancel(DialogInterface dialog)
                     {
                         aborted = true;
-                        rpcCoordinator.cancel();
+                        RpcCall<?> call = currentCall;
+                        if (call != null) {
+                            call.cancel();
+                        }
                     }
                 });
             progress.show();
@@ -81,8 +139,8 @@ abstract class RpcTask<Params, Progress, Result>
         super.onCancelled();
         if (progress != null) {
             int errId = R.string.server_error;
-            if (rpcCoordinator != null) {
-                errId = rpcCoordinator.getErrorId();
+            if (ex instanceof RpcException) {
+                errId = ((RpcException) ex).getErrorId();
             }
             Toast toast = Toast.makeText(
                 progress.getContext(), errId,
@@ -0,0 +1,131 @@
+/**
+ * Copyright 2012 Lingering Socket Labs
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.lingeringsocket.mobflare;
+
+import android.app.*;
+import android.content.*;
+import android.graphics.*;
+import android.os.*;
+import android.view.*;
+
+/**
+ * Implements FlareOutput by filling the screen with white at full
+ * brightness.  This needs a window, so it must be initialized with an
+ * activity, and only lasts as long as that does.  The view belongs to
+ * the UI thread, so each edge is posted there, and waits (briefly) for
+ * it to be applied.
+ */
+class ScreenFlashOutput implements FlareOutput
+{
+    // don't wait longer than this for a busy UI thread
+    private static final long MAX_WAIT_MILLIS = 500;
+
+    private Activity activity;
+    private View flashView;
+    private float savedBrightness;
+
+    @Override
+    public void initialize(Context context)
+    {
+        activity = (Activity) context;
+        flashView = new View(activity);
+        flashView.setBackgroundColor(Color.WHITE);
+        flashView.setVisibility(View.GONE);
+        activity.addContentView(
+            flashView,
+            new ViewGroup.LayoutParams(
+                ViewGroup.LayoutParams.FILL_PARENT,
+                ViewGroup.LayoutParams.FILL_PARENT));
+    }
+
+    @Override
+    public void beginOutput()
+    {
+        runAndWait(new Runnable()
+            {
+                public void run()
+                {
+                    show(true);
+                }
+            });
+    }
+
+    @Override
+    public void endOutput()
+    {
+        runAndWait(new Runnable()
+            {
+                public void run()
+                {
+                    show(false);
+                }
+            });
+    }
+
+    @Override
+    public void release()
+    {
+        show(false);
+    }
+
+    private void show(boolean on)
+    {
+        if (on == (flashView.getVisibility() == View.VISIBLE)) {
+            return;
+        }
+        Window window = activity.getWindow();
+        WindowManager.LayoutParams params = window.getAttributes();
+        if (on) {
+            savedBrightness = params.screenBrightness;
+            params.screenBrightness = 1.0f;
+            flashView.setVisibility(View.VISIBLE);
+        } else {
+            params.screenBrightness = savedBrightness;
+            flashView.setVisibility(View.GONE);
+        }
+        window.setAttributes(params);
+    }
+
+    private void runAndWait(final Runnable runnable)
+    {
+        final boolean [] done = new boolean[1];
+        activity.runOnUiThread(new Runnable()
+            {
+                public void run()
+                {
+                    runnable.run();
+                    synchronized (done) {
+                        done[0] = true;
+                        done.notify();
+                    }
+                }
+            });
+        long deadline = SystemClock.uptimeMillis() + MAX_WAIT_MILLIS;
+        synchronized (done) {
+            try {
+                // monotonic, so that a wall clock step can't cut the
+                // wait short or stretch it
+                long remaining = deadline - SystemClock.uptimeMillis();
+                while (!done[0] && (remaining > 0)) {
+                    done.wait(remaining);
+                    remaining = deadline - SystemClock.uptimeMillis();
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
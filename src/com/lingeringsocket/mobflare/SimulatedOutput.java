@@ -0,0 +1,95 @@
+/**
+ * Copyright 2012 Lingering Socket Labs
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.lingeringsocket.mobflare;
+
+import java.util.*;
+
+import android.content.*;
+
+/**
+ * Implements FlareOutput with nothing but a delay, standing in for an
+ * output with known latency.  Useful for exercising calibration and
+ * scheduling without a camera (or on an emulator).
+ */
+class SimulatedOutput implements FlareOutput
+{
+    private final long latencyMillis;
+    private final long jitterMillis;
+    private final Random random = new Random();
+    private volatile boolean lit;
+
+    /**
+     * @param latencyMillis how long each edge takes
+     * @param jitterMillis how much that varies (uniformly, either way)
+     */
+    SimulatedOutput(long latencyMillis, long jitterMillis)
+    {
+        this.latencyMillis = latencyMillis;
+        this.jitterMillis = jitterMillis;
+    }
+
+    @Override
+    public void initialize(Context context)
+    {
+    }
+
+    @Override
+    public void beginOutput()
+    {
+        delay();
+        lit = true;
+    }
+
+    @Override
+    public void endOutput()
+    {
+        delay();
+        lit = false;
+    }
+
+    @Override
+    public void release()
+    {
+        lit = false;
+    }
+
+    /**
+     * @return whether the simulated light is on
+     */
+    boolean isLit()
+    {
+        return lit;
+    }
+
+    private void delay()
+    {
+        long millis = latencyMillis;
+        if (jitterMillis > 0) {
+            synchronized (random) {
+                millis += random.nextInt((int) (2 * jitterMillis + 1))
+                    - jitterMillis;
+            }
+        }
+        if (millis <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,186 @@
+/**
+ * Copyright 2012 Lingering Socket Labs
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.lingeringsocket.mobflare;
+
+import java.util.*;
+
+/**
+ * Coalesces concurrent identical coordinator requests: while a request
+ * for a given key is in flight, further callers with the same key wait
+ * for it and share its result instead of making requests of their own.
+ * The shared request is only aborted once every caller waiting on it
+ * has been cancelled.
+ */
+class SingleFlight
+{
+    /**
+     * Work to be shared by all callers for one key.
+     */
+    interface Work<T>
+    {
+        /**
+         * @param sharedCall handle under which to make any requests
+         */
+        T perform(CallHandle sharedCall) throws Exception;
+    }
+
+    private static class Flight
+    {
+        final String key;
+        final CallHandle sharedCall = new CallHandle();
+        int participants;
+        boolean done;
+        Object result;
+        Exception error;
+
+        Flight(String key)
+        {
+            this.key = key;
+        }
+    }
+
+    private final Map<String, Flight> flights = new HashMap<String, Flight>();
+    private long coalescedCount;
+
+    /**
+     * Performs work on behalf of a call, or joins identical work already
+     * in flight.
+     *
+     * @param call call on whose behalf the work is done
+     * @param key key identifying the work
+     * @param work the work
+     *
+     * @return result of the (possibly shared) work
+     */
+    @SuppressWarnings("unchecked")
+    <T> T execute(CallHandle call, String key, Work<T> work) throws Exception
+    {
+        final Flight flight;
+        boolean leader = false;
+        synchronized (this) {
+            Flight existing = flights.get(key);
+            if (existing == null) {
+                flight = new Flight(key);
+                flights.put(key, flight);
+                leader = true;
+            } else {
+                flight = existing;
+                ++coalescedCount;
+            }
+            ++flight.participants;
+        }
+        call.setCancelHook(new Runnable()
+            {
+                private boolean left;
+
+                public void run()
+                {
+                    CallHandle abandoned;
+                    synchronized (SingleFlight.this) {
+                        if (left) {
+                            return;
+                        }
+                        left = true;
+                        abandoned = leave(flight);
+                    }
+                    // aborting takes the connection manager's locks, so
+                    // do it after releasing ours
+                    if (abandoned != null) {
+                        abandoned.cancel();
+                    }
+                }
+            });
+        try {
+            if (leader) {
+                lead(flight, work);
+            }
+            synchronized (this) {
+                while (!flight.done) {
+                    if (call.isCancelled()) {
+                        break;
+                    }
+                    wait();
+                }
+            }
+            if (call.isCancelled()) {
+                throw new RpcException(
+                    R.string.server_error, "Call cancelled");
+            }
+            if (flight.error != null) {
+                throw flight.error;
+            }
+            return (T) flight.result;
+        } finally {
+            call.setCancelHook(null);
+        }
+    }
+
+    /**
+     * @return number of calls which were satisfied by joining a request
+     * already in flight
+     */
+    synchronized long getCoalescedCount()
+    {
+        return coalescedCount;
+    }
+
+    private <T> void lead(Flight flight, Work<T> work)
+    {
+        Object result = null;
+        Exception error = null;
+        try {
+            result = work.perform(flight.sharedCall);
+        } catch (Exception ex) {
+            error = ex;
+        }
+        synchronized (this) {
+            flight.result = result;
+            flight.error = error;
+            flight.done = true;
+            retire(flight);
+            notifyAll();
+        }
+    }
+
+    /**
+     * Records that a participant has given up on a flight.  Caller must
+     * hold lock.
+     *
+     * @return the flight's shared handle, which the caller should cancel
+     * once it has released the lock, or null if others still want the
+     * result
+     */
+    private CallHandle leave(Flight flight)
+    {
+        --flight.participants;
+        notifyAll();
+        if ((flight.participants == 0) && !flight.done) {
+            // nobody wants the result any more; make sure later callers
+            // don't join an aborted request
+            retire(flight);
+            return flight.sharedCall;
+        }
+        return null;
+    }
+
+    // caller must hold lock
+    private void retire(Flight flight)
+    {
+        if (flights.get(flight.key) == flight) {
+            flights.remove(flight.key);
+        }
+    }
+}
@@ -0,0 +1,123 @@
+/**
+ * Copyright 2012 Lingering Socket Labs
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.lingeringsocket.mobflare;
+
+/**
+ * Accumulates a histogram of timing errors (how late something happened
+ * relative to when it was meant to), in roughly logarithmic buckets.
+ */
+class TimingHistogram
+{
+    // upper bounds of the buckets, in microseconds; one more bucket
+    // catches everything beyond the last
+    private static final long [] BUCKET_MICROS =
+    {
+        50, 100, 250, 500, 1000, 2000, 5000, 10000, 20000, 50000
+    };
+
+    private final String name;
+    private final long [] counts = new long[BUCKET_MICROS.length + 1];
+    private long total;
+    private long sumNanos;
+    private long maxNanos;
+
+    /**
+     * @param name what is being timed, for {@link #toString}
+     */
+    TimingHistogram(String name)
+    {
+        this.name = name;
+    }
+
+    /**
+     * Records one event.
+     *
+     * @param errorNanos how late the event was (negative if early)
+     */
+    synchronized void record(long errorNanos)
+    {
+        long magnitude = Math.abs(errorNanos);
+        long micros = magnitude / 1000;
+        int i = 0;
+        while ((i < BUCKET_MICROS.length) && (micros >= BUCKET_MICROS[i])) {
+            ++i;
+        }
+        ++counts[i];
+        ++total;
+        sumNanos += magnitude;
+        maxNanos = Math.max(maxNanos, magnitude);
+    }
+
+    synchronized long getCount()
+    {
+        return total;
+    }
+
+    /**
+     * @return largest error recorded, in nanoseconds
+     */
+    synchronized long getMaxNanos()
+    {
+        return maxNanos;
+    }
+
+    /**
+     * @return mean magnitude of the errors recorded, in nanoseconds
+     */
+    synchronized long getMeanNanos()
+    {
+        return (total == 0) ? 0 : (sumNanos / total);
+    }
+
+    /**
+     * @return fraction of events within the given error
+     */
+    synchronized double getFractionWithin(long micros)
+    {
+        if (total == 0) {
+            return 1;
+        }
+        long within = 0;
+        for (int i = 0; i < BUCKET_MICROS.length; ++i) {
+            if (BUCKET_MICROS[i] > micros) {
+                break;
+            }
+            within += counts[i];
+        }
+        return (double) within / total;
+    }
+
+    @Override
+    public synchronized String toString()
+    {
+        StringBuilder sb = new StringBuilder();
+        sb.append(name).append(":  ").append(total).append(" events, mean ")
+            .append(getMeanNanos() / 1000).append(" us, max ")
+            .append(maxNanos / 1000).append(" us;");
+        for (int i = 0; i < counts.length; ++i) {
+            if (counts[i] == 0) {
+                continue;
+            }
+            if (i < BUCKET_MICROS.length) {
+                sb.append(" <").append(BUCKET_MICROS[i]).append("us:");
+            } else {
+                sb.append(" more:");
+            }
+            sb.append(counts[i]);
+        }
+        return sb.toString();
+    }
+}
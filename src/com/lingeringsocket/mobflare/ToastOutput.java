@@ -15,7 +15,8 @@
  */
 package com.lingeringsocket.mobflare;
 
-import android.app.*;
+import android.content.*;
+import android.os.*;
 import android.widget.*;
 
 /**
@@ -25,28 +26,43 @@ import android.widget.*;
  */
 class ToastOutput implements FlareOutput
 {
-    private Activity activity;
+    private Context context;
+    private Handler handler;
     private Toast toast;
     
     @Override
-    public void initialize(Activity activity)
+    public void initialize(Context context)
     {
-        this.activity = activity;
+        this.context = context;
+        handler = new Handler(context.getMainLooper());
     }
     
     @Override
     public void beginOutput()
     {
-        release();
-        toast = Toast.makeText(activity, R.string.flash, Toast.LENGTH_SHORT);
-        toast.show();
-        
+        // toasts belong to the UI thread
+        handler.post(new Runnable()
+            {
+                public void run()
+                {
+                    release();
+                    toast = Toast.makeText(
+                        context, R.string.flash, Toast.LENGTH_SHORT);
+                    toast.show();
+                }
+            });
     }
     
     @Override
     public void endOutput()
     {
-        release();
+        handler.post(new Runnable()
+            {
+                public void run()
+                {
+                    release();
+                }
+            });
     }
     
     @Override
@@ -0,0 +1,73 @@
+/**
+ * Copyright 2012 Lingering Socket Labs
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.lingeringsocket.mobflare;
+
+import android.content.*;
+import android.media.*;
+import android.util.*;
+
+/**
+ * Implements FlareOutput by sounding a tone for the duration of each
+ * flash.
+ */
+class ToneOutput implements FlareOutput
+{
+    private static String LOGTAG = "ToneOutput";
+
+    private ToneGenerator toneGenerator;
+
+    @Override
+    public synchronized void initialize(Context context)
+    {
+        // up front, since creating the generator opens an audio track,
+        // which is far too slow to do on an edge
+        if (toneGenerator != null) {
+            return;
+        }
+        try {
+            toneGenerator = new ToneGenerator(
+                AudioManager.STREAM_ALARM, ToneGenerator.MAX_VOLUME);
+        } catch (RuntimeException ex) {
+            // thrown when the audio system is out of tracks
+            Log.w(LOGTAG, "Tone generator unavailable", ex);
+        }
+    }
+
+    @Override
+    public synchronized void beginOutput()
+    {
+        if (toneGenerator != null) {
+            toneGenerator.startTone(ToneGenerator.TONE_DTMF_0);
+        }
+    }
+
+    @Override
+    public synchronized void endOutput()
+    {
+        if (toneGenerator != null) {
+            toneGenerator.stopTone();
+        }
+    }
+
+    @Override
+    public synchronized void release()
+    {
+        if (toneGenerator != null) {
+            toneGenerator.release();
+            toneGenerator = null;
+        }
+    }
+}
@@ -0,0 +1,57 @@
+/**
+ * Copyright 2012 Lingering Socket Labs
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.lingeringsocket.mobflare;
+
+import android.content.*;
+import android.os.*;
+
+/**
+ * Implements FlareOutput by vibrating the phone; handy for a silent,
+ * invisible cue.
+ */
+class VibrationOutput implements FlareOutput
+{
+    // the vibrator is told to run for at most this long, in case the
+    // end of the flash never arrives
+    private static final long MAX_VIBRATE_MILLIS = 2000;
+
+    private Vibrator vibrator;
+
+    @Override
+    public void initialize(Context context)
+    {
+        vibrator = (Vibrator) context.getSystemService(
+            Context.VIBRATOR_SERVICE);
+    }
+
+    @Override
+    public void beginOutput()
+    {
+        vibrator.vibrate(MAX_VIBRATE_MILLIS);
+    }
+
+    @Override
+    public void endOutput()
+    {
+        vibrator.cancel();
+    }
+
+    @Override
+    public void release()
+    {
+        vibrator.cancel();
+    }
+}
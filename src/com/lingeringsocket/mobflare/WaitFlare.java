@@ -27,22 +27,62 @@ import android.util.*;
 import android.view.*;
 import android.widget.*;
 
-import org.json.*;
-
 /**
- * Displays status while waiting for participants to join.
+ * Displays status while waiting for participants to join.  The waiting
+ * itself is done by {@link FlareService}, so that it carries on while
+ * this activity isn't showing.
  */
 public class WaitFlare extends Activity
 {
     private static String LOGTAG = "WaitFlare";
 
+    // backoff for retrying a join which failed for reasons other than
+    // the flare being gone
+    private static final long MIN_JOIN_RETRY_MILLIS = 1000;
+    private static final long MAX_JOIN_RETRY_MILLIS = 30000;
+
     private TextView quorumText;
     private TextView joinedText;
     private boolean suspended;
-    private int participantNumber;
     private String flareName;
     private RpcCoordinator rpcCoordinator;
-    private boolean needJoin;
+    private FlareStatus initialStatus;
+    private boolean joined;
+    private boolean handedOff;
+    private JoinTask joinTask;
+    private long joinRetryMillis = MIN_JOIN_RETRY_MILLIS;
+    private Handler handler = new Handler();
+    private FlareService service;
+
+    private ServiceConnection connection = new ServiceConnection()
+        {
+            public void onServiceConnected(ComponentName name, IBinder binder)
+            {
+                service = ((FlareService.LocalBinder) binder).getService();
+                if (!suspended) {
+                    attach();
+                }
+            }
+
+            public void onServiceDisconnected(ComponentName name)
+            {
+                service = null;
+            }
+        };
+
+    private FlareService.WatchListener watchListener =
+        new FlareService.WatchListener()
+        {
+            public void onStatusChanged(FlareStatus status)
+            {
+                handleStatus(status);
+            }
+
+            public void onFlareGone()
+            {
+                handleStatus(null);
+            }
+        };
 
     @Override
     protected void onCreate(Bundle savedInstanceState)
@@ -57,26 +97,30 @@ public class WaitFlare extends Activity
         TextView flareNameView = (TextView) findViewById(R.id.flare_name);
         flareNameView.setText(flareName);
         rpcCoordinator = new RpcCoordinator(this);
-        needJoin = true;
-        onTimerTick();
-    }
-
-    private Handler tickHandler = new Handler() 
-        {
-            @Override
-            public void handleMessage(Message msg) {
-                removeMessages(0);
-                onTimerTick();
+        initialStatus = FlareStatus.fromExtras(getIntent());
+        if (initialStatus == null) {
+            // something to show while we join
+            FlarePrefetcher prefetcher = FlarePrefetcher.getInstance(this);
+            FlareStatus prefetched = prefetcher.get(flareName);
+            if (prefetched != null) {
+                showCounts(prefetched);
             }
-        };
+            Log.i(LOGTAG, "Prefetched statuses:  " + prefetcher);
+        }
+        suspended = true;
+        bindService(
+            new Intent(this, FlareService.class), connection,
+            Context.BIND_AUTO_CREATE);
+    }
 
     @Override
     protected void onResume()
     {
         super.onResume();
-        // TODO:  reuse wakelock
         suspended = false;
-        scheduleNextTick();
+        if (service != null) {
+            attach();
+        }
     }
 
     @Override
@@ -84,105 +128,157 @@ public class WaitFlare extends Activity
     {
         super.onPause();
         suspended = true;
+        if (service != null) {
+            service.setWatchListener(null);
+        }
     }
 
-    private void scheduleNextTick()
+    @Override
+    protected void onDestroy()
     {
-        // poll every second
-        tickHandler.sendEmptyMessageDelayed(0, 1000);
+        super.onDestroy();
+        handler.removeCallbacks(joinRetry);
+        if (service != null) {
+            if (isFinishing() && !handedOff && service.isActive(flareName)) {
+                // the user backed out
+                service.stopFlare();
+            }
+        }
+        unbindService(connection);
     }
 
-    private void onTimerTick()
+    private void attach()
     {
-        if (suspended) {
-            return;
+        if (service.isActive(flareName)) {
+            // already joined, maybe by an earlier instance of this
+            // activity
+            joined = true;
+            service.setWatchListener(watchListener);
+        } else if (joined) {
+            // the service found the flare gone while we weren't looking
+            giveUp(R.string.invalid_flare);
+        } else if ((initialStatus != null)
+            && initialStatus.hasParticipantNumber())
+        {
+            // the flare's creator was joined along with creating it
+            joined = true;
+            service.watchFlare(
+                flareName, initialStatus.participantNumber, initialStatus);
+            service.setWatchListener(watchListener);
+        } else if (joinTask == null) {
+            join();
         }
-        JoinTask joinTask = new JoinTask();
-        joinTask.setCoordinator(rpcCoordinator);
-        joinTask.execute(flareName);
     }
 
+    private void join()
+    {
+        handler.removeCallbacks(joinRetry);
+        joinTask = new JoinTask();
+        joinTask.executeInParallel(flareName);
+    }
+
+    private Runnable joinRetry = new Runnable()
+        {
+            public void run()
+            {
+                if ((joinTask == null) && !joined && !isFinishing()) {
+                    join();
+                }
+            }
+        };
+
     public void onGiveUpClicked(View v)
     {
         finish();
     }
 
-    private class JoinTask extends RpcTask<String, Void, JSONObject> 
+    private void handleStatus(FlareStatus status)
     {
+        if (status == null) {
+            giveUp(R.string.invalid_flare);
+            return;
+        }
+
+        showCounts(status);
+
+        if (status.countdownStartTime == 0) {
+            // keep watching
+            return;
+        }
+
+        // the service has started the countdown; just show it
+        handedOff = true;
+        Intent i = new Intent(WaitFlare.this, FlareTimer.class);
+        i.putExtra(
+            FlareTimer.FLARE_NAME,
+            flareName);
+        startActivity(i);
+        finish();
+    }
+
+    private void showCounts(FlareStatus status)
+    {
+        quorumText.setText(Integer.toString(status.quorumSize));
+        joinedText.setText(Integer.toString(status.joinCount));
+    }
+
+    private void giveUp(int errId)
+    {
+        Toast toast = Toast.makeText(
+            WaitFlare.this, errId, Toast.LENGTH_LONG);
+        toast.show();
+        finish();
+    }
+
+    private class JoinTask extends RpcTask<String, Void, FlareStatus> 
+    {
+        private int errId;
+
         @Override
-        protected JSONObject executeCall(String ... flareNames) throws Exception
+        protected FlareStatus executeCall(String ... flareNames)
+            throws Exception
         {
             assert flareNames.length == 1;
             String flareName = flareNames[0];
 
-            if (needJoin) {
-                try {
-                    participantNumber = rpcCoordinator.joinFlare(flareName);
-                } catch (Exception ex) {
-                    return null;
-                }
-                needJoin = false;
+            try {
+                return runCall(rpcCoordinator.joinFlare(flareName));
+            } catch (RpcException ex) {
+                // the coordinator has already retried whatever was worth
+                // retrying
+                errId = ex.getErrorId();
+                return null;
             }
-            
-            return rpcCoordinator.getFlare(flareName);
         }
 
         @Override
-        protected void onPostExecute(JSONObject jsonObj)
+        protected void onPostExecute(FlareStatus status)
         {
-            try {
-                handleResult(jsonObj);
-            } catch (JSONException ex) {
-                Log.wtf(LOGTAG, "JSON parse failed", ex);
-            }
-        }
-        
-        private void handleResult(JSONObject jsonObj) throws JSONException
-        {
-            if (jsonObj == null) {
-                Toast toast = Toast.makeText(
-                    WaitFlare.this, R.string.invalid_flare,
-                    Toast.LENGTH_LONG);
-                toast.show();
-                finish();
+            joinTask = null;
+            if (isFinishing()) {
                 return;
             }
-
-            int quorumSize =
-                jsonObj.getInt(FlareTimer.QUORUM_SIZE);
-            quorumText.setText(Integer.toString(quorumSize));
-            int joinCount =
-                jsonObj.getInt(FlareTimer.JOIN_COUNT);
-            joinedText.setText(Integer.toString(joinCount));
-            
-            long countdownStartTime =
-                jsonObj.getLong(FlareTimer.COUNTDOWN_START_TIME);
-            if (countdownStartTime == 0) {
-                scheduleNextTick();
+            if (status == null) {
+                if ((errId == R.string.invalid_flare)
+                    || (errId == R.string.need_upgrade))
+                {
+                    giveUp(errId);
+                    return;
+                }
+                // most likely a network hiccup; keep trying quietly,
+                // as long as the user is willing to wait
+                Log.i(LOGTAG, "Join failed; retrying in "
+                    + joinRetryMillis + " ms");
+                handler.postDelayed(joinRetry, joinRetryMillis);
+                joinRetryMillis =
+                    Math.min(joinRetryMillis * 2, MAX_JOIN_RETRY_MILLIS);
                 return;
             }
-
-            Intent i = new Intent(WaitFlare.this, FlareTimer.class);
-            i.putExtra(
-                FlareTimer.REPEAT_DECI_SECONDS,
-                jsonObj.getInt(FlareTimer.REPEAT_DECI_SECONDS));
-            i.putExtra(
-                FlareTimer.STAGGER_DECI_SECONDS,
-                jsonObj.getInt(FlareTimer.STAGGER_DECI_SECONDS));
-            i.putExtra(
-                FlareTimer.COUNTDOWN_SECONDS,
-                jsonObj.getInt(FlareTimer.COUNTDOWN_SECONDS));
-            i.putExtra(
-                FlareTimer.COUNTDOWN_START_TIME,
-                countdownStartTime);
-            i.putExtra(
-                FlareTimer.PARTICIPANT_NUMBER,
-                participantNumber);
-            i.putExtra(
-                FlareTimer.FLARE_NAME,
-                flareName);
-            startActivity(i);
-            finish();
+            joined = true;
+            service.watchFlare(flareName, status.participantNumber, status);
+            if (!suspended) {
+                service.setWatchListener(watchListener);
+            }
         }
     }
 }
@@ -0,0 +1,123 @@
+/**
+ * Copyright 2012 Lingering Socket Labs
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.lingeringsocket.mobflare;
+
+import java.io.*;
+
+/**
+ * Pull parser interface shared by the wire formats the coordinator can
+ * speak, so that result objects decode themselves the same way whichever
+ * format a response arrives in.  The model is JSON's: objects with named
+ * fields, arrays, strings, numbers, booleans and nulls.
+ */
+abstract class WireReader implements Closeable
+{
+    enum Token
+    {
+        BEGIN_ARRAY,
+        END_ARRAY,
+        BEGIN_OBJECT,
+        END_OBJECT,
+        NAME,
+        STRING,
+        NUMBER,
+        BOOLEAN,
+        NULL,
+        END_DOCUMENT
+    }
+
+    /**
+     * @return type of the next token, without consuming it
+     */
+    abstract Token peek() throws IOException;
+
+    /**
+     * @return whether the current array or object has more elements
+     */
+    boolean hasNext() throws IOException
+    {
+        Token t = peek();
+        return (t != Token.END_ARRAY) && (t != Token.END_OBJECT)
+            && (t != Token.END_DOCUMENT);
+    }
+
+    abstract void beginArray() throws IOException;
+
+    abstract void endArray() throws IOException;
+
+    abstract void beginObject() throws IOException;
+
+    abstract void endObject() throws IOException;
+
+    abstract String nextName() throws IOException;
+
+    /**
+     * Consumes a string, or a number in its string form.
+     */
+    abstract String nextString() throws IOException;
+
+    abstract boolean nextBoolean() throws IOException;
+
+    abstract void nextNull() throws IOException;
+
+    abstract double nextDouble() throws IOException;
+
+    abstract long nextLong() throws IOException;
+
+    abstract int nextInt() throws IOException;
+
+    /**
+     * Skips the next value, including any nested arrays or objects.
+     */
+    void skipValue() throws IOException
+    {
+        int depth = 0;
+        do {
+            switch (peek()) {
+            case BEGIN_ARRAY:
+                beginArray();
+                ++depth;
+                break;
+            case BEGIN_OBJECT:
+                beginObject();
+                ++depth;
+                break;
+            case END_ARRAY:
+                endArray();
+                --depth;
+                break;
+            case END_OBJECT:
+                endObject();
+                --depth;
+                break;
+            case END_DOCUMENT:
+                throw new IOException("Unexpected end of document");
+            case NAME:
+                nextName();
+                break;
+            case BOOLEAN:
+                nextBoolean();
+                break;
+            case NULL:
+                nextNull();
+                break;
+            default:
+                nextString();
+                break;
+            }
+        } while (depth > 0);
+    }
+}
@@ -0,0 +1,104 @@
+/**
+ * Copyright 2012 Lingering Socket Labs
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.lingeringsocket.mobflare;
+
+import java.util.*;
+
+/**
+ * Accumulates, per wire format, how many bytes coordinator responses
+ * took on the wire and once decompressed, and how much CPU time went
+ * into decoding them, so that the formats can be compared in the field.
+ */
+class WireStats
+{
+    /**
+     * Totals for one format.
+     */
+    static class Totals
+    {
+        long responseCount;
+        long wireBytes;
+        long bodyBytes;
+        long decodeNanos;
+
+        @Override
+        public String toString()
+        {
+            return responseCount + " responses, "
+                + wireBytes + " bytes on the wire, "
+                + bodyBytes + " bytes decoded, "
+                + (decodeNanos / 1000000) + " ms decoding";
+        }
+    }
+
+    private final Map<String, Totals> totals =
+        new TreeMap<String, Totals>();
+
+    /**
+     * Records one decoded response.
+     *
+     * @param format format name, e.g. "json+gzip"
+     * @param wireBytes body bytes as received
+     * @param bodyBytes body bytes after decompression
+     * @param decodeNanos CPU time spent decoding, or -1 if unknown
+     */
+    synchronized void record(
+        String format, long wireBytes, long bodyBytes, long decodeNanos)
+    {
+        Totals t = totals.get(format);
+        if (t == null) {
+            t = new Totals();
+            totals.put(format, t);
+        }
+        ++t.responseCount;
+        t.wireBytes += wireBytes;
+        t.bodyBytes += bodyBytes;
+        if (decodeNanos > 0) {
+            t.decodeNanos += decodeNanos;
+        }
+    }
+
+    /**
+     * @return copy of the totals for a format, or null if no responses
+     * have been received in it
+     */
+    synchronized Totals get(String format)
+    {
+        Totals t = totals.get(format);
+        if (t == null) {
+            return null;
+        }
+        Totals copy = new Totals();
+        copy.responseCount = t.responseCount;
+        copy.wireBytes = t.wireBytes;
+        copy.bodyBytes = t.bodyBytes;
+        copy.decodeNanos = t.decodeNanos;
+        return copy;
+    }
+
+    @Override
+    public synchronized String toString()
+    {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, Totals> entry : totals.entrySet()) {
+            if (sb.length() > 0) {
+                sb.append("; ");
+            }
+            sb.append(entry.getKey()).append(": ").append(entry.getValue());
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,97 @@
+/**
+ * Copyright 2012 Lingering Socket Labs
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package android.location;
+
+/**
+ * Stand-in for the framework's location fix (whose stub throws), so
+ * that code which weighs fixes can be tested on a plain JVM.
+ */
+public class Location
+{
+    private final String provider;
+
+    private long time;
+
+    private double latitude;
+
+    private double longitude;
+
+    private boolean hasAccuracy;
+
+    private float accuracy;
+
+    public Location(String provider)
+    {
+        this.provider = provider;
+    }
+
+    public String getProvider()
+    {
+        return provider;
+    }
+
+    public long getTime()
+    {
+        return time;
+    }
+
+    public void setTime(long time)
+    {
+        this.time = time;
+    }
+
+    public double getLatitude()
+    {
+        return latitude;
+    }
+
+    public void setLatitude(double latitude)
+    {
+        this.latitude = latitude;
+    }
+
+    public double getLongitude()
+    {
+        return longitude;
+    }
+
+    public void setLongitude(double longitude)
+    {
+        this.longitude = longitude;
+    }
+
+    public boolean hasAccuracy()
+    {
+        return hasAccuracy;
+    }
+
+    public float getAccuracy()
+    {
+        return accuracy;
+    }
+
+    public void setAccuracy(float accuracy)
+    {
+        this.accuracy = accuracy;
+        hasAccuracy = true;
+    }
+
+    public void removeAccuracy()
+    {
+        accuracy = 0;
+        hasAccuracy = false;
+    }
+}
@@ -0,0 +1,33 @@
+/**
+ * Copyright 2012 Lingering Socket Labs
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package android.os;
+
+/**
+ * Stand-in for the framework's debug hooks (whose stubs throw), so that
+ * code which measures itself can be tested on a plain JVM.
+ */
+public final class Debug
+{
+    private Debug()
+    {
+    }
+
+    public static long threadCpuTimeNanos()
+    {
+        // as on platforms without support
+        return -1;
+    }
+}
@@ -0,0 +1,51 @@
+/**
+ * Copyright 2012 Lingering Socket Labs
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package android.os;
+
+/**
+ * Stand-in for the framework's process controls (whose stubs throw), so
+ * that code which adjusts thread priorities can be tested on a plain
+ * JVM.  Priorities are accepted and ignored.
+ */
+public class Process
+{
+    public static final int THREAD_PRIORITY_DEFAULT = 0;
+
+    public static final int THREAD_PRIORITY_BACKGROUND = 10;
+
+    public static final int THREAD_PRIORITY_DISPLAY = -4;
+
+    public static final int THREAD_PRIORITY_URGENT_DISPLAY = -8;
+
+    public static final int myTid()
+    {
+        return 0;
+    }
+
+    public static final int getThreadPriority(int tid)
+    {
+        return THREAD_PRIORITY_DEFAULT;
+    }
+
+    public static final void setThreadPriority(int priority)
+    {
+    }
+
+    public static final long getElapsedCpuTime()
+    {
+        return 0;
+    }
+}
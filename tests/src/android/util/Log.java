@@ -0,0 +1,96 @@
+/**
+ * Copyright 2012 Lingering Socket Labs
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package android.util;
+
+/**
+ * Stand-in for the framework logger (whose stub throws), so that code
+ * which logs can be tested on a plain JVM.  Only warnings and errors
+ * are printed.
+ */
+public final class Log
+{
+    private Log()
+    {
+    }
+
+    public static int v(String tag, String msg)
+    {
+        return 0;
+    }
+
+    public static int v(String tag, String msg, Throwable tr)
+    {
+        return 0;
+    }
+
+    public static int d(String tag, String msg)
+    {
+        return 0;
+    }
+
+    public static int d(String tag, String msg, Throwable tr)
+    {
+        return 0;
+    }
+
+    public static int i(String tag, String msg)
+    {
+        return 0;
+    }
+
+    public static int i(String tag, String msg, Throwable tr)
+    {
+        return 0;
+    }
+
+    public static int w(String tag, String msg)
+    {
+        return print("W", tag, msg, null);
+    }
+
+    public static int w(String tag, String msg, Throwable tr)
+    {
+        return print("W", tag, msg, tr);
+    }
+
+    public static int w(String tag, Throwable tr)
+    {
+        return print("W", tag, "", tr);
+    }
+
+    public static int e(String tag, String msg)
+    {
+        return print("E", tag, msg, null);
+    }
+
+    public static int e(String tag, String msg, Throwable tr)
+    {
+        return print("E", tag, msg, tr);
+    }
+
+    public static boolean isLoggable(String tag, int level)
+    {
+        return false;
+    }
+
+    private static int print(
+        String level, String tag, String msg, Throwable tr)
+    {
+        System.err.println(level + "/" + tag + ": " + msg
+            + (tr == null ? "" : " (" + tr + ")"));
+        return 0;
+    }
+}
@@ -0,0 +1,119 @@
+/**
+ * Copyright 2012 Lingering Socket Labs
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.lingeringsocket.mobflare;
+
+import org.junit.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for {@link CircuitBreaker}.
+ */
+public class CircuitBreakerTest
+{
+    private FakeClock clock;
+
+    private CircuitBreaker breaker;
+
+    @Before
+    public void setUp()
+    {
+        clock = new FakeClock(1000, 0);
+        breaker = new CircuitBreaker(3, 5000, 20000, clock);
+    }
+
+    @Test
+    public void opensAfterConsecutiveFailures()
+    {
+        breaker.recordFailure();
+        breaker.recordFailure();
+        assertTrue(breaker.allowRequest());
+        breaker.recordFailure();
+        assertTrue(breaker.isOpen());
+        assertFalse(breaker.allowRequest());
+    }
+
+    @Test
+    public void successResetsFailureCount()
+    {
+        breaker.recordFailure();
+        breaker.recordFailure();
+        breaker.recordSuccess();
+        breaker.recordFailure();
+        breaker.recordFailure();
+        assertTrue(breaker.allowRequest());
+    }
+
+    @Test
+    public void letsOneProbeThroughAfterOpening()
+    {
+        openBreaker();
+        clock.advance(4999);
+        assertFalse(breaker.allowRequest());
+        clock.advance(1);
+        assertTrue(breaker.allowRequest());
+        assertFalse(breaker.allowRequest());
+        breaker.recordSuccess();
+        assertTrue(breaker.allowRequest());
+    }
+
+    @Test
+    public void failedProbeDoublesOpenTime()
+    {
+        openBreaker();
+        clock.advance(5000);
+        assertTrue(breaker.allowRequest());
+        breaker.recordFailure();
+        clock.advance(9999);
+        assertFalse(breaker.allowRequest());
+        clock.advance(1);
+        assertTrue(breaker.allowRequest());
+        breaker.recordFailure();
+        clock.advance(19999);
+        assertFalse(breaker.allowRequest());
+        clock.advance(1);
+        assertTrue(breaker.allowRequest());
+        breaker.recordFailure();
+        // capped
+        clock.advance(20000);
+        assertTrue(breaker.allowRequest());
+    }
+
+    @Test
+    public void tripForHonorsLongerDelay()
+    {
+        breaker.tripFor(30000);
+        clock.advance(29999);
+        assertFalse(breaker.allowRequest());
+        clock.advance(1);
+        assertTrue(breaker.allowRequest());
+    }
+
+    @Test
+    public void ignoresWallClock()
+    {
+        openBreaker();
+        clock.setCurrentTimeMillis(Long.MAX_VALUE / 2);
+        assertFalse(breaker.allowRequest());
+    }
+
+    private void openBreaker()
+    {
+        for (int i = 0; i < 3; ++i) {
+            breaker.recordFailure();
+        }
+    }
+}
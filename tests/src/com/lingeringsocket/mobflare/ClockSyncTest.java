@@ -0,0 +1,113 @@
+/**
+ * Copyright 2012 Lingering Socket Labs
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.lingeringsocket.mobflare;
+
+import org.junit.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for {@link ClockSync}, fed with exchanges against a simulated
+ * coordinator whose responses carry whole-second Date headers.
+ */
+public class ClockSyncTest
+{
+    // wall clock time at elapsedRealtime 0
+    private static final long BOOT_TIME = 1349049600000L;
+
+    private static final long ROUND_TRIP_MILLIS = 40;
+
+    private FakeClock clock;
+
+    private ClockSync clockSync;
+
+    @Before
+    public void setUp()
+    {
+        clock = new FakeClock(100000, BOOT_TIME + 100000);
+        clockSync = new ClockSync(clock);
+    }
+
+    @Test
+    public void keepsAccurateLocalClock()
+    {
+        exchange(0);
+        assertTrue(clockSync.getUncertaintyMillis() >= 500);
+        assertEquals(clock.currentTimeMillis(),
+            clockSync.currentServerTimeMillis());
+        assertEquals(0, clockSync.getOffsetMillis());
+        assertEquals(BOOT_TIME, clockSync.getElapsedRealtimeOffset());
+    }
+
+    @Test
+    public void keepsLocalClockWithinUncertainty()
+    {
+        // 300 ms off is within what a Date header can resolve
+        exchange(300);
+        assertEquals(0, clockSync.getOffsetMillis());
+    }
+
+    @Test
+    public void intersectsDateIntervals()
+    {
+        long skew = 10000 + 321;
+        for (int i = 0; i < 8; ++i) {
+            exchange(skew);
+            // come back at a different phase of the coordinator's second
+            clock.advance(1000 + 137);
+        }
+        long uncertainty = clockSync.getUncertaintyMillis();
+        // a single Date sample can't do better than half a second
+        assertTrue("uncertainty " + uncertainty, uncertainty < 150);
+        long trueTime = clock.currentTimeMillis() + skew;
+        long estimate = clockSync.currentServerTimeMillis();
+        assertTrue(
+            "off by " + (estimate - trueTime),
+            Math.abs(estimate - trueTime) <= uncertainty);
+        assertEquals(
+            BOOT_TIME + skew, clockSync.getElapsedRealtimeOffset(),
+            uncertainty);
+    }
+
+    @Test
+    public void ignoresLocalClockJumps()
+    {
+        long skew = 10000;
+        for (int i = 0; i < 4; ++i) {
+            exchange(skew);
+            clock.advance(1000 + 251);
+        }
+        long offset = clockSync.getElapsedRealtimeOffset();
+        clock.setCurrentTimeMillis(clock.currentTimeMillis() - 3600000);
+        assertEquals(offset, clockSync.getElapsedRealtimeOffset());
+    }
+
+    /**
+     * Simulates one request to a coordinator whose clock is ahead of
+     * the local wall clock by the given skew, and which stamps its
+     * response halfway through the round trip.
+     */
+    private void exchange(long skewMillis)
+    {
+        long requestTime = clock.elapsedRealtime();
+        clock.advance(ROUND_TRIP_MILLIS / 2);
+        long serverTime = clock.currentTimeMillis() + skewMillis;
+        clock.advance(ROUND_TRIP_MILLIS / 2);
+        clockSync.addSample(
+            requestTime, clock.elapsedRealtime(),
+            serverTime - (serverTime % 1000), 1000);
+    }
+}
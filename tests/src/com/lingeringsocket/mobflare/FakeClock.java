@@ -0,0 +1,73 @@
+/**
+ * Copyright 2012 Lingering Socket Labs
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.lingeringsocket.mobflare;
+
+/**
+ * Clock whose time only moves when told to.  Waiting on it advances it
+ * instead of blocking, so retry delays cost nothing.
+ */
+class FakeClock extends Clock
+{
+    private long elapsedRealtime;
+
+    private long currentTimeMillis;
+
+    /**
+     * @param elapsedRealtime initial time since boot
+     * @param currentTimeMillis initial wall clock time
+     */
+    FakeClock(long elapsedRealtime, long currentTimeMillis)
+    {
+        this.elapsedRealtime = elapsedRealtime;
+        this.currentTimeMillis = currentTimeMillis;
+    }
+
+    @Override
+    synchronized long elapsedRealtime()
+    {
+        return elapsedRealtime;
+    }
+
+    @Override
+    synchronized long currentTimeMillis()
+    {
+        return currentTimeMillis;
+    }
+
+    @Override
+    void await(Object monitor, long millis) throws InterruptedException
+    {
+        advance(millis);
+    }
+
+    /**
+     * Lets time pass on both clocks.
+     */
+    synchronized void advance(long millis)
+    {
+        elapsedRealtime += millis;
+        currentTimeMillis += millis;
+    }
+
+    /**
+     * Sets the wall clock without letting any time pass, as when the
+     * user or the network changes it.
+     */
+    synchronized void setCurrentTimeMillis(long currentTimeMillis)
+    {
+        this.currentTimeMillis = currentTimeMillis;
+    }
+}
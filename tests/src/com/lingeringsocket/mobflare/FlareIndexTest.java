@@ -0,0 +1,176 @@
+/**
+ * Copyright 2012 Lingering Socket Labs
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.lingeringsocket.mobflare;
+
+import java.util.*;
+
+import org.junit.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for {@link FlareIndex}.
+ */
+public class FlareIndexTest
+{
+    // degrees of latitude per km
+    private static final double KM = Math.toDegrees(1 / 6371.0088);
+
+    private FakeClock clock;
+
+    private FlareIndex index;
+
+    @Before
+    public void setUp()
+    {
+        clock = new FakeClock(1000, 1349049600000L);
+        index = new FlareIndex(clock);
+    }
+
+    private static FlareSummary newFlare(
+        String name, double latitude, double longitude)
+    {
+        FlareSummary flare = new FlareSummary(name);
+        flare.latitude = latitude;
+        flare.longitude = longitude;
+        return flare;
+    }
+
+    private static Set<String> getNames(List<FlareSummary> flares)
+    {
+        Set<String> names = new TreeSet<String>();
+        for (FlareSummary flare : flares) {
+            names.add(flare.name);
+        }
+        return names;
+    }
+
+    private static Set<String> setOf(String ... names)
+    {
+        return new TreeSet<String>(Arrays.asList(names));
+    }
+
+    @Test
+    public void answersSearchesInsideCoveredCircle()
+    {
+        index.put(40, -105, 50, Arrays.asList(
+            newFlare("a", 40, -105), newFlare("b", 40 + 20 * KM, -105)));
+        List<FlareSummary> found = index.find(40, -105, 10, 0);
+        assertEquals(setOf("a"), getNames(found));
+        assertEquals(0, found.get(0).distance, 0.001);
+        found = index.find(40 + 10 * KM, -105, 20, 0);
+        assertEquals(setOf("a", "b"), getNames(found));
+        for (FlareSummary flare : found) {
+            assertEquals(10, flare.distance, 0.01);
+        }
+        assertNull(index.find(40, -105, 51, 0));
+        assertNull(index.find(40 + 45 * KM, -105, 10, 0));
+        assertEquals(2, index.getHitCount());
+        assertEquals(2, index.getMissCount());
+    }
+
+    @Test
+    public void expiresSearchesAfterTtl()
+    {
+        index.put(40, -105, 50, Arrays.asList(newFlare("a", 40, -105)));
+        clock.advance(FlareIndex.TTL_MILLIS);
+        assertNotNull(index.find(40, -105, 10, 0));
+        clock.advance(1);
+        assertNull(index.find(40, -105, 10, 0));
+        assertEquals(0, index.size());
+    }
+
+    @Test
+    public void dropsFlaresSupersededByNewerSearch()
+    {
+        index.put(40, -105, 50, Arrays.asList(
+            newFlare("gone", 40, -105), newFlare("far", 40 + 20 * KM, -105)));
+        index.put(40, -105, 10, Arrays.asList(
+            newFlare("new", 40 + 5 * KM, -105)));
+        assertEquals(2, index.size());
+        assertEquals(
+            setOf("far", "new"), getNames(index.find(40, -105, 30, 0)));
+    }
+
+    @Test
+    public void ignoresResultsItCannotReuse()
+    {
+        index.put(40, -105, FlareIndex.MAX_RADIUS_KM + 1,
+            Arrays.asList(newFlare("a", 40, -105)));
+        assertNull(index.find(40, -105, 10, 0));
+        List<FlareSummary> flares = new ArrayList<FlareSummary>();
+        for (int i = 0; i <= FlareIndex.MAX_FLARES; ++i) {
+            flares.add(newFlare("f" + i, 40, -105));
+        }
+        index.put(40, -105, 10, flares);
+        assertNull(index.find(40, -105, 10, 0));
+        index.put(40, -105, 10, Arrays.asList(new FlareSummary("nowhere")));
+        assertNull(index.find(40, -105, 10, 0));
+        assertEquals(0, index.size());
+    }
+
+    @Test
+    public void startsOverRatherThanExceedMaxFlares()
+    {
+        List<FlareSummary> first = new ArrayList<FlareSummary>();
+        for (int i = 0; i < FlareIndex.MAX_FLARES - 100; ++i) {
+            first.add(newFlare("a" + i, 40, -105));
+        }
+        index.put(40, -105, 10, first);
+        List<FlareSummary> second = new ArrayList<FlareSummary>();
+        for (int i = 0; i < 200; ++i) {
+            second.add(newFlare("b" + i, 50, 10));
+        }
+        index.put(50, 10, 10, second);
+        assertEquals(200, index.size());
+        assertNull(index.find(40, -105, 10, 0));
+        assertEquals(200, index.find(50, 10, 10, 0).size());
+    }
+
+    @Test
+    public void keepsOnlyRecentSearches()
+    {
+        for (int i = 0; i <= FlareIndex.MAX_COVERAGES; ++i) {
+            index.put(i, 0, 10, Arrays.asList(newFlare("f" + i, i, 0)));
+        }
+        assertEquals(FlareIndex.MAX_COVERAGES, index.size());
+        assertNull(index.find(0, 0, 10, 0));
+        for (int i = 1; i <= FlareIndex.MAX_COVERAGES; ++i) {
+            assertEquals(
+                setOf("f" + i), getNames(index.find(i, 0, 10, 0)));
+        }
+    }
+
+    @Test
+    public void wrapsLongitudeAt180()
+    {
+        // enough flares elsewhere that a search near the antimeridian
+        // looks in its own cells rather than in all of them
+        List<FlareSummary> filler = new ArrayList<FlareSummary>();
+        for (int i = 0; i < 6; ++i) {
+            filler.add(newFlare("x" + i, 10.05, 10.05 + 0.1 * i));
+        }
+        index.put(10.05, 10.3, 100, filler);
+        index.put(0, 179.95, 30, Arrays.asList(
+            newFlare("east", 0.01, 179.99), newFlare("west", 0.01, -179.99)));
+        assertEquals(
+            setOf("east", "west"),
+            getNames(index.find(0, -179.98, 5, 0)));
+        assertEquals(
+            setOf("east", "west"),
+            getNames(index.find(0, 179.98, 5, 0)));
+    }
+}
@@ -0,0 +1,174 @@
+/**
+ * Copyright 2012 Lingering Socket Labs
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.lingeringsocket.mobflare;
+
+import java.io.*;
+import java.util.*;
+
+import org.junit.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for {@link FlareListSync}.
+ */
+public class FlareListSyncTest
+{
+    private FlareListSync sync;
+
+    @Before
+    public void setUp()
+    {
+        sync = new FlareListSync();
+    }
+
+    private static FlareListSync.Changes read(String json)
+        throws IOException
+    {
+        JsonStreamReader reader = new JsonStreamReader(new StringReader(json));
+        try {
+            return FlareListSync.Changes.read(reader);
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static String flare(String name, double km)
+    {
+        return "{\"name\":\"" + name + "\",\"km\":" + km + "}";
+    }
+
+    private static List<String> getNames(List<FlareSummary> flares)
+    {
+        List<String> names = new ArrayList<String>();
+        for (FlareSummary flare : flares) {
+            names.add(flare.name);
+        }
+        return names;
+    }
+
+    @Test
+    public void readsBareArrayAsCompleteList() throws Exception
+    {
+        FlareListSync.Changes changes =
+            read("[" + flare("a", 1) + "," + flare("b", 2) + "]");
+        assertTrue(changes.complete);
+        assertNull(changes.token);
+        assertEquals(Arrays.asList("a", "b"), getNames(changes.flares));
+        assertEquals(2.0, changes.flares.get(1).distance, 0);
+        assertEquals(2, changes.size());
+    }
+
+    @Test
+    public void readsFlaresFieldAsCompleteList() throws Exception
+    {
+        FlareListSync.Changes changes = read(
+            "{\"token\":\"t1\",\"flares\":[" + flare("a", 1) + "]}");
+        assertTrue(changes.complete);
+        assertEquals("t1", changes.token);
+        assertEquals(Arrays.asList("a"), getNames(changes.flares));
+        assertTrue(changes.removed.isEmpty());
+    }
+
+    @Test
+    public void readsDelta() throws Exception
+    {
+        FlareListSync.Changes changes = read(
+            "{\"added\":[" + flare("c", 3) + "],"
+            + "\"updated\":[" + flare("a", 1.5) + "],"
+            + "\"removed\":[\"b\"],\"token\":\"t2\"}");
+        assertFalse(changes.complete);
+        assertEquals("t2", changes.token);
+        assertEquals(Arrays.asList("c", "a"), getNames(changes.flares));
+        assertEquals(Arrays.asList("b"), changes.removed);
+        assertEquals(3, changes.size());
+    }
+
+    @Test
+    public void skipsNullsAndUnknownFields() throws Exception
+    {
+        FlareListSync.Changes changes = read(
+            "{\"token\":null,\"flares\":null,\"removed\":null,"
+            + "\"added\":[{\"name\":\"a\",\"km\":1,\"color\":\"red\","
+            + "\"latitude\":null}],"
+            + "\"future\":{\"nested\":[1,{\"x\":true}]}}");
+        assertFalse(changes.complete);
+        assertNull(changes.token);
+        assertEquals(Arrays.asList("a"), getNames(changes.flares));
+        assertTrue(Double.isNaN(changes.flares.get(0).latitude));
+        assertTrue(changes.removed.isEmpty());
+    }
+
+    @Test
+    public void rejectsFlareWithoutDistance() throws Exception
+    {
+        try {
+            read("{\"added\":[{\"name\":\"a\"}]}");
+            fail("expected failure");
+        } catch (IOException ex) {
+            assertEquals("Flare a is missing km", ex.getMessage());
+        }
+    }
+
+    @Test
+    public void completeListReplacesEverything() throws Exception
+    {
+        sync.apply(read(
+            "{\"token\":\"t1\",\"flares\":["
+            + flare("a", 1) + "," + flare("b", 2) + "]}"));
+        sync.apply(read(
+            "{\"token\":\"t2\",\"flares\":[" + flare("c", 3) + "]}"));
+        assertEquals(Arrays.asList("c"), getNames(sync.getAll()));
+        assertEquals("t2", sync.getToken());
+    }
+
+    @Test
+    public void deltaMergesIntoList() throws Exception
+    {
+        sync.apply(read(
+            "{\"token\":\"t1\",\"flares\":["
+            + flare("a", 1) + "," + flare("b", 2) + "]}"));
+        sync.apply(read(
+            "{\"token\":\"t2\",\"added\":[" + flare("c", 0.5) + "],"
+            + "\"updated\":[" + flare("a", 3) + "],"
+            + "\"removed\":[\"b\",\"unknown\"]}"));
+        List<FlareSummary> all = sync.getAll();
+        // an update keeps the flare's place in arrival order
+        assertEquals(Arrays.asList("a", "c"), getNames(all));
+        assertEquals(3.0, all.get(0).distance, 0);
+        assertEquals(Arrays.asList("c", "a"), getNames(sync.rank(0)));
+        assertEquals("t2", sync.getToken());
+    }
+
+    @Test
+    public void missingTokenForcesFullFetch() throws Exception
+    {
+        assertNull(sync.getToken());
+        sync.apply(read("[" + flare("a", 1) + "]"));
+        assertNull(sync.getToken());
+        sync.apply(read(
+            "{\"token\":\"t1\",\"added\":[" + flare("b", 2) + "]}"));
+        assertEquals("t1", sync.getToken());
+        sync.apply(read("{\"removed\":[\"a\"]}"));
+        assertNull(sync.getToken());
+        assertEquals(Arrays.asList("b"), getNames(sync.getAll()));
+        sync.apply(read(
+            "{\"token\":\"t2\",\"added\":[" + flare("c", 3) + "]}"));
+        sync.reset();
+        assertNull(sync.getToken());
+        assertEquals(Arrays.asList("b", "c"), getNames(sync.getAll()));
+    }
+}
@@ -0,0 +1,274 @@
+/**
+ * Copyright 2012 Lingering Socket Labs
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.lingeringsocket.mobflare;
+
+import java.io.*;
+import java.util.*;
+
+import org.junit.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for {@link FlarePrefetcher}.  Fetches are stand-in calls which
+ * block until the test releases them, so that the prefetcher's queue
+ * can be observed mid-flight.
+ */
+public class FlarePrefetcherTest
+{
+    private static final long TIMEOUT_MILLIS = 5000;
+
+    /**
+     * A prefetch which waits to be told how it turns out.
+     */
+    private static class HeldCall extends RpcCall<FlareStatus>
+    {
+        private boolean released;
+
+        private FlareStatus status;
+
+        HeldCall(String flareName)
+        {
+            super("prefetch " + flareName);
+        }
+
+        synchronized void release(FlareStatus status)
+        {
+            this.status = status;
+            released = true;
+            notifyAll();
+        }
+
+        @Override
+        protected synchronized FlareStatus perform() throws Exception
+        {
+            // cancel() wakes us too
+            while (!released && !isCancelled()) {
+                wait();
+            }
+            if (isCancelled()) {
+                throw new IOException("Aborted");
+            }
+            if (status == null) {
+                throw new IOException("Coordinator unreachable");
+            }
+            return status;
+        }
+    }
+
+    // calls started but not yet picked up by the test
+    private final Map<String, HeldCall> calls =
+        new HashMap<String, HeldCall>();
+
+    // every flare fetched, in order
+    private final List<String> called = new ArrayList<String>();
+
+    private FakeClock clock;
+
+    private int budget;
+
+    private FlarePrefetcher prefetcher;
+
+    @Before
+    public void setUp()
+    {
+        clock = new FakeClock(1000, 1349049600000L);
+        budget = 8;
+        RpcCoordinator rpcCoordinator = new RpcCoordinator(
+            "http://127.0.0.1:1", clock, new RpcCoordinator.Policies())
+            {
+                @Override
+                RpcCall<FlareStatus> prefetchFlare(String flareName)
+                {
+                    HeldCall call = new HeldCall(flareName);
+                    synchronized (calls) {
+                        calls.put(flareName, call);
+                        called.add(flareName);
+                        calls.notifyAll();
+                    }
+                    return call;
+                }
+            };
+        prefetcher = new FlarePrefetcher(rpcCoordinator, clock)
+            {
+                @Override
+                int getBudget()
+                {
+                    return budget;
+                }
+            };
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        prefetcher.cancel();
+        awaitIdle();
+    }
+
+    private static List<FlareSummary> list(String ... names)
+    {
+        List<FlareSummary> flares = new ArrayList<FlareSummary>();
+        for (String name : names) {
+            flares.add(new FlareSummary(name));
+        }
+        return flares;
+    }
+
+    private static FlareStatus newStatus(int joinCount)
+    {
+        FlareStatus status = new FlareStatus();
+        status.quorumSize = 5;
+        status.joinCount = joinCount;
+        return status;
+    }
+
+    /**
+     * Waits for a fetch to start.
+     *
+     * @return the call for it, which only this returns
+     */
+    private HeldCall awaitCall(String flareName) throws Exception
+    {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        synchronized (calls) {
+            while (!calls.containsKey(flareName)) {
+                long remaining = deadline - System.currentTimeMillis();
+                assertTrue("no fetch of " + flareName, remaining > 0);
+                calls.wait(remaining);
+            }
+            return calls.remove(flareName);
+        }
+    }
+
+    private List<String> getCalled()
+    {
+        synchronized (calls) {
+            return new ArrayList<String>(called);
+        }
+    }
+
+    private void awaitIdle() throws Exception
+    {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (!prefetcher.isIdle()) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    public void fetchesWithinBudgetTwoAtATime() throws Exception
+    {
+        budget = 3;
+        prefetcher.prefetch(list("a", "b", "c", "d", "e"));
+        HeldCall a = awaitCall("a");
+        HeldCall b = awaitCall("b");
+        Thread.sleep(50);
+        assertEquals(Arrays.asList("a", "b"), getCalled());
+        b.release(newStatus(1));
+        awaitCall("c").release(newStatus(2));
+        a.release(newStatus(3));
+        awaitIdle();
+        assertEquals(Arrays.asList("a", "b", "c"), getCalled());
+        assertEquals(3, prefetcher.get("a").joinCount);
+        assertEquals(2, prefetcher.get("c").joinCount);
+        assertNull(prefetcher.get("d"));
+        assertEquals(
+            "3 fetched, 2 of 3 lookups hit (66%)", prefetcher.toString());
+    }
+
+    @Test
+    public void fetchesNothingWithoutBudget() throws Exception
+    {
+        budget = 0;
+        prefetcher.prefetch(list("a", "b"));
+        assertTrue(prefetcher.isIdle());
+        assertTrue(getCalled().isEmpty());
+    }
+
+    @Test
+    public void newListReplacesQueue() throws Exception
+    {
+        prefetcher.prefetch(list("a", "b", "c", "d"));
+        HeldCall a = awaitCall("a");
+        HeldCall b = awaitCall("b");
+        prefetcher.prefetch(list("b", "e"));
+        a.release(newStatus(1));
+        awaitCall("e").release(newStatus(1));
+        b.release(newStatus(1));
+        awaitIdle();
+        assertEquals(Arrays.asList("a", "b", "e"), getCalled());
+    }
+
+    @Test
+    public void servesCopiesUntilTtl() throws Exception
+    {
+        prefetcher.prefetch(list("a"));
+        FlareStatus status = newStatus(2);
+        awaitCall("a").release(status);
+        awaitIdle();
+        FlareStatus copy = prefetcher.get("a");
+        assertNotSame(status, copy);
+        assertEquals(2, copy.joinCount);
+
+        clock.advance(FlarePrefetcher.TTL_MILLIS);
+        prefetcher.prefetch(list("a"));
+        assertTrue(prefetcher.isIdle());
+        assertNotNull(prefetcher.get("a"));
+
+        clock.advance(1);
+        assertNull(prefetcher.get("a"));
+        prefetcher.prefetch(list("a"));
+        awaitCall("a").release(newStatus(3));
+        awaitIdle();
+        assertEquals(3, prefetcher.get("a").joinCount);
+    }
+
+    @Test
+    public void failedFetchForgetsOldStatus() throws Exception
+    {
+        prefetcher.prefetch(list("a"));
+        awaitCall("a").release(newStatus(2));
+        awaitIdle();
+        clock.advance(FlarePrefetcher.TTL_MILLIS + 1);
+        prefetcher.prefetch(list("a"));
+        awaitCall("a").release(null);
+        awaitIdle();
+        assertNull(prefetcher.get("a"));
+        assertEquals(
+            "2 fetched, 0 of 1 lookups hit (0%)", prefetcher.toString());
+    }
+
+    @Test
+    public void cancelDropsQueueAndAbortsFetches() throws Exception
+    {
+        prefetcher.prefetch(list("a", "b", "c"));
+        awaitCall("a");
+        awaitCall("b");
+        prefetcher.cancel();
+        awaitIdle();
+        assertEquals(Arrays.asList("a", "b"), getCalled());
+        assertNull(prefetcher.get("a"));
+        assertEquals(
+            "0 fetched, 0 of 1 lookups hit (0%)", prefetcher.toString());
+
+        // nothing is left in flight to hold up the next list
+        prefetcher.prefetch(list("a"));
+        awaitCall("a");
+        assertEquals(Arrays.asList("a", "b", "a"), getCalled());
+    }
+}
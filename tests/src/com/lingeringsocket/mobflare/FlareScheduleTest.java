@@ -0,0 +1,139 @@
+/**
+ * Copyright 2012 Lingering Socket Labs
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.lingeringsocket.mobflare;
+
+import org.junit.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests that a flare's schedule, once converted to elapsedRealtime the
+ * way {@link FlareService} does it, doesn't move when the wall clock
+ * jumps.
+ */
+public class FlareScheduleTest
+{
+    // wall clock time at elapsedRealtime 0
+    private static final long BOOT_TIME = 1349049600000L;
+
+    // coordinator clock minus the local wall clock
+    private static final long SKEW_MILLIS = 2000;
+
+    private static final int PARTICIPANT = 2;
+
+    private FakeClock clock;
+
+    private ClockSync clockSync;
+
+    private FlareStatus status;
+
+    @Before
+    public void setUp()
+    {
+        clock = new FakeClock(100000, BOOT_TIME + 100000);
+        clockSync = new ClockSync(clock);
+        for (int i = 0; i < 4; ++i) {
+            // precise coordinator timestamps, 20 ms round trips
+            long requestTime = clock.elapsedRealtime();
+            clock.advance(10);
+            long serverTime = clock.currentTimeMillis() + SKEW_MILLIS;
+            clock.advance(10);
+            clockSync.addSample(
+                requestTime, clock.elapsedRealtime(), serverTime, 1);
+            clock.advance(5000);
+        }
+        status = new FlareStatus();
+        status.quorumSize = 3;
+        status.joinCount = 3;
+        status.countdownStartTime = clock.currentTimeMillis() + SKEW_MILLIS;
+        status.countdownSeconds = 10;
+        status.repeatDeciSeconds = 20;
+        status.staggerDeciSeconds = 5;
+    }
+
+    @Test
+    public void convertsToElapsedRealtime()
+    {
+        FlareSchedule schedule = convert();
+        long countdownEnd = clock.elapsedRealtime() + 10000
+            + (PARTICIPANT * 500);
+        assertEquals(countdownEnd, schedule.getCountdownEnd(0), 1);
+        assertEquals(
+            countdownEnd - FlareSchedule.FLASH_LEAD_MILLIS,
+            schedule.getFlashTime(0), 1);
+        assertEquals(
+            countdownEnd - FlareSchedule.FLASH_LEAD_MILLIS + 2000,
+            schedule.getFlashTime(1), 1);
+    }
+
+    @Test
+    public void wallClockJumpsDontMoveFlashes()
+    {
+        FlareSchedule schedule = convert();
+        long [] flashTimes = getFlashTimes(schedule);
+        long countdownEnd =
+            schedule.getCountdownEnd(clock.elapsedRealtime());
+
+        long [] jumps = { 3600000, -7200000, 90000, -1000 };
+        for (long jump : jumps) {
+            clock.setCurrentTimeMillis(clock.currentTimeMillis() + jump);
+            // as if the countdown were restarted (e.g. by the service
+            // being recreated) after the jump
+            FlareSchedule converted = convert();
+            assertArrayEquals(flashTimes, getFlashTimes(converted));
+            assertEquals(
+                countdownEnd,
+                converted.getCountdownEnd(clock.elapsedRealtime()));
+            assertArrayEquals(flashTimes, getFlashTimes(schedule));
+            assertEquals(
+                countdownEnd,
+                schedule.getCountdownEnd(clock.elapsedRealtime()));
+        }
+    }
+
+    @Test
+    public void countdownFollowsElapsedRealtimeOnly()
+    {
+        FlareSchedule schedule = convert();
+        long firstEnd = schedule.getCountdownEnd(clock.elapsedRealtime());
+        clock.advance(firstEnd - clock.elapsedRealtime() + 1);
+        long secondEnd = schedule.getCountdownEnd(clock.elapsedRealtime());
+        assertEquals(firstEnd + 2000, secondEnd);
+
+        // a wall clock jump back doesn't bring the first flash back
+        clock.setCurrentTimeMillis(clock.currentTimeMillis() - 60000);
+        assertEquals(
+            secondEnd, schedule.getCountdownEnd(clock.elapsedRealtime()));
+        assertEquals(
+            secondEnd - FlareSchedule.FLASH_LEAD_MILLIS,
+            schedule.getNextFlashTime(clock.elapsedRealtime()));
+    }
+
+    private FlareSchedule convert()
+    {
+        return FlareSchedule.fromStatus(status, PARTICIPANT).shift(
+            clockSync.getElapsedRealtimeOffset());
+    }
+
+    private static long [] getFlashTimes(FlareSchedule schedule)
+    {
+        long [] times = new long[4];
+        for (int i = 0; i < times.length; ++i) {
+            times[i] = schedule.getFlashTime(i);
+        }
+        return times;
+    }
+}
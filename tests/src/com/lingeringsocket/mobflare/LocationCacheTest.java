@@ -0,0 +1,185 @@
+/**
+ * Copyright 2012 Lingering Socket Labs
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.lingeringsocket.mobflare;
+
+import java.util.*;
+
+import android.location.*;
+
+import org.junit.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for {@link LocationCache}.
+ */
+public class LocationCacheTest
+{
+    private static final long NOW = 1349049600000L;
+
+    private FakeClock clock;
+
+    private Map<String, Location> lastKnown;
+
+    private LocationCache cache;
+
+    @Before
+    public void setUp()
+    {
+        clock = new FakeClock(1000, NOW);
+        lastKnown = new LinkedHashMap<String, Location>();
+        LocationManager locationManager = new LocationManager()
+            {
+                @Override
+                public List<String> getProviders(boolean enabledOnly)
+                {
+                    return new ArrayList<String>(lastKnown.keySet());
+                }
+
+                @Override
+                public Location getLastKnownLocation(String provider)
+                {
+                    return lastKnown.get(provider);
+                }
+            };
+        cache = new LocationCache(locationManager, clock);
+    }
+
+    private static Location newFix(long time, float accuracy)
+    {
+        Location fix = new Location("gps");
+        fix.setTime(time);
+        fix.setAccuracy(accuracy);
+        return fix;
+    }
+
+    @Test
+    public void anyFixBeatsNone()
+    {
+        Location fix = new Location("network");
+        fix.setTime(NOW - 3600000);
+        assertTrue(LocationCache.isBetter(fix, null));
+    }
+
+    @Test
+    public void accuracyWinsWithinTwoMinutes()
+    {
+        Location current = newFix(NOW, 50);
+        assertTrue(
+            LocationCache.isBetter(newFix(NOW - 60000, 20), current));
+        assertFalse(
+            LocationCache.isBetter(newFix(NOW + 60000, 80), current));
+        assertTrue(
+            LocationCache.isBetter(newFix(NOW + 120000, 20), current));
+        assertFalse(
+            LocationCache.isBetter(newFix(NOW + 120000, 80), current));
+    }
+
+    @Test
+    public void newerWinsTiesOnAccuracy()
+    {
+        Location current = newFix(NOW, 50);
+        assertTrue(LocationCache.isBetter(newFix(NOW + 1, 50), current));
+        assertFalse(LocationCache.isBetter(newFix(NOW, 50), current));
+        assertFalse(LocationCache.isBetter(newFix(NOW - 1, 50), current));
+    }
+
+    @Test
+    public void fixWithoutAccuracyLosesToOneWith()
+    {
+        Location current = newFix(NOW, 5000);
+        Location fix = new Location("network");
+        fix.setTime(NOW + 60000);
+        assertFalse(LocationCache.isBetter(fix, current));
+        assertTrue(LocationCache.isBetter(current, fix));
+    }
+
+    @Test
+    public void significantlyNewerWinsRegardless()
+    {
+        Location current = newFix(NOW, 5);
+        assertTrue(
+            LocationCache.isBetter(newFix(NOW + 120001, 500), current));
+        Location vague = new Location("network");
+        vague.setTime(NOW + 120001);
+        assertTrue(LocationCache.isBetter(vague, current));
+        assertFalse(
+            LocationCache.isBetter(current, newFix(NOW + 120001, 500)));
+    }
+
+    @Test
+    public void policyWantsFreshAccurateFix()
+    {
+        LocationCache.Policy policy = LocationCache.CREATION;
+        assertTrue(policy.accepts(newFix(NOW - 120000, 100), NOW));
+        assertFalse(policy.accepts(newFix(NOW - 120001, 10), NOW));
+        assertFalse(policy.accepts(newFix(NOW, 100.5f), NOW));
+        Location vague = new Location("network");
+        vague.setTime(NOW);
+        assertFalse(policy.accepts(vague, NOW));
+        assertTrue(
+            LocationCache.LISTING.accepts(newFix(NOW - 120001, 500), NOW));
+    }
+
+    @Test
+    public void countsHitsAndMisses()
+    {
+        assertNull(cache.get(LocationCache.LISTING));
+        cache.put(newFix(NOW - 30000, 300));
+        assertNotNull(cache.get(LocationCache.LISTING));
+        assertNull(cache.get(LocationCache.CREATION));
+        clock.advance(10 * 60 * 1000);
+        assertNull(cache.get(LocationCache.LISTING));
+        assertEquals(1, cache.getHitCount());
+        assertEquals(3, cache.getMissCount());
+        assertEquals(
+            "1 hits, 3 misses; served fixes 30 s old on average, "
+            + "at most 30 s",
+            cache.toString());
+    }
+
+    @Test
+    public void keepsBetterFixAndTellsListeners()
+    {
+        final List<Location> heard = new ArrayList<Location>();
+        cache.addListener(new LocationCache.Listener()
+            {
+                public void onLocationChanged(Location fix)
+                {
+                    heard.add(fix);
+                }
+            });
+        Location good = newFix(NOW, 20);
+        cache.put(good);
+        cache.put(newFix(NOW + 1000, 200));
+        assertSame(good, cache.get(LocationCache.CREATION));
+        assertEquals(Collections.singletonList(good), heard);
+    }
+
+    @Test
+    public void missFallsBackToProvidersLastKnown()
+    {
+        cache.put(newFix(NOW - 60000, 400));
+        assertNull(cache.get(LocationCache.CREATION));
+        Location gps = newFix(NOW - 5000, 10);
+        lastKnown.put("network", newFix(NOW - 1000, 800));
+        lastKnown.put("gps", gps);
+        assertSame(gps, cache.get(LocationCache.CREATION));
+        assertSame(gps, cache.getLatest());
+        assertEquals(1, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+    }
+}
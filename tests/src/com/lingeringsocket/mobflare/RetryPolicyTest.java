@@ -0,0 +1,119 @@
+/**
+ * Copyright 2012 Lingering Socket Labs
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.lingeringsocket.mobflare;
+
+import org.apache.http.conn.*;
+
+import org.junit.*;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+
+/**
+ * Tests for {@link RetryPolicy}.
+ */
+public class RetryPolicyTest
+{
+    /**
+     * Jitter which always picks the top of the range.
+     */
+    private static class MaxRandom extends Random
+    {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public double nextDouble()
+        {
+            return 0.999999;
+        }
+    }
+
+    private final Random random = new MaxRandom();
+
+    @Test
+    public void backsOffExponentiallyUpToCeiling()
+    {
+        RetryPolicy policy = new RetryPolicy(10, 100, 500, 100000, true);
+        assertEquals(99, policy.computeDelay(1, 0, -1, random));
+        assertEquals(199, policy.computeDelay(2, 0, -1, random));
+        assertEquals(399, policy.computeDelay(3, 0, -1, random));
+        assertEquals(499, policy.computeDelay(4, 0, -1, random));
+        assertEquals(499, policy.computeDelay(9, 0, -1, random));
+    }
+
+    @Test
+    public void stopsAtMaxAttempts()
+    {
+        RetryPolicy policy = new RetryPolicy(3, 100, 500, 100000, true);
+        assertTrue(policy.computeDelay(2, 0, -1, random) >= 0);
+        assertEquals(-1, policy.computeDelay(3, 0, -1, random));
+    }
+
+    @Test
+    public void stopsAtBudget()
+    {
+        RetryPolicy policy = new RetryPolicy(10, 100, 500, 1000, true);
+        assertEquals(99, policy.computeDelay(1, 900, -1, random));
+        assertEquals(-1, policy.computeDelay(1, 950, -1, random));
+    }
+
+    @Test
+    public void honorsRetryAfterWithinBudget()
+    {
+        RetryPolicy policy = new RetryPolicy(3, 100, 500, 5000, true);
+        assertEquals(3000, policy.computeDelay(1, 0, 3000, random));
+        assertEquals(-1, policy.computeDelay(1, 0, 6000, random));
+    }
+
+    @Test
+    public void retriesNonIdempotentOnlyWhenUnsent()
+    {
+        RetryPolicy join = new RetryPolicy(3, 100, 500, 5000, false);
+        assertTrue(join.isRetryable(new ConnectException()));
+        assertTrue(join.isRetryable(new ConnectTimeoutException()));
+        assertTrue(join.isRetryable(new UnknownHostException()));
+        assertFalse(join.isRetryable(new SocketTimeoutException()));
+        assertTrue(join.isRetryable(503));
+        assertFalse(join.isRetryable(502));
+
+        RetryPolicy get = new RetryPolicy(3, 100, 500, 5000, true);
+        assertTrue(get.isRetryable(new SocketTimeoutException()));
+        assertTrue(get.isRetryable(502));
+        assertFalse(get.isRetryable(500));
+        assertFalse(get.isRetryable(404));
+    }
+
+    @Test
+    public void parsesRetryAfter()
+    {
+        assertEquals(-1, RetryPolicy.parseRetryAfter(null, 0));
+        assertEquals(-1, RetryPolicy.parseRetryAfter("soon", 0));
+        assertEquals(-1, RetryPolicy.parseRetryAfter("-5", 0));
+        assertEquals(120000, RetryPolicy.parseRetryAfter(" 120 ", 0));
+        long now = 1349049600000L;
+        assertEquals(
+            30000,
+            RetryPolicy.parseRetryAfter(
+                "Mon, 01 Oct 2012 00:00:30 GMT", now));
+        assertEquals(
+            0,
+            RetryPolicy.parseRetryAfter(
+                "Mon, 01 Oct 2012 00:00:00 GMT", now + 1000));
+    }
+}
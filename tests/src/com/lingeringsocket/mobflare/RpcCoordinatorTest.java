@@ -0,0 +1,199 @@
+/**
+ * Copyright 2012 Lingering Socket Labs
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.lingeringsocket.mobflare;
+
+import org.junit.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for {@link RpcCoordinator}'s retries and circuit breaking,
+ * against a {@link StandInCoordinator}, with a fake clock so that
+ * backoff costs nothing.
+ */
+public class RpcCoordinatorTest
+{
+    private static final String STATUS =
+        "{\"quorumSize\":3,\"joinCount\":1,\"countdownStartTime\":0}";
+
+    private StandInCoordinator server;
+
+    private FakeClock clock;
+
+    private RpcCoordinator.Policies policies;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        server = new StandInCoordinator();
+        clock = new FakeClock(1000, 1349049600000L);
+        policies = new RpcCoordinator.Policies();
+    }
+
+    @After
+    public void tearDown()
+    {
+        server.stop();
+        // don't leak an interrupt into the next test
+        Thread.interrupted();
+    }
+
+    @Test
+    public void retriesUnavailableThenSucceeds() throws Exception
+    {
+        server.enqueue(503, "");
+        server.enqueue(200, STATUS);
+        FlareStatus status = newCoordinator().getFlare("a").execute();
+        assertEquals(1, status.joinCount);
+        assertEquals(2, server.getRequests().size());
+    }
+
+    @Test
+    public void waitsForRetryAfter() throws Exception
+    {
+        server.enqueue(429, "").header("Retry-After", "2");
+        server.enqueue(200, STATUS);
+        newCoordinator().getFlare("a").execute();
+        assertEquals(2, server.getRequests().size());
+        assertTrue(clock.elapsedRealtime() >= 3000);
+    }
+
+    @Test
+    public void givesUpAfterMaxAttempts() throws Exception
+    {
+        policies.status = new RetryPolicy(2, 100, 100, 10000, true);
+        for (int i = 0; i < 3; ++i) {
+            server.enqueue(503, "");
+        }
+        try {
+            newCoordinator().getFlare("a").execute();
+            fail("expected failure");
+        } catch (RpcException ex) {
+            // expected
+        }
+        assertEquals(2, server.getRequests().size());
+    }
+
+    @Test
+    public void openBreakerFailsFastUntilProbe() throws Exception
+    {
+        policies.status = new RetryPolicy(1, 0, 0, 0, true);
+        policies.breakerFailureThreshold = 2;
+        RpcCoordinator coordinator = newCoordinator();
+        server.enqueue(500, "");
+        server.enqueue(500, "");
+        for (int i = 0; i < 2; ++i) {
+            try {
+                coordinator.getFlare("a").execute();
+                fail("expected failure");
+            } catch (RpcException ex) {
+                // expected
+            }
+        }
+        try {
+            coordinator.getFlare("a").execute();
+            fail("expected fast failure");
+        } catch (RpcException ex) {
+            assertEquals(R.string.server_unavailable, ex.getErrorId());
+        }
+        assertEquals(2, server.getRequests().size());
+
+        clock.advance(policies.breakerMinOpenMillis);
+        server.enqueue(200, STATUS);
+        assertEquals(1, coordinator.getFlare("a").execute().joinCount);
+        assertEquals(3, server.getRequests().size());
+    }
+
+    @Test
+    public void interruptedPauseIsNotAFailure() throws Exception
+    {
+        policies.breakerFailureThreshold = 1;
+        clock = new FakeClock(1000, 1349049600000L)
+            {
+                @Override
+                void await(Object monitor, long millis)
+                    throws InterruptedException
+                {
+                    throw new InterruptedException();
+                }
+            };
+        RpcCoordinator coordinator = newCoordinator();
+        server.enqueue(429, "");
+        try {
+            coordinator.getFlare("a").execute();
+            fail("expected failure");
+        } catch (RpcException ex) {
+            // expected
+        }
+        assertTrue(Thread.interrupted());
+
+        // the breaker is still closed
+        server.enqueue(200, STATUS);
+        assertEquals(1, coordinator.getFlare("a").execute().joinCount);
+        assertEquals(2, server.getRequests().size());
+    }
+
+    @Test
+    public void failedPrefetchesDontOpenBreaker() throws Exception
+    {
+        policies.breakerFailureThreshold = 1;
+        RpcCoordinator coordinator = newCoordinator();
+        server.enqueue(503, "");
+        server.enqueue(500, "");
+        for (int i = 0; i < 2; ++i) {
+            try {
+                coordinator.prefetchFlare("a").execute();
+                fail("expected failure");
+            } catch (RpcException ex) {
+                // expected, without a retry
+            }
+        }
+        server.enqueue(200, STATUS);
+        assertEquals(1, coordinator.getFlare("a").execute().joinCount);
+        assertEquals(3, server.getRequests().size());
+    }
+
+    @Test
+    public void prefetchesWaitForClosedBreaker() throws Exception
+    {
+        policies.status = new RetryPolicy(1, 0, 0, 0, true);
+        policies.breakerFailureThreshold = 1;
+        RpcCoordinator coordinator = newCoordinator();
+        server.enqueue(500, "");
+        try {
+            coordinator.getFlare("a").execute();
+            fail("expected failure");
+        } catch (RpcException ex) {
+            // expected
+        }
+        clock.advance(policies.breakerMinOpenMillis);
+        try {
+            coordinator.prefetchFlare("a").execute();
+            fail("expected fast failure");
+        } catch (RpcException ex) {
+            assertEquals(R.string.server_unavailable, ex.getErrorId());
+        }
+        // the probe is still there for a real request
+        server.enqueue(200, STATUS);
+        assertEquals(1, coordinator.getFlare("a").execute().joinCount);
+        assertEquals(2, server.getRequests().size());
+    }
+
+    private RpcCoordinator newCoordinator()
+    {
+        return new RpcCoordinator(server.getUri(), clock, policies);
+    }
+}
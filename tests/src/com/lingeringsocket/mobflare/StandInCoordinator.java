@@ -0,0 +1,162 @@
+/**
+ * Copyright 2012 Lingering Socket Labs
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.lingeringsocket.mobflare;
+
+import com.sun.net.httpserver.*;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+
+/**
+ * Minimal coordinator on the loopback interface, which answers requests
+ * with scripted replies, in order, and records what it was asked.
+ */
+class StandInCoordinator
+{
+    /**
+     * A scripted reply.
+     */
+    static class Reply
+    {
+        final int status;
+
+        final String body;
+
+        final Map<String, String> headers = new HashMap<String, String>();
+
+        long delayMillis;
+
+        Reply(int status, String body)
+        {
+            this.status = status;
+            this.body = body;
+        }
+
+        /**
+         * Adds a response header.
+         */
+        Reply header(String name, String value)
+        {
+            headers.put(name, value);
+            return this;
+        }
+
+        /**
+         * Holds the request for a while before replying, as a long poll
+         * does.
+         */
+        Reply delay(long millis)
+        {
+            delayMillis = millis;
+            return this;
+        }
+    }
+
+    private final HttpServer server;
+
+    private final LinkedList<Reply> replies = new LinkedList<Reply>();
+
+    private final List<String> requests = new ArrayList<String>();
+
+    StandInCoordinator() throws IOException
+    {
+        server = HttpServer.create(
+            new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0), 0);
+        server.createContext("/", new HttpHandler()
+            {
+                public void handle(HttpExchange exchange) throws IOException
+                {
+                    respond(exchange);
+                }
+            });
+        server.setExecutor(null);
+        server.start();
+    }
+
+    /**
+     * @return base URI, as configured in the client's preferences
+     */
+    String getUri()
+    {
+        return "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    /**
+     * Queues a reply.  Requests arriving when none is queued get a 500.
+     */
+    synchronized Reply enqueue(int status, String body)
+    {
+        Reply reply = new Reply(status, body);
+        replies.add(reply);
+        return reply;
+    }
+
+    /**
+     * @return method and URI of each request received so far
+     */
+    synchronized List<String> getRequests()
+    {
+        return new ArrayList<String>(requests);
+    }
+
+    void stop()
+    {
+        server.stop(0);
+    }
+
+    private void respond(HttpExchange exchange) throws IOException
+    {
+        Reply reply;
+        synchronized (this) {
+            requests.add(
+                exchange.getRequestMethod() + " " + exchange.getRequestURI());
+            reply = replies.poll();
+        }
+        if (reply == null) {
+            reply = new Reply(500, "");
+        }
+        if (reply.delayMillis > 0) {
+            try {
+                Thread.sleep(reply.delayMillis);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        exchange.getRequestBody().close();
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        for (Map.Entry<String, String> header : reply.headers.entrySet()) {
+            exchange.getResponseHeaders().set(
+                header.getKey(), header.getValue());
+        }
+        byte [] body = reply.body.getBytes("UTF-8");
+        if (body.length == 0) {
+            // -1 has already finished the exchange; closing the response
+            // body as well would finish it twice, and the server then
+            // sometimes drops the kept-alive connection under the next
+            // request
+            exchange.sendResponseHeaders(reply.status, -1);
+            return;
+        }
+        exchange.sendResponseHeaders(reply.status, body.length);
+        OutputStream out = exchange.getResponseBody();
+        try {
+            out.write(body);
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,180 @@
+/**
+ * Copyright 2012 Lingering Socket Labs
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.lingeringsocket.mobflare;
+
+import org.junit.*;
+
+import static org.junit.Assert.*;
+
+import java.util.*;
+
+/**
+ * Tests for long-polling and joining flares against a
+ * {@link StandInCoordinator}.
+ */
+public class WatchFlareTest
+{
+    private static final String WAITING =
+        "{\"quorumSize\":3,\"joinCount\":1,\"countdownStartTime\":0}";
+
+    private static final String JOINED =
+        "{\"quorumSize\":3,\"joinCount\":2,\"countdownStartTime\":0}";
+
+    private static final long HOLD_MILLIS = 500;
+
+    private StandInCoordinator server;
+
+    private RpcCoordinator coordinator;
+
+    private FlareStatus known;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        server = new StandInCoordinator();
+        coordinator = new RpcCoordinator(
+            server.getUri(), new FakeClock(1000, System.currentTimeMillis()),
+            new RpcCoordinator.Policies());
+        known = new FlareStatus();
+        known.quorumSize = 3;
+        known.joinCount = 1;
+    }
+
+    @After
+    public void tearDown()
+    {
+        server.stop();
+    }
+
+    @Test
+    public void heldRequestReturnsChange() throws Exception
+    {
+        server.enqueue(200, JOINED).delay(HOLD_MILLIS);
+        long start = System.nanoTime();
+        FlareStatus status = coordinator.watchFlare("a", known, 25).execute();
+        long elapsedMillis = (System.nanoTime() - start) / 1000000;
+        assertEquals(2, status.joinCount);
+        assertTrue(elapsedMillis >= HOLD_MILLIS);
+        assertEquals(
+            Arrays.asList(
+                "GET /flare/a?joinCount=1&countdownStartTime=0"
+                + "&waitSeconds=25"),
+            server.getRequests());
+    }
+
+    @Test
+    public void goneFlareEndsWatch() throws Exception
+    {
+        server.enqueue(404, "");
+        assertNull(coordinator.watchFlare("a", known, 25).execute());
+    }
+
+    @Test
+    public void identicalWatchersShareOnePoll() throws Exception
+    {
+        server.enqueue(200, JOINED).delay(HOLD_MILLIS);
+        final FlareStatus [] results = new FlareStatus[2];
+        Thread [] threads = new Thread[2];
+        for (int i = 0; i < 2; ++i) {
+            final int index = i;
+            threads[i] = new Thread()
+                {
+                    @Override
+                    public void run()
+                    {
+                        try {
+                            results[index] = coordinator.watchFlare(
+                                "a", known, 25).execute();
+                        } catch (RpcException ex) {
+                            // leaves the result null
+                        }
+                    }
+                };
+            threads[i].start();
+            Thread.sleep(HOLD_MILLIS / 5);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(2, results[0].joinCount);
+        assertEquals(2, results[1].joinCount);
+        assertEquals(1, server.getRequests().size());
+    }
+
+    @Test
+    public void cancelAbortsHeldRequest() throws Exception
+    {
+        server.enqueue(200, JOINED).delay(HOLD_MILLIS * 4);
+        final RpcCall<FlareStatus> call =
+            coordinator.watchFlare("a", known, 25);
+        new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    try {
+                        Thread.sleep(HOLD_MILLIS / 5);
+                    } catch (InterruptedException ex) {
+                        return;
+                    }
+                    call.cancel();
+                }
+            }.start();
+        long start = System.nanoTime();
+        try {
+            call.execute();
+            fail("expected cancellation");
+        } catch (RpcException ex) {
+            // expected
+        }
+        long elapsedMillis = (System.nanoTime() - start) / 1000000;
+        assertTrue(elapsedMillis < HOLD_MILLIS * 4);
+    }
+
+    @Test
+    public void joinDistinguishesGoneFromFailed() throws Exception
+    {
+        server.enqueue(404, "");
+        try {
+            coordinator.joinFlare("a").execute();
+            fail("expected failure");
+        } catch (RpcException ex) {
+            assertEquals(R.string.invalid_flare, ex.getErrorId());
+        }
+        server.enqueue(500, "{\"error\":\"oops\"}");
+        try {
+            coordinator.joinFlare("a").execute();
+            fail("expected failure");
+        } catch (RpcException ex) {
+            assertEquals(R.string.server_error, ex.getErrorId());
+            assertEquals("Unexpected HTTP status 500", ex.getMessage());
+        }
+    }
+
+    @Test
+    public void joinReportsUnavailableOnceRetriesRunOut() throws Exception
+    {
+        for (int i = 0; i < 3; ++i) {
+            server.enqueue(503, "");
+        }
+        try {
+            coordinator.joinFlare("a").execute();
+            fail("expected failure");
+        } catch (RpcException ex) {
+            assertEquals(R.string.server_unavailable, ex.getErrorId());
+        }
+    }
+}